@@ -0,0 +1,291 @@
+package cmds
+
+import (
+	"bufio"
+	"bytes"
+	"context"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"io/ioutil"
+	"net"
+	"strings"
+	"sync"
+	"time"
+
+	"github.com/Sirupsen/logrus"
+	"github.com/cloudway/platform/container"
+	"github.com/cloudway/platform/pkg/stdcopy"
+)
+
+// Frame types of the deploy agent protocol, in addition to the stdcopy types
+const (
+	agentArgs = 4 // NUL separated cwman arguments
+	agentExit = 5 // 4 byte big endian exit status
+	agentEnv  = 6 // NUL separated NAME=value environment variables
+
+	agentMaxRequest = 64 * 1024
+)
+
+// CmdAgent runs deployments requested by the Bitbucket deployer over TCP,
+// so cwman is not started for every deployment. Every frame has the header
+// of stdcopy: the frame type, three zero bytes and the big endian payload
+// size. A request is an optional env frame, an args frame and the archive
+// as stdin frames ended by an empty one. The agent answers with stdout and
+// stderr frames and an exit frame, then waits for the next request. The
+// deployment is cancelled if the connection is closed before it is done.
+func (cli *CWMan) CmdAgent(args ...string) (err error) {
+	var addr string
+
+	cmd := cli.Subcmd("agent")
+	cmd.StringVar(&addr, []string{"-bind"}, "127.0.0.1:6060", "Deploy agent bind address")
+	cmd.ParseFlags(args, true)
+
+	l, err := net.Listen("tcp", addr)
+	if err != nil {
+		return err
+	}
+	trapSignals(func() {
+		l.Close()
+	})
+
+	logrus.Infof("Deploy agent listening on %s", addr)
+	for {
+		conn, err := l.Accept()
+		if err != nil {
+			if ne, ok := err.(net.Error); ok && ne.Temporary() {
+				continue
+			}
+			return err
+		}
+		go serveAgent(conn, cli.agentDeploy)
+	}
+}
+
+// agentFunc runs a deployment requested to the agent, until done or until
+// the context is cancelled.
+type agentFunc func(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error
+
+// agentConn is a connection from the deployer. Output frames are written
+// whole under a lock, since stdout and stderr are written concurrently.
+type agentConn struct {
+	r  *bufio.Reader
+	w  io.Writer
+	mu sync.Mutex
+}
+
+func (c *agentConn) readHeader() (typ byte, size int, err error) {
+	var header [8]byte
+	if _, err = io.ReadFull(c.r, header[:]); err != nil {
+		return
+	}
+	return header[0], int(binary.BigEndian.Uint32(header[4:])), nil
+}
+
+func (c *agentConn) writeFrame(typ byte, p []byte) error {
+	var header [8]byte
+	header[0] = typ
+	binary.BigEndian.PutUint32(header[4:], uint32(len(p)))
+
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	if _, err := c.w.Write(header[:]); err != nil {
+		return err
+	}
+	_, err := c.w.Write(p)
+	return err
+}
+
+// readRequest reads the environment and arguments of the next deployment.
+func (c *agentConn) readRequest() (env map[string]string, args []string, err error) {
+	env = make(map[string]string)
+	for {
+		typ, size, err := c.readHeader()
+		if err != nil {
+			return nil, nil, err
+		}
+		if size > agentMaxRequest {
+			return nil, nil, fmt.Errorf("Deploy agent request too large: %d bytes", size)
+		}
+		payload := make([]byte, size)
+		if _, err = io.ReadFull(c.r, payload); err != nil {
+			return nil, nil, err
+		}
+
+		switch typ {
+		case agentEnv:
+			for _, kv := range bytes.Split(payload, []byte{0}) {
+				if i := bytes.IndexByte(kv, '='); i > 0 {
+					env[string(kv[:i])] = string(kv[i+1:])
+				}
+			}
+		case agentArgs:
+			return env, strings.Split(string(payload), "\x00"), nil
+		default:
+			return nil, nil, fmt.Errorf("Unexpected deploy agent frame: %d", typ)
+		}
+	}
+}
+
+// watchClose cancels the deployment if the connection is closed. The
+// deployer sends nothing more until it gets the exit frame, so a read
+// only returns when the connection is closed, or times out once the read
+// deadline is set at the end of the deployment.
+func (c *agentConn) watchClose(cancel context.CancelFunc) {
+	if _, err := c.r.Peek(1); err != nil {
+		if ne, ok := err.(net.Error); !ok || !ne.Timeout() {
+			cancel()
+		}
+	}
+}
+
+// agentStdin reads the stdin frames of a deployment until the empty one,
+// then calls onDone.
+type agentStdin struct {
+	c         *agentConn
+	remaining int
+	done      bool
+	onDone    func()
+}
+
+func (in *agentStdin) Read(p []byte) (n int, err error) {
+	for in.remaining == 0 {
+		if in.done {
+			return 0, io.EOF
+		}
+		typ, size, err := in.c.readHeader()
+		if err != nil {
+			return 0, err
+		}
+		if typ != byte(stdcopy.Stdin) {
+			return 0, fmt.Errorf("Unexpected deploy agent frame: %d", typ)
+		}
+		in.remaining, in.done = size, size == 0
+		if in.done && in.onDone != nil {
+			in.onDone()
+		}
+	}
+
+	if len(p) > in.remaining {
+		p = p[:in.remaining]
+	}
+	n, err = in.c.r.Read(p)
+	in.remaining -= n
+	if err == io.EOF {
+		err = io.ErrUnexpectedEOF
+	}
+	return n, err
+}
+
+type agentWriter struct {
+	c   *agentConn
+	typ byte
+}
+
+func (w agentWriter) Write(p []byte) (int, error) {
+	if len(p) == 0 {
+		return 0, nil
+	}
+	if err := w.c.writeFrame(w.typ, p); err != nil {
+		return 0, err
+	}
+	return len(p), nil
+}
+
+func serveAgent(conn net.Conn, run agentFunc) {
+	defer conn.Close()
+
+	c := &agentConn{r: bufio.NewReader(conn), w: conn}
+	stdout := agentWriter{c, byte(stdcopy.Stdout)}
+	stderr := agentWriter{c, byte(stdcopy.Stderr)}
+
+	for {
+		env, args, err := c.readRequest()
+		if err != nil {
+			if err != io.EOF {
+				logrus.WithError(err).Warn("Deploy agent connection failed")
+			}
+			return
+		}
+
+		// The deployer kills a deployment by closing the connection, which
+		// fails the stdin reads, and is watched for once stdin is read.
+		ctx, cancel := context.WithCancel(context.Background())
+		var watch sync.WaitGroup
+		stdin := &agentStdin{c: c, onDone: func() {
+			watch.Add(1)
+			go func() {
+				defer watch.Done()
+				c.watchClose(cancel)
+			}()
+		}}
+
+		status := uint32(0)
+		if err = run(ctx, args, env, stdin, stdout, stderr); err != nil {
+			fmt.Fprintln(stderr, err)
+			status = 1
+			if se, ok := err.(container.StatusError); ok {
+				status = uint32(se.Code)
+			}
+		}
+
+		// The rest of the archive must be read before the next request
+		_, err = io.Copy(ioutil.Discard, stdin)
+
+		conn.SetReadDeadline(time.Now())
+		watch.Wait()
+		conn.SetReadDeadline(time.Time{})
+		closed := ctx.Err() != nil
+		cancel()
+
+		if err != nil {
+			logrus.WithError(err).Warn("Deploy agent connection failed")
+			return
+		}
+		if closed {
+			logrus.Warn("Deploy agent connection closed, deployment cancelled")
+			return
+		}
+
+		var exit [4]byte
+		binary.BigEndian.PutUint32(exit[:], status)
+		if err = c.writeFrame(agentExit, exit[:]); err != nil {
+			return
+		}
+	}
+}
+
+// agentDeploy runs the deploy command with the given arguments, which are
+// the same as for a forked cwman.
+func (cli *CWMan) agentDeploy(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error {
+	if len(args) == 0 || args[0] != "deploy" {
+		return fmt.Errorf("Unsupported deploy agent command: %s", strings.Join(args, " "))
+	}
+
+	var delta, commit string
+	args = args[1:]
+	for len(args) > 0 && strings.HasPrefix(args[0], "-") {
+		switch {
+		case strings.HasPrefix(args[0], "--delta="):
+			delta = strings.TrimPrefix(args[0], "--delta=")
+			args = args[1:]
+		case args[0] == "--delta" && len(args) > 1:
+			delta = args[1]
+			args = args[2:]
+		case strings.HasPrefix(args[0], "--commit="):
+			commit = strings.TrimPrefix(args[0], "--commit=")
+			args = args[1:]
+		case args[0] == "--commit" && len(args) > 1:
+			commit = args[1]
+			args = args[2:]
+		default:
+			return fmt.Errorf("Unknown deploy option: %s", args[0])
+		}
+	}
+	if len(args) != 2 {
+		return errors.New("Usage: deploy [--delta BASE] [--commit COMMIT] NAME NAMESPACE")
+	}
+
+	return cli.deploy(ctx, args[0], args[1], delta, commit, env["CLOUDWAY_TRACE_ID"], in, stdout, stderr)
+}
@@ -0,0 +1,205 @@
+package cmds
+
+import (
+	"context"
+	"encoding/binary"
+	"errors"
+	"io"
+	"io/ioutil"
+	"net"
+	"reflect"
+	"strings"
+	"testing"
+	"time"
+
+	"github.com/cloudway/platform/container"
+	"github.com/cloudway/platform/pkg/stdcopy"
+)
+
+// startAgent serves a single connection with the given deploy function
+// and returns the client side of the connection.
+func startAgent(t *testing.T, run agentFunc) net.Conn {
+	l, err := net.Listen("tcp", "127.0.0.1:0")
+	if err != nil {
+		t.Fatal(err)
+	}
+	go func() {
+		defer l.Close()
+		if conn, err := l.Accept(); err == nil {
+			serveAgent(conn, run)
+		}
+	}()
+
+	conn, err := net.Dial("tcp", l.Addr().String())
+	if err != nil {
+		t.Fatal(err)
+	}
+	return conn
+}
+
+func sendFrame(t *testing.T, w io.Writer, typ byte, payload string) {
+	var header [8]byte
+	header[0] = typ
+	binary.BigEndian.PutUint32(header[4:], uint32(len(payload)))
+	if _, err := w.Write(append(header[:], payload...)); err != nil {
+		t.Fatal(err)
+	}
+}
+
+func sendRequest(t *testing.T, w io.Writer, env, args []string, stdin ...string) {
+	if env != nil {
+		sendFrame(t, w, agentEnv, strings.Join(env, "\x00"))
+	}
+	sendFrame(t, w, agentArgs, strings.Join(args, "\x00"))
+	for _, s := range stdin {
+		sendFrame(t, w, byte(stdcopy.Stdin), s)
+	}
+	sendFrame(t, w, byte(stdcopy.Stdin), "")
+}
+
+// readResponse reads the output frames of a deployment up to the exit frame.
+func readResponse(t *testing.T, r io.Reader) (stdout, stderr string, status uint32) {
+	for {
+		var header [8]byte
+		if _, err := io.ReadFull(r, header[:]); err != nil {
+			t.Fatal(err)
+		}
+		payload := make([]byte, binary.BigEndian.Uint32(header[4:]))
+		if _, err := io.ReadFull(r, payload); err != nil {
+			t.Fatal(err)
+		}
+
+		switch header[0] {
+		case byte(stdcopy.Stdout):
+			stdout += string(payload)
+		case byte(stdcopy.Stderr):
+			stderr += string(payload)
+		case agentExit:
+			return stdout, stderr, binary.BigEndian.Uint32(payload)
+		default:
+			t.Fatalf("Unexpected frame %d", header[0])
+		}
+	}
+}
+
+func TestAgentDeploy(t *testing.T) {
+	type request struct {
+		args []string
+		env  map[string]string
+	}
+	requests := make(chan request, 2)
+	conn := startAgent(t, func(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error {
+		requests <- request{args, env}
+		data, err := ioutil.ReadAll(in)
+		if err != nil {
+			return err
+		}
+		if args[0] == "fail" {
+			return errors.New("deploy failed")
+		}
+		io.WriteString(stdout, "read "+string(data))
+		io.WriteString(stderr, "warning")
+		return nil
+	})
+	defer conn.Close()
+
+	// Requests are served in turn on the same connection
+	sendRequest(t, conn, []string{"CLOUDWAY_TRACE_ID=abc", "EMPTY="},
+		[]string{"deploy", "app", "ns"}, "hello", " world")
+	stdout, stderr, status := readResponse(t, conn)
+	if status != 0 || stdout != "read hello world" || stderr != "warning" {
+		t.Fatalf("Unexpected response: status %d, stdout %q, stderr %q", status, stdout, stderr)
+	}
+	req := <-requests
+	if !reflect.DeepEqual(req.args, []string{"deploy", "app", "ns"}) {
+		t.Fatalf("Unexpected arguments %q", req.args)
+	}
+	if !reflect.DeepEqual(req.env, map[string]string{"CLOUDWAY_TRACE_ID": "abc", "EMPTY": ""}) {
+		t.Fatalf("Unexpected environment %q", req.env)
+	}
+
+	sendRequest(t, conn, nil, []string{"fail"}, "archive")
+	_, stderr, status = readResponse(t, conn)
+	if status != 1 || stderr != "deploy failed\n" {
+		t.Fatalf("Unexpected response: status %d, stderr %q", status, stderr)
+	}
+}
+
+func TestAgentUnreadStdin(t *testing.T) {
+	conn := startAgent(t, func(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error {
+		return errors.New("not started")
+	})
+	defer conn.Close()
+
+	// The archive left unread by a failed deployment is skipped
+	sendRequest(t, conn, nil, []string{"deploy"}, "archive", "more")
+	if _, _, status := readResponse(t, conn); status != 1 {
+		t.Fatalf("Unexpected status %d", status)
+	}
+	sendRequest(t, conn, nil, []string{"deploy"})
+	if _, _, status := readResponse(t, conn); status != 1 {
+		t.Fatalf("Unexpected status %d", status)
+	}
+}
+
+func TestAgentExitStatus(t *testing.T) {
+	conn := startAgent(t, func(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error {
+		return container.StatusError{Code: exitDeltaBase, Message: "not the delta base"}
+	})
+	defer conn.Close()
+
+	// The exit status of a failed command is forwarded to the deployer
+	sendRequest(t, conn, nil, []string{"deploy", "--delta=abc", "app", "ns"}, "delta")
+	_, stderr, status := readResponse(t, conn)
+	if status != exitDeltaBase || stderr != "not the delta base\n" {
+		t.Fatalf("Unexpected response: status %d, stderr %q", status, stderr)
+	}
+}
+
+func TestAgentCancel(t *testing.T) {
+	cancelled := make(chan struct{})
+	conn := startAgent(t, func(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error {
+		if _, err := ioutil.ReadAll(in); err != nil {
+			return err
+		}
+		select {
+		case <-ctx.Done():
+			close(cancelled)
+			return ctx.Err()
+		case <-time.After(10 * time.Second):
+			return errors.New("not cancelled")
+		}
+	})
+
+	// The deployer kills a deployment by closing the connection
+	sendRequest(t, conn, nil, []string{"deploy", "app", "ns"}, "archive")
+	time.Sleep(100 * time.Millisecond)
+	conn.Close()
+
+	select {
+	case <-cancelled:
+	case <-time.After(5 * time.Second):
+		t.Fatal("Deployment not cancelled when the connection was closed")
+	}
+}
+
+func TestAgentRequestTooLarge(t *testing.T) {
+	conn := startAgent(t, func(ctx context.Context, args []string, env map[string]string, in io.Reader, stdout, stderr io.Writer) error {
+		t.Error("Deployment started")
+		return nil
+	})
+	defer conn.Close()
+
+	var header [8]byte
+	header[0] = agentArgs
+	binary.BigEndian.PutUint32(header[4:], agentMaxRequest+1)
+	if _, err := conn.Write(header[:]); err != nil {
+		t.Fatal(err)
+	}
+
+	// The agent drops the connection
+	conn.SetReadDeadline(time.Now().Add(5 * time.Second))
+	if _, err := conn.Read(make([]byte, 1)); err != io.EOF {
+		t.Fatalf("Expected the connection to be closed, got %v", err)
+	}
+}
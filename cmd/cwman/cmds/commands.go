@@ -20,6 +20,7 @@ type CWMan struct {
 
 // Commands lists the top level commands and their short usage
 var CommandUsage = []Command{
+	{"agent", "Start the deploy agent"},
 	{"api-server", "Start the API server"},
 	{"console", "Start the console server"},
 	{"config", "Get or set a configuration value"},
@@ -44,6 +45,7 @@ func Init(engine container.Engine) *CWMan {
 	cli.Description = "Cloudway application container management tool"
 
 	cli.handlers = map[string]func(...string) error{
+		"agent":        cli.CmdAgent,
 		"api-server":   cli.CmdAPIServer,
 		"console":      cli.CmdConsole,
 		"update-proxy": cli.CmdUpdateProxy,
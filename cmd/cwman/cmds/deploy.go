@@ -1,19 +1,131 @@
 package cmds
 
 import (
+	"archive/tar"
+	"compress/gzip"
 	"context"
+	"fmt"
+	"io"
+	"io/ioutil"
 	"os"
 
+	"github.com/Sirupsen/logrus"
+	"github.com/cloudway/platform/container"
+	"github.com/cloudway/platform/pkg/archive"
 	"github.com/cloudway/platform/pkg/mflag"
 	"github.com/cloudway/platform/pkg/serverlog"
 )
 
+// The hidden environment file of the application containers that holds
+// the commit last deployed, checked against the base of a delta archive.
+const deployedCommitKey = ".commit"
+
+// The exit status of a delta deployment whose BASE is not the commit
+// deployed in the application, to be retried with a full archive.
+const exitDeltaBase = 3
+
 func (cli *CWMan) CmdDeploy(args ...string) (err error) {
 	cmd := cli.Subcmd("deploy", "NAME NAMESPACE")
+	delta := cmd.String([]string{"-delta"}, "", "Apply a delta archive on top of the deployed BASE commit")
+	commit := cmd.String([]string{"-commit"}, "", "Record the deployed COMMIT in the application")
 	cmd.Require(mflag.Exact, 2)
 	cmd.ParseFlags(args, true)
 
-	name, namespace := cmd.Arg(0), cmd.Arg(1)
-	log := serverlog.Encap(os.Stdout, os.Stderr)
-	return cli.DeployRepo(context.Background(), name, namespace, os.Stdin, log)
+	return cli.deploy(context.Background(), cmd.Arg(0), cmd.Arg(1), *delta, *commit, os.Getenv("CLOUDWAY_TRACE_ID"),
+		os.Stdin, os.Stdout, os.Stderr)
+}
+
+// deploy deploys the repository archive read from the given input, or
+// the delta archive from the deployed BASE commit if delta is not empty.
+// The commit, if not empty, is recorded in the application once deployed.
+// It is shared by the deploy command and the deploy agent, which cancels
+// the context when the deployer goes away.
+func (cli *CWMan) deploy(ctx context.Context, name, namespace, delta, commit, traceID string, in io.Reader, stdout, stderr io.Writer) error {
+	if traceID != "" {
+		logrus.Debugf("Deploy %s-%s with trace ID %s", name, namespace, traceID)
+	}
+
+	if delta != "" {
+		logrus.Debugf("Deploy %s-%s as delta since %s", name, namespace, delta)
+		repo, err := cli.applyDelta(ctx, name, namespace, delta, in)
+		if err != nil {
+			return err
+		}
+		defer repo.Close()
+		in = repo
+	}
+
+	log := serverlog.Encap(stdout, stderr)
+	if err := cli.DeployRepo(ctx, name, namespace, in, log); err != nil {
+		return err
+	}
+	if commit != "" {
+		return cli.recordCommit(ctx, name, namespace, commit)
+	}
+	return nil
+}
+
+// recordCommit records the deployed commit in all containers of the
+// application, as the base of the next delta deployment.
+func (cli *CWMan) recordCommit(ctx context.Context, name, namespace, commit string) error {
+	containers, err := cli.FindApplications(ctx, name, namespace)
+	if err != nil {
+		return err
+	}
+	for _, c := range containers {
+		if err = c.Setenv(ctx, deployedCommitKey, commit); err != nil {
+			return err
+		}
+	}
+	return nil
+}
+
+// applyDelta returns the full repository archive made of the repository
+// deployed in the application, updated with the given gzipped delta archive.
+// The application must have been deployed from the BASE commit of the delta,
+// or the deployment fails with exitDeltaBase, after the delta is read so the
+// deployer does not see a broken pipe.
+func (cli *CWMan) applyDelta(ctx context.Context, name, namespace, base string, delta io.Reader) (io.ReadCloser, error) {
+	containers, err := cli.FindApplications(ctx, name, namespace)
+	if err != nil {
+		return nil, err
+	}
+	if len(containers) == 0 {
+		return nil, fmt.Errorf("%s: application not found", name)
+	}
+
+	c := containers[0]
+	if deployed, _ := c.Getenv(ctx, deployedCommitKey); deployed != base {
+		io.Copy(ioutil.Discard, delta)
+		return nil, container.StatusError{
+			Code:    exitDeltaBase,
+			Message: fmt.Sprintf("%s: deployed commit %q is not the delta base %s", name, deployed, base),
+		}
+	}
+
+	zr, err := gzip.NewReader(delta)
+	if err != nil {
+		return nil, err
+	}
+
+	repo, err := c.CopyFrom(ctx, c.RepoDir()+"/.")
+	if err != nil {
+		return nil, err
+	}
+
+	r, w := io.Pipe()
+	go func() {
+		defer repo.Close()
+		zw := gzip.NewWriter(w)
+		tw := tar.NewWriter(zw)
+		err := archive.ApplyDelta(tw, repo, zr)
+		if err == nil {
+			err = tw.Close()
+		}
+		if err == nil {
+			err = zw.Close()
+		}
+		w.CloseWithError(err)
+	}()
+	return r, nil
 }
@@ -64,6 +64,9 @@ func main() {
 	c := cmds.Init(engine)
 	if err := c.Run(flag.Args()...); err != nil {
 		fmt.Fprintln(os.Stderr, err)
+		if se, ok := err.(container.StatusError); ok {
+			os.Exit(se.Code)
+		}
 		os.Exit(1)
 	}
 }
@@ -0,0 +1,105 @@
+package archive
+
+import (
+	"archive/tar"
+	"bytes"
+	"fmt"
+	"io"
+	"io/ioutil"
+	"path"
+	"strings"
+)
+
+// DeltaManifest is the name of the first entry of a delta archive, which
+// lists the NUL separated paths deleted since the base deployment.
+const DeltaManifest = ".cwdelta"
+
+type InvalidDeltaError string
+
+func (e InvalidDeltaError) Error() string {
+	return fmt.Sprintf("Invalid delta archive: %s", string(e))
+}
+
+// ApplyDelta writes the base archive updated with the delta archive: the
+// files of the delta archive, followed by the files of the base archive
+// that are neither replaced nor deleted by the delta. Both archives are
+// read sequentially, so neither is held in memory.
+func ApplyDelta(tw *tar.Writer, base, delta io.Reader) error {
+	dr := tar.NewReader(delta)
+	hdr, err := dr.Next()
+	if err == io.EOF {
+		return InvalidDeltaError("missing " + DeltaManifest)
+	}
+	if err != nil {
+		return err
+	}
+	if hdr.Name != DeltaManifest {
+		return InvalidDeltaError("first entry is " + hdr.Name + ", not " + DeltaManifest)
+	}
+
+	list, err := ioutil.ReadAll(dr)
+	if err != nil {
+		return err
+	}
+	skip := make(map[string]bool)
+	for _, name := range bytes.Split(list, []byte{0}) {
+		if len(name) != 0 {
+			skip[cleanName(string(name))] = true
+		}
+	}
+
+	// Changed files come first, and replace the base files of the same name
+	for {
+		hdr, err = dr.Next()
+		if err == io.EOF {
+			break
+		}
+		if err != nil {
+			return err
+		}
+		name := cleanName(hdr.Name)
+		if name == "" {
+			continue
+		}
+		skip[name] = true
+		if err = copyEntry(tw, dr, hdr, name); err != nil {
+			return err
+		}
+	}
+
+	br := tar.NewReader(base)
+	for {
+		hdr, err = br.Next()
+		if err == io.EOF {
+			return nil
+		}
+		if err != nil {
+			return err
+		}
+		name := cleanName(hdr.Name)
+		if name == "" || skip[name] {
+			continue
+		}
+		if err = copyEntry(tw, br, hdr, name); err != nil {
+			return err
+		}
+	}
+}
+
+// cleanName returns the relative slash separated path of an archive entry,
+// which is empty for the archive root.
+func cleanName(name string) string {
+	return strings.TrimLeft(path.Clean("/"+name), "/")
+}
+
+func copyEntry(tw *tar.Writer, tr *tar.Reader, hdr *tar.Header, name string) error {
+	if hdr.Typeflag == tar.TypeDir {
+		name += "/"
+	}
+	hdr.Name = name
+	if err := tw.WriteHeader(hdr); err != nil {
+		return err
+	}
+	_, err := io.Copy(tw, tr)
+	return err
+}
@@ -0,0 +1,84 @@
+package archive
+
+import (
+	"archive/tar"
+	"bytes"
+	"io"
+	"io/ioutil"
+	"testing"
+)
+
+func makeTar(t *testing.T, files ...string) *bytes.Buffer {
+	var buf bytes.Buffer
+	tw := tar.NewWriter(&buf)
+	for i := 0; i+1 < len(files); i += 2 {
+		hdr := &tar.Header{Name: files[i], Mode: 0644, Size: int64(len(files[i+1])), Typeflag: tar.TypeReg}
+		if err := tw.WriteHeader(hdr); err != nil {
+			t.Fatal(err)
+		}
+		if _, err := tw.Write([]byte(files[i+1])); err != nil {
+			t.Fatal(err)
+		}
+	}
+	if err := tw.Close(); err != nil {
+		t.Fatal(err)
+	}
+	return &buf
+}
+
+func readTar(t *testing.T, r io.Reader) map[string]string {
+	files := make(map[string]string)
+	tr := tar.NewReader(r)
+	for {
+		hdr, err := tr.Next()
+		if err == io.EOF {
+			return files
+		}
+		if err != nil {
+			t.Fatal(err)
+		}
+		content, err := ioutil.ReadAll(tr)
+		if err != nil {
+			t.Fatal(err)
+		}
+		if _, dup := files[hdr.Name]; dup {
+			t.Fatalf("Duplicate entry %s", hdr.Name)
+		}
+		files[hdr.Name] = string(content)
+	}
+}
+
+func TestApplyDelta(t *testing.T) {
+	base := makeTar(t, "./a", "old a", "./b", "old b", "./dir/c", "old c", "./dir/d", "old d")
+	delta := makeTar(t, DeltaManifest, "b\x00dir/d\x00", "a", "new a", "dir/e", "new e")
+
+	var out bytes.Buffer
+	tw := tar.NewWriter(&out)
+	if err := ApplyDelta(tw, base, delta); err != nil {
+		t.Fatal(err)
+	}
+	if err := tw.Close(); err != nil {
+		t.Fatal(err)
+	}
+
+	files := readTar(t, &out)
+	expected := map[string]string{"a": "new a", "dir/c": "old c", "dir/e": "new e"}
+	if len(files) != len(expected) {
+		t.Fatalf("Unexpected files %v, expected %v", files, expected)
+	}
+	for name, content := range expected {
+		if files[name] != content {
+			t.Fatalf("Unexpected content of %s: %q, expected %q", name, files[name], content)
+		}
+	}
+}
+
+func TestApplyDeltaWithoutManifest(t *testing.T) {
+	base := makeTar(t, "a", "old a")
+	delta := makeTar(t, "a", "new a")
+
+	err := ApplyDelta(tar.NewWriter(ioutil.Discard), base, delta)
+	if _, ok := err.(InvalidDeltaError); !ok {
+		t.Fatalf("Unexpected error %v, expected an invalid delta", err)
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end streaming deployment: {@code git archive} of a local repository
+ * piped into a stub {@code cwman} that discards its input, with compression
+ * either done by git or by the parallel compressor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ArchivePipingBenchmark {
+    @Param({"1000"})
+    public int files;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    @Param({"parallel", "git"})
+    public String compression;
+
+    // The deployer command is read once, so the stub lives as long as the JVM
+    static {
+        try {
+            Path stub = Files.createTempFile("cwman", null);
+            Files.write(stub, "#!/bin/sh\nexec cat >/dev/null\n".getBytes(StandardCharsets.UTF_8));
+            Files.setPosixFilePermissions(stub, PosixFilePermissions.fromString("rwxr-xr-x"));
+            stub.toFile().deleteOnExit();
+            System.setProperty("cloudway.deployer.deploy.command", stub.toString());
+        } catch (IOException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private Path workDir, repo;
+    private ArchiveCompressor compressor;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        workDir = Files.createTempDirectory("piping");
+        repo = workDir.resolve("repo");
+        Files.createDirectory(repo);
+        createRepository(repo, files, fileSize);
+
+        compressor = new ArchiveCompressor();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        compressor.destroy();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Benchmark
+    public boolean deploy() throws Exception {
+        OutputStream discard = ByteStreams.nullOutputStream();
+        RepoDeployer.DeployerProcess deployer =
+            RepoDeployer.DeployerProcess.start("bench", "bench", null, discard, discard);
+
+        RepoDeployer.StreamingDeploymentHandler handler;
+        Process git;
+        if ("git".equals(compression)) {
+            handler = new RepoDeployer.StreamingDeploymentHandler(deployer, deployer.getInput());
+            git = git(repo, "archive", "--format=tar.gz", "HEAD");
+        } else {
+            handler = new RepoDeployer.StreamingDeploymentHandler(deployer, compressor.gzip(deployer.getInput()));
+            git = git(repo, "archive", "--format=tar", "HEAD");
+        }
+
+        run(git, handler);
+        if (git.waitFor() != 0) {
+            throw new IOException("git archive failed");
+        }
+        return handler.isSuccess();
+    }
+
+    private static void run(Process proc, CommandOutputHandler<?> handler) throws Exception {
+        handler.process(proc.getInputStream());
+        handler.complete();
+    }
+
+    private static Process git(Path dir, String... args) throws IOException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        return new ProcessBuilder(command)
+            .directory(dir.toFile())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    }
+
+    private static void exec(Path dir, String... args) throws IOException, InterruptedException {
+        Process proc = git(dir, args);
+        proc.getOutputStream().close();
+        ByteStreams.copy(proc.getInputStream(), ByteStreams.nullOutputStream());
+        if (proc.waitFor() != 0) {
+            throw new IOException("git " + args[0] + " failed");
+        }
+    }
+
+    /**
+     * Commit the given number of files of mostly incompressible content,
+     * so compression is not trivially fast.
+     */
+    private static void createRepository(Path dir, int files, int fileSize)
+        throws IOException, InterruptedException
+    {
+        exec(dir, "init", "-q");
+
+        Random random = new Random(42);
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(content);
+            // half random, half text, like a typical application
+            for (int j = content.length / 2; j < content.length; j++) {
+                content[j] = (byte)('a' + (j % 26));
+            }
+            Path file = dir.resolve("dir" + (i / 100)).resolve("file" + i);
+            Files.createDirectories(file.getParent());
+            Files.write(file, content);
+        }
+
+        exec(dir, "add", "-A");
+        exec(dir, "-c", "user.name=nobody", "-c", "user.email=nobody@example.com",
+                  "commit", "-q", "-m", "Benchmark");
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of template tarballs when populating a new repository, and
+ * the permission handling done for every extracted entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateExtractionBenchmark {
+    @State(Scope.Benchmark)
+    public static class Template {
+        @Param({"1000", "10000"})
+        public int files;
+
+        @Param({"4096"})
+        public int fileSize;
+
+        byte[] tarball;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            tarball = createTarball(files, fileSize);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Target {
+        Path dir;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("template");
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Modes {
+        final int[] modes = {0644, 0755, 0600, 0700, 0444, 0775};
+        int next;
+
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            file = Files.createTempFile("chmod", null);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file);
+        }
+
+        int nextMode() {
+            return modes[next++ % modes.length];
+        }
+    }
+
+    @Benchmark
+    public Path untarTemplateFiles(Template template, Target target) throws IOException {
+        RepoDeployer.untarTemplateFiles(target.dir, new ByteArrayInputStream(template.tarball));
+        return target.dir;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Set<PosixFilePermission> getPermissions(Modes modes) {
+        return RepoDeployer.getPermissions(modes.nextMode());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void chmod(Modes modes) throws IOException {
+        RepoDeployer.chmod(modes.file, modes.nextMode());
+    }
+
+    /**
+     * Create a template of the given number of files in directories of
+     * 100 files each, a quarter of them executable.
+     */
+    static byte[] createTarball(int files, int fileSize) throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(bytes)) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (int i = 0; i < files; i++) {
+                if (i % 100 == 0) {
+                    TarArchiveEntry dir = new TarArchiveEntry("dir" + (i / 100) + "/");
+                    dir.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+                    tar.putArchiveEntry(dir);
+                    tar.closeArchiveEntry();
+                }
+
+                TarArchiveEntry entry = new TarArchiveEntry("dir" + (i / 100) + "/file" + i);
+                entry.setMode(i % 4 == 0 ? 0100755 : 0100644);
+                entry.setSize(content.length);
+                tar.putArchiveEntry(entry);
+                tar.write(content);
+                tar.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudway.bitbucket.plugins.LogFlusher;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the log framing done while streaming deployer output to
+ * the client, for the small writes of line oriented output up to the large
+ * writes of copied streams.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StdWriterBenchmark {
+    @Param({"16", "128", "1024", "8192", "65536"})
+    public int writeSize;
+
+    private byte[] data;
+    private LogFlusher flusher;
+    private StdMultiplexer mux;
+    private StdWriter stdout, stderr;
+
+    @Setup
+    public void setup() {
+        data = new byte[writeSize];
+        new Random(42).nextBytes(data);
+
+        flusher = new LogFlusher();
+        mux = flusher.multiplex(ByteStreams.nullOutputStream());
+        stdout = mux.stream(StdWriter.Stdout);
+        stderr = mux.stream(StdWriter.Stderr);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mux.close();
+        flusher.destroy();
+    }
+
+    /**
+     * Consecutive writes to one stream, merged into shared frames.
+     */
+    @Benchmark
+    public void singleStream() throws IOException {
+        stdout.write(data);
+    }
+
+    /**
+     * Interleaved writes to stdout and stderr, one frame per write.
+     */
+    @Benchmark
+    public void interleaved() throws IOException {
+        stdout.write(data);
+        stderr.write(data);
+    }
+
+    /**
+     * Output handed to the client as it is written, as done before buffering.
+     */
+    @Benchmark
+    public void unbuffered(Blackhole bh) throws IOException {
+        OutputStream out = new BlackholeOutputStream(bh);
+        try (StdMultiplexer unbuffered = new StdMultiplexer(out, flusher, 0)) {
+            unbuffered.stream(StdWriter.Stdout).write(data);
+        }
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole bh;
+
+        BlackholeOutputStream(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bh.consume(b);
+        }
+    }
+}
@@ -2,7 +2,9 @@ package bitbucket
 
 import (
 	"context"
+	"crypto/rand"
 	"encoding/base64"
+	"encoding/hex"
 	"encoding/json"
 	"errors"
 	"fmt"
@@ -12,6 +14,7 @@ import (
 	"strconv"
 	"strings"
 
+	"github.com/Sirupsen/logrus"
 	"github.com/cloudway/platform/config"
 	"github.com/cloudway/platform/container"
 	"github.com/cloudway/platform/pkg/rest"
@@ -254,9 +257,15 @@ func (cli *bitbucketClient) Deploy(_ container.Engine, namespace, name string, b
 		log = serverlog.Discard
 	}
 
+	// The trace ID correlates this call with the deployment trace
+	// recorded by the plugin and with the cwman process.
+	traceID := newTraceID()
+	logrus.Debugf("Deploy %s-%s with trace ID %s", name, namespace, traceID)
+
 	path := fmt.Sprintf("/rest/deploy/1.0/projects/%s/repos/%s/deploy", namespace, name)
 	query := url.Values{"branch": []string{branch}}
-	resp, err := cli.Post(context.Background(), path, query, nil, nil)
+	headers := map[string][]string{"X-Trace-Id": {traceID}}
+	resp, err := cli.Post(context.Background(), path, query, nil, headers)
 	if err != nil {
 		return checkNamespaceError(namespace, resp, err)
 	} else {
@@ -265,6 +274,12 @@ func (cli *bitbucketClient) Deploy(_ container.Engine, namespace, name string, b
 	}
 }
 
+func newTraceID() string {
+	var b [16]byte
+	rand.Read(b[:])
+	return hex.EncodeToString(b[:])
+}
+
 func (cli *bitbucketClient) GetDeploymentBranch(namespace, name string) (branch *scm.Branch, err error) {
 	path := fmt.Sprintf("/rest/deploy/1.0/projects/%s/repos/%s/settings", namespace, name)
 	resp, err := cli.Get(context.Background(), path, nil, nil)
@@ -0,0 +1,370 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded on-disk cache of generated repository archives.
+ *
+ * <p>Archives are content addressed: the key is made of the repository ID,
+ * the SHA of the archived tree or commit and the archive format, so an entry
+ * never becomes stale. Entries are evicted in least-recently-used order when
+ * the total size exceeds the configured limit. Only one caller fills a missing
+ * entry, other callers for the same key wait for the fill to finish, for at
+ * most {@code archive.cache.wait} seconds (default: 600).</p>
+ *
+ * <p>Usage:</p>
+ * <pre>
+ *   InputStream in;
+ *   ArchiveCache.Fill fill = null;
+ *   while ((in = cache.open(key)) == null &amp;&amp; (fill = cache.create(key)) == null)
+ *       ;
+ *   try {
+ *       // write the archive to fill.newOutputStream(), then
+ *       fill.commit();
+ *   } finally {
+ *       fill.close(); // aborts the fill unless committed
+ *   }
+ * </pre>
+ */
+public class ArchiveCache {
+    private final Path dir;
+    private final long maxBytes;
+    private final long maxWait;
+
+    // guarded by this, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Fill> fills = new HashMap<>();
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final String SUFFIX = ".archive";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    public ArchiveCache() {
+        this(Paths.get(DeployerConfig.getString("archive.cache.dir",
+                 System.getProperty("java.io.tmpdir") + File.separator + "cloudway-archives")),
+             DeployerConfig.getLong("archive.cache.size", 1024L * 1024 * 1024));
+    }
+
+    public ArchiveCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxWait = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("archive.cache.wait", 600));
+
+        if (maxBytes > 0) {
+            try {
+                Files.createDirectories(dir);
+                load();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Failed to initialize archive cache " + dir, ex);
+            }
+        }
+    }
+
+    /**
+     * Reload entries left by a previous run, oldest first, and remove
+     * incomplete fills.
+     */
+    private synchronized void load() throws IOException {
+        File[] files = dir.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                String key = name.substring(0, name.length() - SUFFIX.length());
+                entries.put(key, f.length());
+                totalBytes += f.length();
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+        evict(null);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Open the cached archive for the given key. If the archive is being
+     * filled by another caller, wait for the fill to complete.
+     *
+     * @return the archive content, or null if the archive is not cached
+     * @throws IOException if the fill is not complete in time
+     */
+    public synchronized CachedInputStream open(String key) throws IOException {
+        long deadline = System.nanoTime() + maxWait;
+        while (fills.containsKey(key)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new IOException("Timed out waiting for the archive " + key);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (entries.get(key) != null) {
+            // Open while holding the lock so the file can't be evicted
+            // before it's opened. An evicted file remains readable through
+            // the open stream.
+            try {
+                CachedInputStream in = new CachedInputStream(file(key));
+                hits.incrementAndGet();
+                return in;
+            } catch (IOException ex) {
+                remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start filling the archive for the given key.
+     *
+     * @return the fill, or null if the archive is being filled by another caller
+     */
+    public synchronized Fill create(String key) throws IOException {
+        if (fills.containsKey(key)) {
+            return null;
+        }
+
+        misses.incrementAndGet();
+        Fill fill = new Fill(key, Files.createTempFile(dir, "fill", TEMP_SUFFIX));
+        fills.put(key, fill);
+        return fill;
+    }
+
+    /**
+     * An archive being generated. The generator writes the archive to
+     * {@link #newOutputStream()} and then either commits or aborts the
+     * fill. Closing the fill aborts it unless committed, so the callers
+     * waiting for it are never left blocked.
+     */
+    public class Fill implements Closeable {
+        private final String key;
+        private final Path file;
+        private OutputStream out;
+        private boolean done; // guarded by ArchiveCache.this
+
+        Fill(String key, Path file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        /**
+         * Open the file to write the archive to, which is closed when the
+         * fill is committed or aborted.
+         */
+        public OutputStream newOutputStream() throws IOException {
+            out = Files.newOutputStream(file);
+            return out;
+        }
+
+        /**
+         * Add the generated archive to the cache.
+         *
+         * @return the archive content
+         */
+        public CachedInputStream commit() throws IOException {
+            synchronized (ArchiveCache.this) {
+                try {
+                    closeOutput();
+                    long size = Files.size(file);
+                    Files.move(file, file(key), StandardCopyOption.REPLACE_EXISTING,
+                                                StandardCopyOption.ATOMIC_MOVE);
+                    CachedInputStream in = new CachedInputStream(file(key));
+                    Long old = entries.put(key, size);
+                    totalBytes += size - (old != null ? old : 0);
+                    evict(key);
+                    return in;
+                } catch (IOException ex) {
+                    Files.deleteIfExists(file);
+                    throw ex;
+                } finally {
+                    done();
+                }
+            }
+        }
+
+        /**
+         * Discard the partial archive.
+         */
+        public void abort() {
+            synchronized (ArchiveCache.this) {
+                try {
+                    closeOutput();
+                } catch (IOException ex) {
+                    // the partial archive is discarded
+                }
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to remove " + file, ex);
+                } finally {
+                    done();
+                }
+            }
+        }
+
+        /**
+         * Abort the fill unless it was committed.
+         */
+        @Override
+        public void close() {
+            synchronized (ArchiveCache.this) {
+                if (!done) {
+                    abort();
+                }
+            }
+        }
+
+        private void closeOutput() throws IOException {
+            if (out != null) {
+                OutputStream o = out;
+                out = null;
+                o.close();
+            }
+        }
+
+        private void done() {
+            done = true;
+            fills.remove(key);
+            ArchiveCache.this.notifyAll();
+        }
+    }
+
+    /**
+     * The content of a cached archive, with random access for range requests.
+     */
+    public static class CachedInputStream extends FilterInputStream {
+        private final FileChannel channel;
+
+        CachedInputStream(Path file) throws IOException {
+            this(FileChannel.open(file, StandardOpenOption.READ));
+        }
+
+        private CachedInputStream(FileChannel channel) {
+            super(Channels.newInputStream(channel));
+            this.channel = channel;
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        /**
+         * Set the position of the next byte to read.
+         */
+        public void seek(long pos) throws IOException {
+            channel.position(pos);
+        }
+    }
+
+    private Path file(String key) {
+        return dir.resolve(key + SUFFIX);
+    }
+
+    /**
+     * Remove least recently used entries until the cache fits in the limit.
+     * The most recently committed entry is removed last.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getKey().equals(keep) && it.hasNext()) {
+                continue;
+            }
+            it.remove();
+            totalBytes -= e.getValue();
+            evictions.incrementAndGet();
+            delete(e.getKey());
+        }
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+            delete(key);
+        }
+    }
+
+    private void delete(String key) {
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to remove cached archive " + key, ex);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public long getMaxSize() {
+        return maxBytes;
+    }
+}
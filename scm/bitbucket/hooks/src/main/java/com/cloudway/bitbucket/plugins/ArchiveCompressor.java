@@ -0,0 +1,63 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Compresses deployment archives. Compression is shared by all deployments
+ * on a pool of {@code compress.threads} threads (default: number of cores)
+ * at {@code compress.level} (default: 6).
+ */
+public class ArchiveCompressor implements DisposableBean {
+    private final int threads;
+    private final int level;
+    private final ExecutorService executor;
+
+    public ArchiveCompressor() {
+        this(DeployerConfig.getInt("compress.threads", Runtime.getRuntime().availableProcessors()),
+             DeployerConfig.getInt("compress.level", 6));
+    }
+
+    public ArchiveCompressor(int threads, int level) {
+        this.threads = Math.max(1, threads);
+        this.level = level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION
+                     ? Deflater.DEFAULT_COMPRESSION : level;
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            this.threads, this.threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-compressor-%d")
+                .setDaemon(true)
+                .build());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Returns a stream that writes gzip compressed data to the given stream.
+     * Closing the returned stream closes the underlying stream.
+     */
+    public ParallelGzipOutputStream gzip(OutputStream out) throws IOException {
+        return new ParallelGzipOutputStream(out, executor, threads, level);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Formats of repository archives served to clients.
+ */
+public enum ArchiveFormat {
+    TAR("tar", "application/tar", "application/x-tar"),
+    TAR_GZ("tar.gz", "application/gzip", "application/x-gzip", "application/x-tgz");
+
+    private final String extension;
+    private final List<String> mediaTypes;
+
+    ArchiveFormat(String extension, String... mediaTypes) {
+        this.extension = extension;
+        this.mediaTypes = Arrays.asList(mediaTypes);
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Returns the preferred media type of the format.
+     */
+    public String getMediaType() {
+        return mediaTypes.get(0);
+    }
+
+    /**
+     * Returns the format of the given media type or file extension, or
+     * null if not supported.
+     */
+    public static ArchiveFormat of(String type) {
+        for (ArchiveFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(type) || format.mediaTypes.contains(type.toLowerCase())) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
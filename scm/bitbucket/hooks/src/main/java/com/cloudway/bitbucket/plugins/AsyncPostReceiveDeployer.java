@@ -7,24 +7,19 @@
 package com.cloudway.bitbucket.plugins;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.atlassian.bitbucket.hook.HookService;
 import com.atlassian.bitbucket.hook.repository.AsyncPostReceiveRepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookContext;
-import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.repository.Ref;
 import com.atlassian.bitbucket.repository.RefChange;
-import com.atlassian.bitbucket.repository.RefService;
-import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.repository.RepositoryService;
-import com.atlassian.bitbucket.scm.git.GitScmConfig;
-import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
 
 @SuppressWarnings("unused")
 public class AsyncPostReceiveDeployer implements AsyncPostReceiveRepositoryHook {
     private final RepoDeployer deployer;
+    private final DeployScheduler scheduler;
 
     private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
     static {
@@ -33,31 +28,20 @@ public class AsyncPostReceiveDeployer implements AsyncPostReceiveRepositoryHook
         }
     }
 
-    AsyncPostReceiveDeployer(GitCommandBuilderFactory factory,
-                             GitScmConfig gitScmConfig,
-                             HookService hookService,
-                             RepositoryHookService repoHookService,
-                             RepositoryService repoService,
-                             RefService refService) {
-        deployer = new RepoDeployer(factory, gitScmConfig,
-                                    hookService, repoHookService,
-                                    repoService, refService);
+    AsyncPostReceiveDeployer(RepoDeployer deployer, DeployScheduler scheduler) {
+        this.deployer = deployer;
+        this.scheduler = scheduler;
     }
 
     @Override
     public void postReceive(RepositoryHookContext context, Collection<RefChange> refChanges) {
-        Ref ref = deployer.getDeploymentBranch(context.getRepository(), context.getSettings());
+        Map<String, Ref> targets = deployer.getDeploymentTargets(context.getRepository(), context.getSettings());
+        targets.values().removeIf(ref -> !refChanged(refChanges, ref));
 
-        if (refChanged(refChanges, ref)) {
-            try {
-                Repository repo = context.getRepository();
-                logger.fine("Push to deploy the repository " +
-                            repo.getSlug().toLowerCase() + "-" +
-                            repo.getProject().getKey().toLowerCase());
-                deployer.deploy(context.getRepository(), ref, null, null);
-            } catch (Exception ex) {
-                logger.log(Level.SEVERE, "Push to deploy failed", ex);
-            }
+        if (!targets.isEmpty()) {
+            // The deployment is performed by the scheduler, which coalesces
+            // bursts of pushes to the same repository
+            scheduler.schedule(context.getRepository(), targets);
         }
     }
 
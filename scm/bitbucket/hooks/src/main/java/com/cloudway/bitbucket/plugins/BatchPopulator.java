@@ -0,0 +1,156 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Populates many new repositories concurrently on a pool of
+ * {@code populate.workers} threads (default: 4).
+ */
+public class BatchPopulator implements DisposableBean {
+    private final RepoDeployer deployer;
+    private final RepositoryService repoService;
+    private final SecurityService securityService;
+    private final ThreadPoolExecutor executor;
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    /**
+     * A repository to populate from either a template tarball or the URL
+     * of a template repository.
+     */
+    public static class Task {
+        final Repository repository;
+        final byte[] template;
+        final String url;
+
+        public Task(Repository repository, byte[] template, String url) {
+            this.repository = repository;
+            this.template = template;
+            this.url = url;
+        }
+    }
+
+    public enum Status {
+        POPULATED, NOT_EMPTY, FAILED
+    }
+
+    public static class Result {
+        public final Repository repository;
+        public final Status status;
+        public final String error;
+        public final long millis;
+
+        Result(Repository repository, Status status, String error, long millis) {
+            this.repository = repository;
+            this.status = status;
+            this.error = error;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Receives results in order of completion.
+     */
+    public interface Listener {
+        void completed(Result result) throws IOException;
+    }
+
+    public BatchPopulator(RepoDeployer deployer, RepositoryService repoService, SecurityService securityService) {
+        this.deployer = deployer;
+        this.repoService = repoService;
+        this.securityService = securityService;
+
+        int workers = Math.max(1, DeployerConfig.getInt("populate.workers", 4));
+        this.executor = new ThreadPoolExecutor(
+            workers, workers, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-populator-%d")
+                .setDaemon(true)
+                .build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Populate the repositories of the given tasks concurrently. Results are
+     * passed to the listener on the calling thread as each task finishes.
+     * Permissions of the caller must be checked beforehand.
+     */
+    public void populate(List<Task> tasks, Listener listener) throws IOException, InterruptedException {
+        CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+        for (Task task : tasks) {
+            completion.submit(() -> run(task));
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                listener.completed(completion.take().get());
+            } catch (ExecutionException ex) {
+                // run() reports failures in its result
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+    }
+
+    private Result run(Task task) {
+        Repository repository = task.repository;
+        long start = System.nanoTime();
+        try {
+            // Worker threads have no authenticated user, and populating
+            // disables the deployer hook while pushing.
+            Status status = securityService.withPermission(Permission.REPO_ADMIN, "Populate repository").call(() -> {
+                if (!repoService.isEmpty(repository)) {
+                    return Status.NOT_EMPTY;
+                }
+                if (task.template != null) {
+                    deployer.populate(repository, new ByteArrayInputStream(task.template));
+                } else {
+                    deployer.populate(repository, task.url);
+                }
+                return Status.POPULATED;
+            });
+            return new Result(repository, status, null, elapsed(start));
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Failed to populate repository " + repository.getSlug(), ex);
+            String error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            return new Result(repository, Status.FAILED, error, elapsed(start));
+        }
+    }
+
+    private static long elapsed(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
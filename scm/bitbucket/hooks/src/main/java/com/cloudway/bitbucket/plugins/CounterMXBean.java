@@ -0,0 +1,14 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+/**
+ * JMX view of a {@link DeployMetrics} counter.
+ */
+public interface CounterMXBean {
+    long getCount();
+}
@@ -0,0 +1,340 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of deployer processes running at once.
+ *
+ * <p>At most {@code admission.limit} deployments run concurrently (default:
+ * 4), and at most {@code admission.namespace.limit} of a single namespace
+ * (default: 0, no limit besides the global one). Waiting deployments are
+ * admitted by weighted fair queuing across namespaces: each namespace gets
+ * a share of the deployment slots proportional to its weight, configured
+ * as {@code admission.weight.<namespace>} (default: 1), so a namespace that
+ * pushes many repositories at once can't starve the others.</p>
+ *
+ * <p>A deployment of several applications from one archive takes a permit
+ * per application, so the limits count deployer processes. It is admitted
+ * when enough slots are free and charged its size against the share of its
+ * namespace.</p>
+ */
+public class DeployAdmission {
+    private final DeployMetrics metrics;
+    private final int limit;
+    private final int namespaceLimit;
+    private final long timeout;
+
+    // guarded by this
+    private final TreeSet<Waiter> waiters = new TreeSet<>();
+    private final Map<String, Namespace> namespaces = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+    private int running;
+    private long admitted, rejected;
+    private double averageHold; // seconds, exponentially weighted
+
+    public DeployAdmission(DeployMetrics metrics) {
+        this.metrics = metrics;
+        this.limit = Math.max(1, DeployerConfig.getInt("admission.limit", 4));
+        this.namespaceLimit = Math.max(0, DeployerConfig.getInt("admission.namespace.limit", 0));
+        this.timeout = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("admission.timeout", 30));
+    }
+
+    /**
+     * Scheduling state of a namespace.
+     */
+    private static class Namespace {
+        final double weight;
+        double lastFinish;  // virtual finish time of the last queued deployment
+        int running;
+        int waiting;
+
+        Namespace(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A deployment waiting for admission, ordered by virtual finish time.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        final String namespace;
+        final int permits;
+        final double finish;
+        final long seq;
+        boolean admitted;
+
+        Waiter(String namespace, int permits, double finish, long seq) {
+            this.namespace = namespace;
+            this.permits = permits;
+            this.finish = finish;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int c = Double.compare(finish, other.finish);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * An admitted deployment, which must be closed when the deployer exits.
+     */
+    public class Permit implements AutoCloseable {
+        private final String namespace;
+        private final int permits;
+        private final long admittedAt = System.nanoTime();
+        private boolean closed;
+
+        Permit(String namespace, int permits) {
+            this.namespace = namespace;
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DeployAdmission.this) {
+                if (!closed) {
+                    closed = true;
+                    release(namespace, permits, System.nanoTime() - admittedAt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until a deployment of the given namespace is admitted.
+     */
+    public Permit acquire(String namespace) throws InterruptedException {
+        return acquire(namespace, 1);
+    }
+
+    /**
+     * Wait until a deployment of the given number of applications of the
+     * given namespace is admitted.
+     *
+     * @throws IllegalArgumentException if more than {@link #getMaxPermits()}
+     * applications are deployed at once
+     */
+    public Permit acquire(String namespace, int permits) throws InterruptedException {
+        return acquire(namespace, permits, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait up to {@code admission.timeout} seconds (default: 30) until a
+     * deployment of the given namespace is admitted.
+     *
+     * @throws DeployRejectedException if not admitted in time
+     */
+    public Permit tryAcquire(String namespace) throws DeployRejectedException, InterruptedException {
+        Permit permit = acquire(namespace, timeout, TimeUnit.NANOSECONDS);
+        if (permit == null) {
+            throw new DeployRejectedException(
+                "Too many deployments in progress, try again later", getRetryAfter());
+        }
+        return permit;
+    }
+
+    /**
+     * Wait until a deployment of the given namespace is admitted.
+     *
+     * @return the permit, or null if not admitted within the timeout
+     */
+    public Permit acquire(String namespace, long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        return acquire(namespace, 1, timeout, unit);
+    }
+
+    /**
+     * Wait until a deployment of the given number of applications of the
+     * given namespace is admitted.
+     *
+     * @return the permit, or null if not admitted within the timeout
+     * @throws IllegalArgumentException if more than {@link #getMaxPermits()}
+     * applications are deployed at once
+     */
+    public synchronized Permit acquire(String namespace, int permits, long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        if (permits < 1 || permits > getMaxPermits()) {
+            throw new IllegalArgumentException("Cannot admit " + permits + " deployments at once");
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        if (deadline < start) {
+            deadline = Long.MAX_VALUE; // overflow
+        }
+
+        Namespace ns = namespaces.computeIfAbsent(namespace, k -> new Namespace(weight(k)));
+        double begin = Math.max(virtualTime, ns.lastFinish);
+        Waiter waiter = new Waiter(namespace, permits, begin + permits / ns.weight, sequence++);
+        ns.lastFinish = waiter.finish;
+        ns.waiting++;
+        waiters.add(waiter);
+        dispatch();
+
+        try {
+            long remaining;
+            while (!waiter.admitted && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException ex) {
+            if (waiter.admitted) {
+                release(namespace, permits, 0);
+            } else {
+                cancel(waiter, ns);
+            }
+            throw ex;
+        }
+
+        if (!waiter.admitted) {
+            cancel(waiter, ns);
+            rejected++;
+            metrics.increment(DeployMetrics.ADMISSION_REJECTED, namespace);
+            return null;
+        }
+
+        metrics.recordSince(DeployMetrics.ADMISSION_WAIT, namespace, start);
+        return new Permit(namespace, permits);
+    }
+
+    private static double weight(String namespace) {
+        String value = DeployerConfig.getString("admission.weight." + namespace.toLowerCase(), null);
+        if (value != null) {
+            try {
+                double weight = Double.parseDouble(value);
+                if (weight > 0) {
+                    return weight;
+                }
+            } catch (NumberFormatException ex) {
+                // fall through to default
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Admit waiters in order of virtual finish time, skipping namespaces
+     * at their own limit, until the next waiter doesn't fit in the free
+     * slots, so larger deployments are not overtaken by smaller ones.
+     */
+    private void dispatch() {
+        boolean changed = false;
+        for (Iterator<Waiter> it = waiters.iterator(); running < limit && it.hasNext(); ) {
+            Waiter waiter = it.next();
+            Namespace ns = namespaces.get(waiter.namespace);
+            if (namespaceLimit > 0 && ns.running + waiter.permits > namespaceLimit) {
+                continue;
+            }
+            if (running + waiter.permits > limit) {
+                break;
+            }
+
+            it.remove();
+            waiter.admitted = true;
+            virtualTime = Math.max(virtualTime, waiter.finish - waiter.permits / ns.weight);
+            ns.waiting--;
+            ns.running += waiter.permits;
+            running += waiter.permits;
+            admitted++;
+            changed = true;
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    private void cancel(Waiter waiter, Namespace ns) {
+        waiters.remove(waiter);
+        ns.waiting--;
+        // give the unused share back unless others queued behind it
+        if (ns.lastFinish == waiter.finish) {
+            ns.lastFinish -= waiter.permits / ns.weight;
+        }
+        prune(waiter.namespace, ns);
+    }
+
+    private void release(String namespace, int permits, long heldNanos) {
+        Namespace ns = namespaces.get(namespace);
+        ns.running -= permits;
+        running -= permits;
+        if (heldNanos > 0) {
+            double seconds = heldNanos / 1e9;
+            averageHold = averageHold == 0 ? seconds : averageHold * 0.8 + seconds * 0.2;
+        }
+        prune(namespace, ns);
+        dispatch();
+    }
+
+    /**
+     * Forget an idle namespace once its virtual time has been caught up,
+     * which doesn't change the order of later deployments.
+     */
+    private void prune(String namespace, Namespace ns) {
+        if (ns.running == 0 && ns.waiting == 0 && ns.lastFinish <= virtualTime) {
+            namespaces.remove(namespace);
+        }
+    }
+
+    /**
+     * Returns an estimate of the seconds until a new deployment could be
+     * admitted, based on the recent duration of deployments.
+     */
+    public synchronized long getRetryAfter() {
+        double hold = averageHold > 0 ? averageHold : TimeUnit.NANOSECONDS.toSeconds(timeout);
+        long seconds = (long)Math.ceil(hold * (waiters.size() + 1) / limit);
+        return Math.max(1, Math.min(seconds, 3600));
+    }
+
+    /**
+     * Returns the maximum number of concurrent deployments.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the maximum number of applications deployed at once by a
+     * single deployment.
+     */
+    public int getMaxPermits() {
+        return namespaceLimit > 0 ? Math.min(limit, namespaceLimit) : limit;
+    }
+
+    /**
+     * Returns the maximum number of concurrent deployments of a namespace,
+     * or 0 if only limited by the global limit.
+     */
+    public int getNamespaceLimit() {
+        return namespaceLimit;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
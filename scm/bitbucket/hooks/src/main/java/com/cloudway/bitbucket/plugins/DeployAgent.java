@@ -0,0 +1,424 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cloudway.bitbucket.plugins.rest.StdWriter;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Runs deployments on a long-lived cwman daemon instead of forking cwman
+ * for every deployment. Enabled by setting {@code agent.address} to the
+ * {@code host:port} the daemon listens on, normally a loopback address.
+ *
+ * <p>Every frame on the connection has the 8 byte header used by
+ * {@link StdWriter}: the frame type, three zero bytes and the big endian
+ * size of the payload. A deployment is requested by an {@link #ARGS} frame
+ * holding the NUL separated cwman arguments, followed by {@link StdWriter#Stdin}
+ * frames with the archive, ended by an empty stdin frame. The arguments may
+ * be preceded by an {@link #ENV} frame holding NUL separated {@code NAME=value}
+ * environment variables, such as the trace ID of the deployment. The daemon
+ * answers with {@link StdWriter#Stdout} and {@link StdWriter#Stderr} frames
+ * and finally an {@link #EXIT} frame holding the 4 byte exit status, after
+ * which the connection can take the next deployment. Closing the connection
+ * aborts the deployment.</p>
+ *
+ * <p>Up to {@code agent.pool} idle connections are kept (default: 4) for
+ * {@code agent.idle} seconds (default: 60). If the daemon can't be reached
+ * within {@code agent.connect.timeout} milliseconds (default: 2000), cwman
+ * is forked instead.</p>
+ */
+public class DeployAgent implements DisposableBean {
+    // ARGS is the frame type of the cwman arguments
+    static final byte ARGS = 4;
+    // EXIT is the frame type of the exit status
+    static final byte EXIT = 5;
+    // ENV is the frame type of the environment variables
+    static final byte ENV = 6;
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final DeployMetrics metrics;
+    private final InetSocketAddress address;
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final int connectTimeout;
+    private final ExecutorService readers;
+
+    // guarded by itself
+    private final Deque<Connection> idle = new ArrayDeque<>();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    public DeployAgent(DeployMetrics metrics) {
+        this.metrics = metrics;
+        this.address = parseAddress(DeployerConfig.getString("agent.address", null));
+        this.maxIdle = Math.max(0, DeployerConfig.getInt("agent.pool", 4));
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("agent.idle", 60));
+        this.connectTimeout = DeployerConfig.getInt("agent.connect.timeout", 2000);
+
+        // Output readers are reused across deployments, unlike the pump
+        // threads started for every forked process.
+        this.readers = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-agent-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private static InetSocketAddress parseAddress(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            HostAndPort hp = HostAndPort.fromString(value).requireBracketsForIPv6();
+            return new InetSocketAddress(hp.getHostText(), hp.getPort());
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            logger.warning("Invalid deploy agent address " + value + ", forking cwman");
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return address != null;
+    }
+
+    /**
+     * Start a deployment on the daemon.
+     *
+     * @return the running deployment, or null if the daemon can't be
+     * reached and cwman should be forked instead
+     */
+    RepoDeployer.DeployerProcess start(String namespace, List<String> args, Path archive,
+                                       OutputStream stdout, OutputStream stderr)
+        throws IOException
+    {
+        AgentProcess proc = null;
+        while (proc == null) {
+            Connection conn;
+            try {
+                conn = borrow();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot connect to deploy agent at " + address + ", forking cwman", ex);
+                fallbacks.incrementAndGet();
+                metrics.increment(DeployMetrics.AGENT_FALLBACK, namespace);
+                return null;
+            }
+
+            try {
+                String traceId = DeployTrace.currentId();
+                if (traceId != null) {
+                    conn.writeFrame(ENV, (DeployTrace.ENV + "=" + traceId).getBytes(StandardCharsets.UTF_8));
+                }
+                conn.writeFrame(ARGS, String.join("\0", args).getBytes(StandardCharsets.UTF_8));
+                conn.out.flush();
+                proc = new AgentProcess(conn,
+                    stdout != null ? stdout : System.out,
+                    stderr != null ? stderr : System.err);
+            } catch (IOException ex) {
+                conn.close();
+                if (!conn.reused) {
+                    logger.log(Level.WARNING, "Deploy agent at " + address + " closed connection, forking cwman", ex);
+                    fallbacks.incrementAndGet();
+                    metrics.increment(DeployMetrics.AGENT_FALLBACK, namespace);
+                    return null;
+                }
+                // the daemon closed the idle connection, try a new one
+            }
+        }
+
+        readers.execute(proc::pump);
+        started.incrementAndGet();
+
+        if (archive != null) {
+            try (OutputStream in = proc.getInput()) {
+                Files.copy(archive, in);
+            } catch (IOException ex) {
+                proc.destroy();
+                throw ex;
+            }
+        }
+        return proc;
+    }
+
+    private Connection borrow() throws IOException {
+        synchronized (idle) {
+            Connection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (System.nanoTime() - conn.idleSince < idleTimeout) {
+                    conn.reused = true;
+                    return conn;
+                }
+                conn.close();
+            }
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, connectTimeout);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    private void release(Connection conn) {
+        conn.idleSince = System.nanoTime();
+        synchronized (idle) {
+            if (idle.size() < maxIdle && !readers.isShutdown()) {
+                idle.addFirst(conn);
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Returns the number of deployments started on the daemon.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * Returns the number of deployments that forked cwman because the
+     * daemon couldn't be reached.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    @Override
+    public void destroy() {
+        readers.shutdownNow();
+        synchronized (idle) {
+            idle.forEach(Connection::close);
+            idle.clear();
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        long idleSince;
+        boolean reused;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 8);
+        }
+
+        void writeFrame(byte type, byte[] b) throws IOException {
+            writeFrame(type, b, 0, b.length);
+        }
+
+        void writeFrame(byte type, byte[] b, int off, int len) throws IOException {
+            out.write(new byte[] {
+                type, 0, 0, 0,
+                (byte)(len >>> 24), (byte)(len >>> 16), (byte)(len >>> 8), (byte)len
+            });
+            out.write(b, off, len);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * A deployment running on the daemon.
+     */
+    private class AgentProcess extends RepoDeployer.DeployerProcess {
+        private final Connection conn;
+        private final OutputStream stdout, stderr;
+        private final StdinStream input = new StdinStream();
+        private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+        AgentProcess(Connection conn, OutputStream stdout, OutputStream stderr) {
+            this.conn = conn;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        /**
+         * Copy output frames to the output streams until the exit status
+         * is received.
+         */
+        void pump() {
+            try {
+                byte[] header = new byte[8];
+                byte[] buf = new byte[8192];
+                for (;;) {
+                    conn.in.readFully(header);
+                    int size = ((header[4] & 0xff) << 24) | ((header[5] & 0xff) << 16)
+                             | ((header[6] & 0xff) << 8) | (header[7] & 0xff);
+
+                    if (header[0] == EXIT) {
+                        if (size != 4) {
+                            throw new IOException("Malformed exit frame from deploy agent");
+                        }
+                        exit.complete(conn.in.readInt());
+                        return;
+                    }
+
+                    OutputStream out = header[0] == StdWriter.Stdout ? stdout
+                                     : header[0] == StdWriter.Stderr ? stderr
+                                     : null;
+                    while (size > 0) {
+                        int n = conn.in.read(buf, 0, Math.min(size, buf.length));
+                        if (n < 0) {
+                            throw new EOFException();
+                        }
+                        if (out != null) {
+                            out.write(buf, 0, n);
+                        }
+                        size -= n;
+                    }
+                    if (out != null) {
+                        out.flush();
+                    }
+                }
+            } catch (Throwable ex) {
+                exit.completeExceptionally(ex);
+            }
+        }
+
+        @Override
+        OutputStream stdin() {
+            return input;
+        }
+
+        @Override
+        int await() throws IOException, InterruptedException {
+            int status;
+            try {
+                status = exit.get();
+            } catch (InterruptedException ex) {
+                destroy();
+                throw ex;
+            } catch (CancellationException ex) {
+                throw new InterruptedIOException("Deployment aborted");
+            } catch (ExecutionException ex) {
+                conn.close();
+                throw new IOException("Lost connection to deploy agent", ex.getCause());
+            }
+
+            // The connection is in a known state only if all input was sent
+            if (input.closed) {
+                release(conn);
+            } else {
+                conn.close();
+            }
+            return status;
+        }
+
+        @Override
+        void destroy() {
+            exit.cancel(false);
+            conn.close();
+        }
+
+        /**
+         * Sends the archive as stdin frames.
+         */
+        private class StdinStream extends OutputStream {
+            private final byte[] buf = new byte[CHUNK_SIZE];
+            private int count;
+            volatile boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buf.length) {
+                    drain();
+                }
+                buf[count++] = (byte)b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buf.length) {
+                        drain();
+                    }
+                    int n = Math.min(len, buf.length - count);
+                    System.arraycopy(b, off, buf, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            private void drain() throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (count > 0) {
+                    conn.writeFrame(StdWriter.Stdin, buf, 0, count);
+                    count = 0;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                drain();
+                conn.out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    drain();
+                    conn.writeFrame(StdWriter.Stdin, buf, 0, 0);
+                    conn.out.flush();
+                    closed = true;
+                }
+            }
+        }
+    }
+}
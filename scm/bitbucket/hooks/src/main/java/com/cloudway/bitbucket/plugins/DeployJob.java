@@ -0,0 +1,123 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * A deployment running in the background, with its output kept in a
+ * {@link DeployLog}.
+ */
+public class DeployJob {
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final String id;
+    private final Repository repository;
+    private final String name;
+    private final Ref ref;
+    private final boolean force;
+    private final DeployTrace trace;
+    private final DeployLog log;
+    private final long created = System.currentTimeMillis();
+    final long queuedAt = System.nanoTime();
+
+    private volatile State state = State.QUEUED;
+    private volatile long started, finished;
+    private volatile String error;
+
+    DeployJob(String id, Repository repository, String name, Ref ref, boolean force,
+              DeployTrace trace, DeployLog log) {
+        this.id = id;
+        this.repository = repository;
+        this.name = name;
+        this.ref = ref;
+        this.force = force;
+        this.trace = trace;
+        this.log = log;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the name of the application deployed.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Ref getRef() {
+        return ref;
+    }
+
+    /**
+     * Returns true if the ref is deployed even if its tree is already deployed.
+     */
+    public boolean isForce() {
+        return force;
+    }
+
+    public DeployTrace getTrace() {
+        return trace;
+    }
+
+    public DeployLog getLog() {
+        return log;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    /**
+     * Returns the error that failed the job, or null.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns the time the job started running, or 0 if still queued.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Returns the time the job finished, or 0 if not done.
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    void start() {
+        started = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    void finish(boolean success, String error) {
+        this.error = error;
+        finished = System.currentTimeMillis();
+        state = success ? State.SUCCEEDED : State.FAILED;
+    }
+}
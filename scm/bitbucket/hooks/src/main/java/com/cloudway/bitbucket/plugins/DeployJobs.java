@@ -0,0 +1,288 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.cloudway.bitbucket.plugins.rest.StdMultiplexer;
+import com.cloudway.bitbucket.plugins.rest.StdWriter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Runs deployments requested over REST as background jobs.
+ *
+ * <p>A job is only accepted once admitted by {@link DeployAdmission}, so
+ * the deployer starts as soon as a worker picks it up. The output of a
+ * job is kept in a log file under {@code job.dir}, up to
+ * {@code job.log.max} bytes of deployer output (default: 16 MiB). Finished
+ * jobs are kept for {@code job.retention} seconds (default: 3600), and at
+ * most {@code job.max} jobs are kept (default: 1000).</p>
+ */
+public class DeployJobs implements DisposableBean {
+    private final RepoDeployer deployer;
+    private final DeployAdmission admission;
+    private final SecurityService securityService;
+    private final DeployMetrics metrics;
+    private final DeployTracer tracer;
+    private final LogFlusher logFlusher;
+    private final ThreadPoolExecutor executor;
+
+    private final Path dir;
+    private final long maxLogSize;
+    private final long retention;
+    private final int maxJobs;
+
+    // by insertion order, so the oldest jobs come first
+    private final Map<String, DeployJob> jobs = new LinkedHashMap<>();
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    public DeployJobs(RepoDeployer deployer, DeployAdmission admission,
+                      SecurityService securityService, DeployMetrics metrics,
+                      DeployTracer tracer, LogFlusher logFlusher)
+        throws IOException
+    {
+        this.deployer = deployer;
+        this.admission = admission;
+        this.securityService = securityService;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        this.logFlusher = logFlusher;
+
+        this.dir = Paths.get(DeployerConfig.getString("job.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "cloudway-jobs").toString()));
+        this.maxLogSize = DeployerConfig.getLong("job.log.max", 16 * 1024 * 1024);
+        this.retention = TimeUnit.SECONDS.toMillis(DeployerConfig.getLong("job.retention", 3600));
+        this.maxJobs = Math.max(1, DeployerConfig.getInt("job.max", 1000));
+
+        // Logs of a previous instance can't be read anymore
+        if (Files.exists(dir)) {
+            FileUtils.cleanDirectory(dir.toFile());
+        } else {
+            Files.createDirectories(dir);
+        }
+
+        // Each queued job holds an admission permit, so there is no point in
+        // having less workers than permits.
+        int workers = admission.getLimit();
+        this.executor = new ThreadPoolExecutor(
+            workers, workers, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-deploy-job-%d")
+                .setDaemon(true)
+                .build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a deployment of the given ref to the named application, waiting
+     * for admission. Unless forced, the deployment is skipped if the tree is
+     * already deployed.
+     * The deployment is traced with the given trace ID, or a generated one
+     * if null.
+     *
+     * @throws DeployRejectedException if the deployment is not admitted in time
+     */
+    public DeployJob submit(Repository repository, String name, Ref ref, boolean force, String traceId)
+        throws IOException
+    {
+        DeployTrace trace = tracer.start(traceId, repository, "deploy");
+        DeployAdmission.Permit permit;
+        long start = System.nanoTime();
+        try {
+            permit = admission.tryAcquire(repository.getProject().getKey());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        trace.record("admission", start, System.nanoTime() - start);
+
+        String id = UUID.randomUUID().toString();
+        DeployJob job;
+        try {
+            job = new DeployJob(id, repository, name, ref, force, trace, new DeployLog(dir.resolve(id + ".log")));
+        } catch (IOException | RuntimeException ex) {
+            permit.close();
+            throw ex;
+        }
+
+        List<DeployJob> expired;
+        synchronized (jobs) {
+            jobs.put(id, job);
+            expired = expire();
+        }
+        expired.forEach(j -> j.getLog().delete());
+
+        try {
+            executor.execute(() -> {
+                try (DeployAdmission.Permit p = permit) {
+                    run(job);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+            permit.close();
+            job.finish(false, "Deployer is shutting down");
+            job.getLog().close();
+        }
+        return job;
+    }
+
+    /**
+     * Returns the job with the given ID, or null if unknown or expired.
+     */
+    public DeployJob get(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * Remove finished jobs past retention, and the oldest finished jobs
+     * above the maximum number of jobs.
+     */
+    private List<DeployJob> expire() {
+        List<DeployJob> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        int excess = jobs.size() - maxJobs;
+
+        for (Iterator<DeployJob> it = jobs.values().iterator(); it.hasNext(); ) {
+            DeployJob job = it.next();
+            if (job.isDone() && (excess > 0 || now - job.getFinished() > retention)) {
+                it.remove();
+                expired.add(job);
+                excess--;
+            }
+        }
+        return expired;
+    }
+
+    private void run(DeployJob job) {
+        Repository repository = job.getRepository();
+        metrics.recordSince(DeployMetrics.QUEUE_WAIT, repository.getProject().getKey(), job.queuedAt);
+        job.getTrace().record("queue", job.queuedAt, System.nanoTime() - job.queuedAt);
+        job.start();
+
+        boolean success = false;
+        String error = null;
+        try (DeployTrace.Scope scope = job.getTrace().attach();
+             StdMultiplexer mux = logFlusher.multiplex(job.getLog())) {
+            AtomicLong budget = new AtomicLong(maxLogSize);
+            OutputStream stdout = new CappedOutputStream(mux.stream(StdWriter.Stdout), budget);
+            OutputStream stderr = new CappedOutputStream(mux.stream(StdWriter.Stderr), budget);
+
+            // Worker threads have no authenticated user, so run the deployment
+            // with repository permission.
+            success = securityService.withPermission(Permission.REPO_ADMIN, "Deploy job").call(() ->
+                deployer.deploy(repository, job.getRef(), job.getName(), job.isForce(), stdout, stderr));
+            if (!success) {
+                error = "Deployer failed";
+            }
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Deploy job " + job.getId() + " failed", ex);
+            error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+        } finally {
+            if (!success) {
+                writeError(job, error);
+            }
+            // readers check the state when they reach the end of the log
+            tracer.finish(job.getTrace(), success);
+            job.finish(success, error);
+            job.getLog().close();
+        }
+    }
+
+    /**
+     * End the log of a failed job with an error record on the data stream,
+     * which {@code serverlog.Drain} of the Go clients returns as an error,
+     * since the response status was sent before the job failed.
+     */
+    private void writeError(DeployJob job, String error) {
+        try (StdMultiplexer mux = logFlusher.multiplex(job.getLog())) {
+            String record = new ObjectMapper().writeValueAsString(
+                Collections.singletonMap("err", Collections.singletonMap("msg", error)));
+            mux.stream(StdWriter.Data).write((record + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to log the error of deploy job " + job.getId(), ex);
+        }
+    }
+
+    /**
+     * Drops deployer output once the shared budget of a job is used up,
+     * instead of failing the deployer.
+     */
+    private static class CappedOutputStream extends FilterOutputStream {
+        private static final byte[] TRUNCATED =
+            "\n[log truncated]\n".getBytes(StandardCharsets.UTF_8);
+
+        private final AtomicLong budget;
+
+        CappedOutputStream(OutputStream out, AtomicLong budget) {
+            super(out);
+            this.budget = budget;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long before = budget.getAndAdd(-len);
+            if (before >= len) {
+                out.write(b, off, len);
+            } else if (before > 0) {
+                out.write(b, off, (int)before);
+                out.write(TRUNCATED);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        synchronized (jobs) {
+            jobs.values().forEach(j -> j.getLog().delete());
+            jobs.clear();
+        }
+    }
+}
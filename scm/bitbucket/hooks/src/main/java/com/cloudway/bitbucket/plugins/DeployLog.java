@@ -0,0 +1,178 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The multiplexed output of a deploy job, spilled to a file so it can be
+ * read from any offset by any number of readers while it is written. The
+ * file is held open only while the job writes to it, and by each reader
+ * until the reader is closed.
+ */
+public class DeployLog extends OutputStream {
+    private final Path file;
+    private final FileChannel channel;
+    private long size;
+    private boolean closed, deleted;
+
+    DeployLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        long pos = size;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        size = pos;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the log is complete.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Mark the log complete and release the file written to. Readers see
+     * the end of stream after the last byte written.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        closeChannel();
+    }
+
+    /**
+     * Close the log and delete its file. Readers fail on the next read.
+     */
+    synchronized void delete() {
+        closed = deleted = true;
+        notifyAll();
+        closeChannel();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // ignored
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // ignored
+        }
+    }
+
+    /**
+     * Returns a stream that reads the log from the given offset, blocking
+     * for more output until the log is complete. The stream must be closed
+     * to release the file.
+     */
+    public InputStream openStream(long offset) {
+        return new Reader(offset);
+    }
+
+    private class Reader extends InputStream {
+        private long pos;
+        private FileChannel in; // opened on the first read
+
+        Reader(long pos) {
+            this.pos = Math.max(0, pos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            int n;
+            synchronized (DeployLog.this) {
+                try {
+                    while (pos >= size && !closed) {
+                        DeployLog.this.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (deleted) {
+                    throw new IOException("Deploy log was deleted");
+                }
+                if (pos >= size) {
+                    return -1;
+                }
+                n = (int)Math.min(len, size - pos);
+            }
+
+            // positional reads are safe while the writer appends
+            if (in == null) {
+                in = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            n = in.read(ByteBuffer.wrap(b, off, n), pos);
+            if (n < 0) {
+                throw new IOException("Deploy log was truncated");
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            synchronized (DeployLog.this) {
+                return (int)Math.min(Integer.MAX_VALUE, Math.max(0, size - pos));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
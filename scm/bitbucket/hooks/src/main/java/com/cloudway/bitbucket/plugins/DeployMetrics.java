@@ -0,0 +1,225 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Timers and counters for the phases of deploy, archive and populate.
+ *
+ * <p>Every metric is kept per project and in total under {@link #ALL}. Only
+ * the first {@code metrics.projects.max} projects seen are kept apart
+ * (default: 100), later ones are counted together under {@link #OTHER}.
+ * Metrics are registered as MBeans in the {@value #DOMAIN} domain, as
+ * {@code type=Histogram} or {@code type=Counter} with {@code name} and
+ * {@code project} keys.</p>
+ */
+public class DeployMetrics implements DisposableBean, DeployMetricsMXBean {
+    public static final String ALL = "_all";
+    public static final String OTHER = "_other";
+    public static final String DOMAIN = "com.cloudway.deployer";
+
+    // Durations in milliseconds, sizes in bytes
+    public static final String DEPLOY_TIME          = "deploy.time";
+    public static final String DEPLOY_SKIPPED       = "deploy.skipped";
+    public static final String DEPLOY_TIMEOUT       = "deploy.timeout";
+    public static final String DEPLOY_CANCELLED     = "deploy.cancelled";
+    public static final String DEPLOY_RECLAIMED     = "deploy.reclaimed";
+    public static final String QUEUE_WAIT           = "deploy.queue.wait";
+    public static final String ADMISSION_WAIT       = "deploy.admission.wait";
+    public static final String ADMISSION_REJECTED   = "deploy.admission.rejected";
+    public static final String ARCHIVE_TIME         = "archive.time";
+    public static final String ARCHIVE_BYTES        = "archive.bytes";
+    public static final String DEPLOYER_TIME        = "cwman.time";
+    public static final String DEPLOYER_EXIT        = "cwman.exit.";
+    public static final String AGENT_FALLBACK       = "cwman.agent.fallback";
+    public static final String POPULATE_TIME        = "populate.time";
+    public static final String POPULATE_EXTRACT     = "populate.extract.time";
+    public static final String POPULATE_COMMIT      = "populate.commit.time";
+    public static final String POPULATE_IMPORT      = "populate.import.time";
+    public static final String POPULATE_CLONE       = "populate.clone.time";
+    public static final String POPULATE_FETCH       = "populate.mirror.time";
+    public static final String POPULATE_PUSH        = "populate.push.time";
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, Counter>> counters = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    // Projects whose metrics are kept apart, so the number of MBeans is bounded
+    private final int maxProjects;
+    private final Set<String> projects = ConcurrentHashMap.newKeySet();
+
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final Set<ObjectName> registered = new CopyOnWriteArraySet<>();
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+
+    public static class Counter implements CounterMXBean {
+        private final AtomicLong count = new AtomicLong();
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    public DeployMetrics() {
+        this(DeployerConfig.getInt("metrics.projects.max", 100));
+    }
+
+    public DeployMetrics(int maxProjects) {
+        this.maxProjects = Math.max(0, maxProjects);
+        register("type=Deployer", this);
+    }
+
+    /**
+     * Record a value of a histogram metric.
+     */
+    public void record(String name, String project, long value) {
+        histogram(name, ALL).update(value);
+        if (project != null) {
+            histogram(name, bucket(project)).update(value);
+        }
+    }
+
+    /**
+     * Record the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(String name, String project, long startNanos) {
+        record(name, project, (System.nanoTime() - startNanos) / 1000000);
+    }
+
+    public void increment(String name, String project) {
+        counter(name, ALL).increment();
+        if (project != null) {
+            counter(name, bucket(project)).increment();
+        }
+    }
+
+    /**
+     * Returns the key the metrics of the given project are kept under.
+     */
+    private String bucket(String project) {
+        if (projects.contains(project)) {
+            return project;
+        }
+        synchronized (projects) {
+            if (projects.size() < maxProjects) {
+                projects.add(project);
+                return project;
+            }
+        }
+        return OTHER;
+    }
+
+    private Histogram histogram(String name, String project) {
+        ConcurrentMap<String, Histogram> byProject =
+            histograms.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        return byProject.computeIfAbsent(project, p -> {
+            Histogram h = new Histogram();
+            register("type=Histogram,name=" + ObjectName.quote(name) + ",project=" + ObjectName.quote(p), h);
+            return h;
+        });
+    }
+
+    private Counter counter(String name, String project) {
+        ConcurrentMap<String, Counter> byProject =
+            counters.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        return byProject.computeIfAbsent(project, p -> {
+            Counter c = new Counter();
+            register("type=Counter,name=" + ObjectName.quote(name) + ",project=" + ObjectName.quote(p), c);
+            return c;
+        });
+    }
+
+    private void register(String properties, Object mbean) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (mbeanServer.isRegistered(name)) {
+                // left over from a previous instance of the plugin
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(mbean, name);
+            registered.add(name);
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Failed to register MBean " + properties, ex);
+        }
+    }
+
+    /**
+     * Mark the start of a deployment.
+     */
+    public void enterDeploy() {
+        int n = inFlight.incrementAndGet();
+        int m;
+        while (n > (m = maxInFlight.get()) && !maxInFlight.compareAndSet(m, n))
+            ;
+    }
+
+    /**
+     * Mark the end of a deployment.
+     */
+    public void exitDeploy() {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public int getDeploysInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getMaxDeploysInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * Returns histograms by metric name and project.
+     */
+    public Map<String, ? extends Map<String, Histogram>> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Returns counters by metric name and project.
+     */
+    public Map<String, ? extends Map<String, Counter>> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    @Override
+    public void destroy() {
+        for (ObjectName name : registered) {
+            try {
+                mbeanServer.unregisterMBean(name);
+            } catch (JMException ex) {
+                // ignored
+            }
+        }
+        registered.clear();
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+/**
+ * JMX view of the {@link DeployMetrics} gauges.
+ */
+public interface DeployMetricsMXBean {
+    int getDeploysInFlight();
+    int getMaxDeploysInFlight();
+}
@@ -0,0 +1,31 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a deployment is not admitted in time because too many
+ * deployments are in progress.
+ */
+public class DeployRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+    public DeployRejectedException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the number of seconds after which the deployment may be retried.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
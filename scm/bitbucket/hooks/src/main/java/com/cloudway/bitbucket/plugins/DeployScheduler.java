@@ -0,0 +1,309 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Runs push-triggered deployments on a bounded worker pool.
+ *
+ * <p>Deployments are coalesced per repository: at most one deployment of a
+ * repository is running and at most one more is waiting. A push that arrives
+ * while a deployment is already waiting only replaces its target ref, so a
+ * burst of pushes costs at most two deployments.</p>
+ *
+ * <p>A deployment may target several applications, such as the previews
+ * of feature branches. Applications whose refs have the same tree share
+ * one archive, and the others are deployed concurrently. Each application
+ * takes an admission slot, so a group is split when it has more
+ * applications than can be admitted at once.</p>
+ */
+public class DeployScheduler implements DisposableBean {
+    private final RepoDeployer deployer;
+    private final DeployAdmission admission;
+    private final SecurityService securityService;
+    private final DeployMetrics metrics;
+    private final DeployTracer tracer;
+    private final ThreadPoolExecutor executor;
+    private final ExecutorService previews;
+    private final ConcurrentMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    /**
+     * Per-repository scheduling state, only accessed inside {@code slots.compute}.
+     */
+    private static class Slot {
+        Repository repository;
+        Map<String, Ref> pending; // the refs to deploy next by application, null if nothing is waiting
+        long queuedAt;  // System.nanoTime() when pending was set
+        boolean busy;   // a task for this repository is queued or running
+    }
+
+    public DeployScheduler(RepoDeployer deployer, DeployAdmission admission,
+                           SecurityService securityService, DeployMetrics metrics,
+                           DeployTracer tracer) {
+        this.deployer = deployer;
+        this.admission = admission;
+        this.securityService = securityService;
+        this.metrics = metrics;
+        this.tracer = tracer;
+
+        int workers = Math.max(1, DeployerConfig.getInt("deploy.workers", 2));
+        this.executor = new ThreadPoolExecutor(
+            workers, workers, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-deployer-%d")
+                .setDaemon(true)
+                .build());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        // Additional applications of a deployment, bounded by the admission
+        this.previews = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-preview-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Schedule a deployment of the given ref. If a deployment of the same
+     * repository is already waiting, its target is replaced by this ref.
+     */
+    public void schedule(Repository repository, Ref ref) {
+        schedule(repository, Collections.singletonMap(RepoDeployer.getApplicationName(repository), ref));
+    }
+
+    /**
+     * Schedule a deployment of the given refs keyed by application name. If
+     * a deployment of the same repository is already waiting, these refs are
+     * added to its targets, replacing the refs of the same applications.
+     */
+    public void schedule(Repository repository, Map<String, Ref> targets) {
+        final boolean[] submit = new boolean[1];
+
+        submitted.incrementAndGet();
+        slots.compute(repository.getId(), (id, slot) -> {
+            if (slot == null) {
+                slot = new Slot();
+            }
+            if (slot.pending != null) {
+                coalesced.incrementAndGet();
+            } else {
+                queued.incrementAndGet();
+                slot.queuedAt = System.nanoTime();
+                slot.pending = new LinkedHashMap<>();
+            }
+            slot.repository = repository;
+            slot.pending.putAll(targets);
+            if (!slot.busy) {
+                slot.busy = true;
+                submit[0] = true;
+            }
+            return slot;
+        });
+
+        if (submit[0]) {
+            submit(repository.getId());
+        }
+    }
+
+    private void submit(int repoId) {
+        executor.execute(() -> run(repoId));
+    }
+
+    private void run(int repoId) {
+        final Repository[] repository = new Repository[1];
+        @SuppressWarnings("unchecked")
+        final Map<String, Ref>[] targets = new Map[1];
+        final long[] queuedAt = new long[1];
+
+        slots.computeIfPresent(repoId, (id, slot) -> {
+            repository[0] = slot.repository;
+            targets[0] = slot.pending;
+            queuedAt[0] = slot.queuedAt;
+            slot.pending = null;
+            return slot;
+        });
+
+        if (targets[0] != null) {
+            queued.decrementAndGet();
+            running.incrementAndGet();
+            metrics.recordSince(DeployMetrics.QUEUE_WAIT, repository[0].getProject().getKey(), queuedAt[0]);
+
+            // Pushes carry no trace ID, one is generated for the deployment
+            DeployTrace trace = tracer.start(null, repository[0], "push");
+            trace.record("queue", queuedAt[0], System.nanoTime() - queuedAt[0]);
+            boolean success = false;
+            try (DeployTrace.Scope scope = trace.attach()) {
+                success = deploy(repository[0], targets[0]);
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                logger.log(Level.SEVERE, "Push to deploy failed, trace " + trace.getId(), ex);
+            } finally {
+                running.decrementAndGet();
+                tracer.finish(trace, success);
+            }
+        }
+
+        // Run again if another push arrived while deploying, otherwise
+        // release the slot.
+        final boolean[] again = new boolean[1];
+        slots.computeIfPresent(repoId, (id, slot) -> {
+            if (slot.pending != null) {
+                again[0] = true;
+                return slot;
+            } else {
+                return null;
+            }
+        });
+        if (again[0]) {
+            submit(repoId);
+        }
+    }
+
+    private boolean deploy(Repository repository, Map<String, Ref> targets) throws Exception {
+        logger.fine("Push to deploy the repository " +
+                    repository.getSlug().toLowerCase() + "-" +
+                    repository.getProject().getKey().toLowerCase() +
+                    " to " + targets.keySet());
+
+        // Worker threads have no authenticated user, so run the deployment
+        // with repository permission.
+        List<RepoDeployer.DeployGroup> groups = new ArrayList<>();
+        for (RepoDeployer.DeployGroup group :
+                securityService.withPermission(Permission.REPO_ADMIN, "Push to deploy").call(() ->
+                    deployer.groupByTree(repository, targets))) {
+            // a group runs a deployer per application, each taking a slot
+            groups.addAll(group.split(admission.getMaxPermits()));
+        }
+        if (groups.isEmpty()) {
+            return true;
+        }
+
+        // Run the first group on this worker and the others concurrently
+        DeployTrace trace = DeployTrace.current();
+        List<Future<Boolean>> others = new ArrayList<>();
+        for (RepoDeployer.DeployGroup group : groups.subList(1, groups.size())) {
+            others.add(previews.submit(() -> {
+                try (DeployTrace.Scope scope = trace.attach()) {
+                    return deploy(repository, group);
+                }
+            }));
+        }
+        boolean success = deploy(repository, groups.get(0));
+        for (Future<Boolean> f : others) {
+            success &= f.get();
+        }
+        return success;
+    }
+
+    private boolean deploy(Repository repository, RepoDeployer.DeployGroup group) {
+        int count = group.getRefs().size();
+        // Pushes are never rejected, the worker waits for its turn
+        long start = System.nanoTime();
+        try (DeployAdmission.Permit permit = admission.acquire(repository.getProject().getKey(), count)) {
+            DeployTrace.span("admission", start);
+            Set<String> deployed =
+                securityService.withPermission(Permission.REPO_ADMIN, "Push to deploy").call(() ->
+                    deployer.deploy(repository, group));
+            completed.addAndGet(deployed.size());
+            failed.addAndGet(count - deployed.size());
+            return deployed.size() == count;
+        } catch (Exception ex) {
+            failed.addAndGet(count);
+            logger.log(Level.SEVERE, "Push to deploy " + group.getRefs().keySet() + " failed", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of repositories waiting for deployment.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of deployments currently running.
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * Returns the maximum number of concurrent deployments.
+     */
+    public int getWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns the number of deployment requests received.
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of deployment requests merged into a waiting deployment.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        previews.shutdownNow();
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The spans of a deployment, correlated by a trace ID that is accepted
+ * from the client or generated, and passed on to cwman.
+ *
+ * <p>The trace is attached to the threads working on the deployment, so
+ * stages deep in the deployer record their spans with {@link #span}
+ * without the trace being passed around.</p>
+ */
+public class DeployTrace {
+    // ENV is the environment variable holding the trace ID for cwman
+    public static final String ENV = "CLOUDWAY_TRACE_ID";
+
+    private static final ThreadLocal<DeployTrace> current = new ThreadLocal<>();
+
+    private final String id;
+    private final String repository;
+    private final String operation;
+    private final long started = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    // guarded by itself
+    private final List<Span> spans = new ArrayList<>();
+
+    private volatile long duration = -1;
+    private volatile boolean success;
+
+    /**
+     * A timed stage of the deployment.
+     */
+    public static class Span {
+        private final String name;
+        private final long offset, duration;
+
+        Span(String name, long offset, long duration) {
+            this.name = name;
+            this.offset = offset;
+            this.duration = duration;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the milliseconds from the start of the trace to the start of the span.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the duration of the span in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    DeployTrace(String id, String repository, String operation) {
+        this.id = id;
+        this.repository = repository;
+        this.operation = operation;
+    }
+
+    /**
+     * Returns the trace attached to the current thread, or null.
+     */
+    public static DeployTrace current() {
+        return current.get();
+    }
+
+    /**
+     * Returns the ID of the trace attached to the current thread, or null.
+     */
+    public static String currentId() {
+        DeployTrace trace = current.get();
+        return trace != null ? trace.id : null;
+    }
+
+    /**
+     * Record a span that started at the given {@link System#nanoTime}
+     * and ends now on the trace attached to the current thread, if any.
+     */
+    public static void span(String name, long startNanos) {
+        DeployTrace trace = current.get();
+        if (trace != null) {
+            trace.record(name, startNanos, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Record a span that started at the given {@link System#nanoTime}
+     * and lasted for the given milliseconds on the trace attached to the
+     * current thread, if any.
+     */
+    public static void span(String name, long startNanos, long millis) {
+        DeployTrace trace = current.get();
+        if (trace != null) {
+            trace.record(name, startNanos, millis * 1000000);
+        }
+    }
+
+    public void record(String name, long startNanos, long durationNanos) {
+        Span span = new Span(name, (startNanos - this.startNanos) / 1000000, durationNanos / 1000000);
+        synchronized (spans) {
+            spans.add(span);
+        }
+    }
+
+    /**
+     * Attach the trace to the current thread until the returned scope is closed.
+     */
+    public Scope attach() {
+        DeployTrace previous = current.get();
+        current.set(this);
+        return () -> {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        };
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    void finish(boolean success) {
+        this.success = success;
+        this.duration = (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the repository as {@code PROJECT/slug}.
+     */
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Returns the duration of the deployment in milliseconds, or -1 if
+     * still running.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public List<Span> getSpans() {
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+}
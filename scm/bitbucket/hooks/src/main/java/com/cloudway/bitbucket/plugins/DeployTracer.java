@@ -0,0 +1,166 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.cloudway.bitbucket.plugins.rest.TraceReport;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Keeps the traces of recent deployments.
+ *
+ * <p>The last {@code trace.ring} finished traces are kept in memory
+ * (default: 200; 0 disables tracing) and served over REST. If
+ * {@code trace.file} is set, every finished trace is also appended to that
+ * file as a line of JSON.</p>
+ */
+public class DeployTracer implements DisposableBean {
+    // Trace IDs accepted from clients
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+
+    private final int capacity;
+    private final Path file;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // guarded by itself, newest first
+    private final Deque<DeployTrace> ring = new ArrayDeque<>();
+
+    // guarded by ring
+    private Writer writer;
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    public DeployTracer() {
+        this.capacity = Math.max(0, DeployerConfig.getInt("trace.ring", 200));
+        String path = DeployerConfig.getString("trace.file", null);
+        this.file = path != null && !path.isEmpty() ? Paths.get(path) : null;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Start a trace of an operation on the given repository, with the ID
+     * given by the client if valid, or a generated one.
+     */
+    public DeployTrace start(String id, Repository repository, String operation) {
+        if (id == null || !VALID_ID.matcher(id).matches()) {
+            id = UUID.randomUUID().toString().replace("-", "");
+        }
+        String repo = repository.getProject().getKey() + "/" + repository.getSlug();
+        return new DeployTrace(id, repo, operation);
+    }
+
+    /**
+     * Finish the trace and export it.
+     */
+    public void finish(DeployTrace trace, boolean success) {
+        trace.finish(success);
+        logger.fine("Deployment trace " + trace.getId() + " of " + trace.getRepository() +
+                    " finished in " + trace.getDuration() + "ms");
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (ring) {
+            if (ring.size() == capacity) {
+                ring.removeLast();
+            }
+            ring.addFirst(trace);
+
+            if (file != null) {
+                try {
+                    if (writer == null) {
+                        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    }
+                    writer.write(mapper.writeValueAsString(new TraceReport(trace)));
+                    writer.write('\n');
+                    writer.flush();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Cannot write trace to " + file, ex);
+                    closeWriter();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the finished trace with the given ID, or null if unknown.
+     */
+    public DeployTrace get(String id) {
+        synchronized (ring) {
+            for (DeployTrace trace : ring) {
+                if (trace.getId().equals(id)) {
+                    return trace;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the most recent finished traces, slowest first if requested,
+     * optionally restricted to a repository given as {@code PROJECT/slug}.
+     */
+    public List<DeployTrace> recent(String repository, int limit, boolean slowest) {
+        List<DeployTrace> result = new ArrayList<>();
+        synchronized (ring) {
+            for (DeployTrace trace : ring) {
+                if (repository == null || repository.equals(trace.getRepository())) {
+                    result.add(trace);
+                }
+            }
+        }
+        if (slowest) {
+            result.sort((a, b) -> Long.compare(b.getDuration(), a.getDuration()));
+        }
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                // ignored
+            }
+            writer = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (ring) {
+            closeWriter();
+            ring.clear();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.utils.process.Watchdog;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Kills deployments that run too long, stop making progress, or are
+ * cancelled, so a hung deployer doesn't hold its thread, archive and
+ * processes forever.
+ *
+ * <p>A deployer is killed when it has run for {@code deploy.timeout} seconds
+ * (default: 1800), or has neither read its input nor written any output
+ * for {@code deploy.idle.timeout} seconds (default: 600). The git command
+ * feeding the deployer is cancelled with it. Archives requested over REST
+ * are limited to {@code archive.timeout} seconds (default: 600) and
+ * {@code archive.idle.timeout} seconds without output (default: 120).
+ * A timeout of 0 disables it.</p>
+ */
+public class DeployWatchdog implements DisposableBean {
+    private final DeployMetrics metrics;
+    private final long timeout;
+    private final long idleTimeout;
+    private final long archiveTimeout;
+    private final long archiveIdleTimeout;
+    private final ScheduledExecutorService timer;
+
+    private final Set<Guard> guards = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    public DeployWatchdog(DeployMetrics metrics) {
+        this.metrics = metrics;
+        this.timeout = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("deploy.timeout", 1800));
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("deploy.idle.timeout", 600));
+        this.archiveTimeout = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("archive.timeout", 600));
+        this.archiveIdleTimeout = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("archive.idle.timeout", 120));
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-watchdog-%d")
+                .setDaemon(true)
+                .build());
+        this.timer.scheduleWithFixedDelay(this::check, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Limit a git command feeding a deployer by the deployment timeouts.
+     */
+    public <T> GitCommand<T> limitDeploy(GitCommand<T> command) {
+        return limit(command, timeout, idleTimeout);
+    }
+
+    /**
+     * Limit a git command generating an archive by the archive timeouts.
+     */
+    public <T> GitCommand<T> limitArchive(GitCommand<T> command) {
+        return limit(command, archiveTimeout, archiveIdleTimeout);
+    }
+
+    private static <T> GitCommand<T> limit(GitCommand<T> command, long timeout, long idleTimeout) {
+        if (timeout > 0) {
+            command.setExecutionTimeout(Duration.ofNanos(timeout));
+        }
+        if (idleTimeout > 0) {
+            command.setIdleTimeout(Duration.ofNanos(idleTimeout));
+        }
+        return command;
+    }
+
+    /**
+     * Start guarding a deployment to the given application.
+     */
+    Guard guard(String name, String namespace) {
+        Guard guard = new Guard(name, namespace);
+        guards.add(guard);
+        return guard;
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Guard guard : guards) {
+            try {
+                if (timeout > 0 && now - guard.started > timeout) {
+                    guard.expire("timed out after " + TimeUnit.NANOSECONDS.toSeconds(timeout) + "s", false);
+                } else if (idleTimeout > 0 && now - guard.lastActivity > idleTimeout) {
+                    guard.expire("made no progress for " + TimeUnit.NANOSECONDS.toSeconds(idleTimeout) + "s", false);
+                }
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "Failed to kill deployer of " + guard, ex);
+            }
+        }
+    }
+
+    /**
+     * Cancel the running deployments to the named application of the given
+     * namespace, or to all applications of the namespace if the name is null.
+     *
+     * @return the number of deployments cancelled
+     */
+    public int cancel(String namespace, String name) {
+        int count = 0;
+        for (Guard guard : guards) {
+            if (guard.namespace.equals(namespace) && (name == null || guard.name.equals(name))) {
+                if (guard.expire("cancelled", true)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of deployments running.
+     */
+    public int getRunning() {
+        return guards.size();
+    }
+
+    /**
+     * Returns the number of deployments killed on timeout.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Returns the number of deployments cancelled.
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    @Override
+    public void destroy() {
+        timer.shutdownNow();
+        for (Guard guard : guards) {
+            guard.expire("aborted on shutdown", true);
+        }
+    }
+
+    /**
+     * Watches a running deployment.
+     */
+    class Guard implements AutoCloseable {
+        final String name, namespace;
+        final long started = System.nanoTime();
+        volatile long lastActivity = started;
+
+        private volatile Runnable killer;
+        private volatile Watchdog feeder;
+        private String reason; // guarded by this
+
+        Guard(String name, String namespace) {
+            this.name = name;
+            this.namespace = namespace;
+        }
+
+        /**
+         * Set the action that kills the deployer, run at once if the
+         * deployment already expired.
+         */
+        void watch(Runnable killer) {
+            this.killer = killer;
+            if (getReason() != null) {
+                killer.run();
+                metrics.increment(DeployMetrics.DEPLOY_RECLAIMED, null);
+            }
+        }
+
+        /**
+         * Link the watchdog of the git command feeding the deployer, which
+         * is kept alive while the deployer makes progress, and cancelled
+         * with the deployer.
+         */
+        void link(Watchdog watchdog) {
+            this.feeder = watchdog;
+        }
+
+        void touch() {
+            lastActivity = System.nanoTime();
+            Watchdog w = feeder;
+            if (w != null) {
+                w.resetWatchdog();
+            }
+        }
+
+        /**
+         * Returns a stream that records progress when written.
+         */
+        OutputStream monitor(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    touch();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    touch();
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Kill the deployment for the given reason.
+         *
+         * @return false if already expired
+         */
+        boolean expire(String reason, boolean cancel) {
+            synchronized (this) {
+                if (this.reason != null) {
+                    return false;
+                }
+                this.reason = reason;
+            }
+            guards.remove(this);
+
+            logger.warning("Deployment to " + this + " " + reason);
+            (cancel ? cancelled : timedOut).incrementAndGet();
+            metrics.increment(cancel ? DeployMetrics.DEPLOY_CANCELLED : DeployMetrics.DEPLOY_TIMEOUT, null);
+
+            Watchdog w = feeder;
+            if (w != null) {
+                w.cancel();
+            }
+            Runnable k = killer;
+            if (k != null) {
+                k.run();
+                metrics.increment(DeployMetrics.DEPLOY_RECLAIMED, null);
+            }
+            return true;
+        }
+
+        /**
+         * Returns why the deployment was killed, or null if it wasn't.
+         */
+        synchronized String getReason() {
+            return reason;
+        }
+
+        @Override
+        public void close() {
+            guards.remove(this);
+        }
+
+        @Override
+        public String toString() {
+            return name + "-" + namespace;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+/**
+ * Tunables for the deployer plugin. A setting named {@code deploy.workers} is
+ * looked up first as the system property {@code cloudway.deployer.deploy.workers}
+ * and then as the environment variable {@code CLOUDWAY_DEPLOYER_DEPLOY_WORKERS}.
+ */
+public final class DeployerConfig {
+    private static final String PROPERTY_PREFIX = "cloudway.deployer.";
+    private static final String ENV_PREFIX = "CLOUDWAY_DEPLOYER_";
+
+    private DeployerConfig() {}
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value == null) {
+            value = System.getenv(ENV_PREFIX + name.toUpperCase().replace('.', '_'));
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                // fall through to default
+            }
+        }
+        return defaultValue;
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // fall through to default
+            }
+        }
+        return defaultValue;
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Caches the resolved deployment ref of repositories.
+ *
+ * <p>An entry is dropped when the refs or the hook settings of its repository
+ * change, or when the repository is deleted. Events are only seen on the node
+ * that raised them, so entries also expire after {@code refcache.ttl} seconds
+ * (default: 300). At most {@code refcache.size} repositories are cached
+ * (default: 10000; 0 disables the cache).</p>
+ *
+ * <p>On a cluster, a ref pushed to another node would be served stale until
+ * the entry expires, and used for deployments and archive ETags. The cache
+ * is therefore bypassed while the instance is clustered, unless
+ * {@code refcache.cluster} is true (default: false).</p>
+ */
+public class DeploymentRefCache implements InitializingBean, DisposableBean {
+    private final EventPublisher eventPublisher;
+    private final ClusterService clusterService;
+    private final Cache<Integer, Optional<Ref>> cache;
+    private final long maxSize;
+    private final boolean clustered;
+
+    // Incremented on every invalidation, to discard refs resolved concurrently
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public DeploymentRefCache(EventPublisher eventPublisher, ClusterService clusterService) {
+        this(eventPublisher, clusterService,
+             DeployerConfig.getLong("refcache.size", 10000),
+             DeployerConfig.getLong("refcache.ttl", 300),
+             DeployerConfig.getBoolean("refcache.cluster", false));
+    }
+
+    public DeploymentRefCache(EventPublisher eventPublisher, ClusterService clusterService,
+                              long maxSize, long ttlSeconds, boolean clustered) {
+        this.eventPublisher = eventPublisher;
+        this.clusterService = clusterService;
+        this.maxSize = Math.max(0, maxSize);
+        this.clustered = clustered;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(this.maxSize)
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && (clustered || !clusterService.isClustered());
+    }
+
+    /**
+     * Returns the cached deployment ref of the repository, resolving it
+     * with the given function if not cached.
+     */
+    public Ref get(Repository repository, Supplier<Ref> resolver) {
+        if (!isEnabled()) {
+            // entries cached before another node joined may be stale
+            if (cache.size() > 0) {
+                cache.invalidateAll();
+            }
+            return resolver.get();
+        }
+
+        Integer key = repository.getId();
+        long generation = invalidations.get();
+        Optional<Ref> ref;
+        try {
+            ref = cache.get(key, () -> Optional.ofNullable(resolver.get()));
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw new IllegalStateException("Failed to resolve deployment branch", ex.getCause());
+        }
+
+        if (invalidations.get() != generation) {
+            // may have been resolved from stale data
+            cache.invalidate(key);
+        }
+        return ref.orElse(null);
+    }
+
+    public void invalidate(Repository repository) {
+        invalidations.incrementAndGet();
+        cache.invalidate(repository.getId());
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        invalidate(event.getRepository());
+    }
+
+    @EventListener
+    public void onHookSettingsChanged(RepositoryHookSettingsChangedEvent event) {
+        if (RepoDeployer.HOOK_KEY.equals(event.getRepositoryHookKey())) {
+            invalidate(event.getRepository());
+        }
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        invalidate(event.getRepository());
+    }
+
+    public long getEntries() {
+        return cache.size();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMisses() {
+        return cache.stats().missCount();
+    }
+
+    public double getHitRate() {
+        CacheStats stats = cache.stats();
+        return stats.requestCount() == 0 ? 0.0 : stats.hitRate();
+    }
+
+    public long getEvictions() {
+        return cache.stats().evictionCount();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+        cache.invalidateAll();
+    }
+}
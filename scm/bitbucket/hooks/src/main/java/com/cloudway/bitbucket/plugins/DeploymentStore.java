@@ -0,0 +1,77 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+
+/**
+ * Records the last successful deployment of every application, used as the
+ * base of delta deploys and to skip deploying an unchanged tree.
+ *
+ * <p>Deployments are kept in the plugin settings rather than in the hook
+ * settings edited by users, so recording one neither overwrites a concurrent
+ * edit nor raises a hook settings change. Each application of a repository
+ * has an entry of its own, written at once, so concurrent deployments of a
+ * repository don't lose each other's records.</p>
+ */
+public class DeploymentStore {
+    private static final String KEY_PREFIX = "com.cloudway.deployed.";
+    private static final String COMMIT = "commit";
+    private static final String TREE = "tree";
+
+    private final PluginSettingsFactory settingsFactory;
+
+    public DeploymentStore(PluginSettingsFactory settingsFactory) {
+        this.settingsFactory = settingsFactory;
+    }
+
+    /**
+     * Returns the commit of the last successful deployment of the given
+     * application, or null if unknown.
+     */
+    public String getCommit(Repository repository, String name) {
+        return get(repository, name).get(COMMIT);
+    }
+
+    /**
+     * Returns the tree of the last successful deployment of the given
+     * application, or null if unknown.
+     */
+    public String getTree(Repository repository, String name) {
+        return get(repository, name).get(TREE);
+    }
+
+    /**
+     * Record the successful deployment of the given commit and tree to
+     * the given application.
+     */
+    public void record(Repository repository, String name, String commit, String tree) {
+        Map<String, String> deployment = new HashMap<>();
+        deployment.put(COMMIT, commit);
+        deployment.put(TREE, tree);
+        settings().put(key(repository, name), deployment);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> get(Repository repository, String name) {
+        Object value = settings().get(key(repository, name));
+        return value instanceof Map ? (Map<String, String>)value : new HashMap<>();
+    }
+
+    private PluginSettings settings() {
+        return settingsFactory.createGlobalSettings();
+    }
+
+    private static String key(Repository repository, String name) {
+        return KEY_PREFIX + repository.getId() + "." + name;
+    }
+}
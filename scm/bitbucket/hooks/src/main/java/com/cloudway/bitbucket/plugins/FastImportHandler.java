@@ -0,0 +1,224 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Converts a template tarball into a {@code git fast-import} stream that
+ * creates a single commit of all files in the tarball, without extracting
+ * them. Files with the owner execute bit are committed as executable,
+ * symbolic links are kept and directories are implied by their files.
+ * Files ignored by the {@code .gitignore} files of the template are left
+ * out, as {@code git add --all} would, and so is any path with a
+ * {@code .git} component, which git refuses to check out.
+ */
+class FastImportHandler implements CommandInputHandler {
+    private static final String MODE_FILE = "100644";
+    private static final String MODE_EXECUTABLE = "100755";
+    private static final String MODE_SYMLINK = "120000";
+    private static final String GITIGNORE = ".gitignore";
+    private static final int MAX_GITIGNORE_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private final String ref;
+    private final String message;
+    private final String ident;
+
+    private OutputStream out;
+    private int marks;
+    private long files, bytes, ignored;
+    private final GitIgnore gitignore = new GitIgnore();
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    FastImportHandler(InputStream in, String ref, String message, String name, String email) {
+        this.in = in;
+        this.ref = ref;
+        this.message = message;
+        this.ident = name + " <" + email + ">";
+    }
+
+    @Override
+    public void process(OutputStream input) throws ProcessException {
+        out = new BufferedOutputStream(input, 64 * 1024);
+        try {
+            // path -> "mode :mark", later entries replace earlier ones
+            Map<String, String> tree = new LinkedHashMap<>();
+
+            TarArchiveInputStream tar = new TarArchiveInputStream(in, "UTF-8");
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                String path = normalize(entry.getName());
+                if (path == null || entry.isDirectory()) {
+                    continue;
+                }
+
+                if (entry.isSymbolicLink()) {
+                    byte[] target = entry.getLinkName().getBytes(StandardCharsets.UTF_8);
+                    blob(target.length);
+                    out.write(target);
+                    out.write('\n');
+                    tree.put(path, MODE_SYMLINK + " :" + marks);
+                } else if (entry.isLink()) {
+                    String target = tree.get(normalize(entry.getLinkName()));
+                    if (target != null) {
+                        tree.put(path, target);
+                    }
+                } else if (entry.isFile()) {
+                    long size = entry.getSize();
+                    blob(size);
+                    if (isGitIgnore(path) && size <= MAX_GITIGNORE_SIZE) {
+                        // the patterns apply to the whole tree, so files are
+                        // only filtered when committed
+                        byte[] content = new byte[(int)size];
+                        ByteStreams.readFully(tar, content);
+                        out.write(content);
+                        gitignore.add(path, new String(content, StandardCharsets.UTF_8));
+                    } else if (ByteStreams.copy(tar, out) != size) {
+                        throw new IOException("Truncated template entry " + entry.getName());
+                    }
+                    out.write('\n');
+                    tree.put(path, ((entry.getMode() & 0100) != 0 ? MODE_EXECUTABLE : MODE_FILE) + " :" + marks);
+                    files++;
+                    bytes += size;
+                } else {
+                    logger.fine("Skip template entry " + entry.getName());
+                }
+            }
+
+            commit(tree);
+            write("done\n");
+            out.flush();
+            logger.fine("Imported " + files + " files, " + bytes + " bytes, ignored " + ignored + " files");
+        } catch (IOException ex) {
+            throw new ProcessException(ex);
+        } finally {
+            try {
+                // fast-import rolls back without the "done" command
+                input.close();
+            } catch (IOException ex) {
+                // ignored
+            }
+        }
+    }
+
+    private void blob(long size) throws IOException {
+        write("blob\nmark :" + ++marks + "\ndata " + size + "\n");
+    }
+
+    private void commit(Map<String, String> tree) throws IOException {
+        String when = " " + System.currentTimeMillis() / 1000 + " +0000\n";
+        byte[] msg = (message + "\n").getBytes(StandardCharsets.UTF_8);
+
+        write("commit " + ref + "\n");
+        write("author " + ident + when);
+        write("committer " + ident + when);
+        write("data " + msg.length + "\n");
+        out.write(msg);
+        for (Map.Entry<String, String> e : tree.entrySet()) {
+            if (gitignore.isIgnored(e.getKey())) {
+                // the blob is written but unreachable, so never pushed
+                ignored++;
+                continue;
+            }
+            write("M " + e.getValue() + " " + quote(e.getKey()) + "\n");
+        }
+        write("\n");
+    }
+
+    private void write(String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the path of a tar entry relative to the top of the tree, or
+     * null if the entry can't be committed.
+     */
+    static String normalize(String name) {
+        StringBuilder path = new StringBuilder();
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..") || isDotGit(part)) {
+                return null;
+            }
+            if (path.length() != 0) {
+                path.append('/');
+            }
+            path.append(part);
+        }
+        return path.length() == 0 ? null : path.toString();
+    }
+
+    /**
+     * Returns whether a path component names the git directory, as checked
+     * by {@code git fsck}: in any case, with the trailing dots and spaces
+     * dropped by Windows, or as its 8.3 short name.
+     */
+    static boolean isDotGit(String part) {
+        int end = part.length();
+        while (end > 0 && (part.charAt(end - 1) == '.' || part.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        String name = part.substring(0, end);
+        return name.equalsIgnoreCase(".git") || name.equalsIgnoreCase("git~1");
+    }
+
+    private static boolean isGitIgnore(String path) {
+        return path.equals(GITIGNORE) || path.endsWith("/" + GITIGNORE);
+    }
+
+    /**
+     * C-style quote a path, as fast-import requires for paths containing
+     * line feeds or starting with a quote.
+     */
+    private static String quote(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 2).append('"');
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            switch (c) {
+            case '"':  sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            default:   sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    @Override
+    public void complete() throws ProcessException {
+        // nothing to do
+    }
+
+    @Override
+    public void setWatchdog(Watchdog watchdog) {
+        // noop
+    }
+}
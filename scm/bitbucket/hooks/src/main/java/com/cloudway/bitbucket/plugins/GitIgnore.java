@@ -0,0 +1,212 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Matches paths against the {@code .gitignore} files of a tree, so files
+ * committed without a work tree are the ones {@code git add --all} would
+ * add. Patterns follow gitignore(5): negation, directory-only patterns,
+ * patterns anchored by a slash, and {@code *}, {@code ?}, {@code [...]} and
+ * {@code **} wildcards. A file in an ignored directory is ignored, even if
+ * a later pattern would include it again.
+ */
+class GitIgnore {
+    // by directory of the .gitignore file, "" for the top of the tree
+    private final Map<String, List<Rule>> rules = new HashMap<>();
+
+    private static class Rule {
+        final Pattern pattern;
+        final boolean negated;
+        final boolean dirOnly;
+        final boolean anchored;
+
+        Rule(Pattern pattern, boolean negated, boolean dirOnly, boolean anchored) {
+            this.pattern = pattern;
+            this.negated = negated;
+            this.dirOnly = dirOnly;
+            this.anchored = anchored;
+        }
+
+        boolean matches(String path, boolean isDir) {
+            if (dirOnly && !isDir) {
+                return false;
+            }
+            String name = anchored ? path : path.substring(path.lastIndexOf('/') + 1);
+            return pattern.matcher(name).matches();
+        }
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Add the patterns of the {@code .gitignore} file at the given path.
+     */
+    public void add(String path, String content) {
+        int sep = path.lastIndexOf('/');
+        String dir = sep < 0 ? "" : path.substring(0, sep);
+
+        List<Rule> list = new ArrayList<>();
+        for (String line : content.split("\r?\n")) {
+            Rule rule = parse(line);
+            if (rule != null) {
+                list.add(rule);
+            }
+        }
+        if (!list.isEmpty()) {
+            rules.put(dir, list);
+        }
+    }
+
+    /**
+     * Returns whether the file at the given path is ignored.
+     */
+    public boolean isIgnored(String path) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+        for (int sep = path.indexOf('/'); sep > 0; sep = path.indexOf('/', sep + 1)) {
+            if (matches(path.substring(0, sep), true)) {
+                return true;
+            }
+        }
+        return matches(path, false);
+    }
+
+    private boolean matches(String path, boolean isDir) {
+        // deeper .gitignore files take precedence, and the last match wins
+        boolean ignored = false;
+        for (int sep = 0; sep >= 0; sep = path.indexOf('/', sep + 1)) {
+            String dir = path.substring(0, sep);
+            List<Rule> list = rules.get(dir);
+            if (list != null) {
+                String rel = dir.isEmpty() ? path : path.substring(sep + 1);
+                for (Rule rule : list) {
+                    if (rule.matches(rel, isDir)) {
+                        ignored = !rule.negated;
+                    }
+                }
+            }
+        }
+        return ignored;
+    }
+
+    private static Rule parse(String line) {
+        // trailing spaces are ignored unless escaped
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+            end--;
+        }
+        line = line.substring(0, end);
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+
+        boolean negated = line.startsWith("!");
+        if (negated) {
+            line = line.substring(1);
+        }
+        boolean dirOnly = line.endsWith("/");
+        if (dirOnly) {
+            line = line.substring(0, line.length() - 1);
+        }
+        boolean anchored = line.indexOf('/') >= 0;
+        if (line.startsWith("/")) {
+            line = line.substring(1);
+        }
+        if (line.isEmpty()) {
+            return null;
+        }
+        return new Rule(compile(line), negated, dirOnly, anchored);
+    }
+
+    /**
+     * Translate a glob into a regular expression.
+     */
+    static Pattern compile(String glob) {
+        StringBuilder re = new StringBuilder();
+        int n = glob.length();
+        for (int i = 0; i < n; ) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                boolean wholePart = i + 1 < n && glob.charAt(i + 1) == '*'
+                    && (i == 0 || glob.charAt(i - 1) == '/')
+                    && (i + 2 == n || glob.charAt(i + 2) == '/');
+                if (!wholePart) {
+                    re.append("[^/]*");
+                    i++;
+                } else if (i + 2 == n) {
+                    re.append(".*");                // "/**" matches everything inside
+                    i += 2;
+                } else {
+                    re.append("(?:.*/)?");          // "**/" matches zero or more directories
+                    i += 3;
+                }
+            } else if (c == '?') {
+                re.append("[^/]");
+                i++;
+            } else if (c == '[' && classEnd(glob, i) > 0) {
+                int close = classEnd(glob, i);
+                int j = i + 1;
+                re.append('[');
+                if (glob.charAt(j) == '!' || glob.charAt(j) == '^') {
+                    re.append('^');
+                    j++;
+                }
+                for (; j < close; j++) {
+                    char k = glob.charAt(j);
+                    if (k == '\\' && j + 1 < close) {
+                        k = glob.charAt(++j);
+                    }
+                    if ("\\[]&^".indexOf(k) >= 0) {
+                        re.append('\\');
+                    }
+                    re.append(k);
+                }
+                re.append(']');
+                i = close + 1;
+            } else if (c == '\\' && i + 1 < n) {
+                literal(glob.charAt(i + 1), re);
+                i += 2;
+            } else {
+                literal(c, re);
+                i++;
+            }
+        }
+        return Pattern.compile(re.toString());
+    }
+
+    /**
+     * Returns the index of the bracket closing the character class at the
+     * given index, or -1 if it is not closed. A bracket right after the
+     * opening one, or after its negation, is part of the class.
+     */
+    private static int classEnd(String glob, int start) {
+        int j = start + 1;
+        if (j < glob.length() && (glob.charAt(j) == '!' || glob.charAt(j) == '^')) {
+            j++;
+        }
+        if (j < glob.length() && glob.charAt(j) == ']') {
+            j++;
+        }
+        return glob.indexOf(']', j);
+    }
+
+    private static void literal(char c, StringBuilder re) {
+        if ("\\.[]{}()<>*+-=!?^$|&".indexOf(c) >= 0) {
+            re.append('\\');
+        }
+        re.append(c);
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with constant memory use.
+ *
+ * <p>Values below 16 are counted exactly, larger values fall into four
+ * buckets per power of two, so percentiles are accurate to about 12%.</p>
+ */
+public class Histogram implements HistogramMXBean {
+    private static final int EXACT = 16;
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = EXACT + (64 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public void update(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value))
+            ;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+    }
+
+    private static int index(long value) {
+        if (value < EXACT) {
+            return (int)value;
+        }
+        int lg = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (lg - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (lg - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the midpoint of the values counted in a bucket.
+     */
+    private static long value(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int lg = (index - EXACT) / SUB_BUCKETS + 4;
+        int sub = (index - EXACT) % SUB_BUCKETS;
+        long lower = (long)(SUB_BUCKETS + sub) << (lg - SUB_BITS);
+        long width = 1L << (lg - SUB_BITS);
+        return lower + width / 2;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Override
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    @Override
+    public long getMax() {
+        return count.get() == 0 ? 0 : max.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * Returns the estimated value below which the given fraction of values fall.
+     */
+    public long getPercentile(double quantile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.max(getMin(), Math.min(getMax(), value(i)));
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return getPercentile(0.50);
+    }
+
+    @Override
+    public long get75thPercentile() {
+        return getPercentile(0.75);
+    }
+
+    @Override
+    public long get95thPercentile() {
+        return getPercentile(0.95);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getPercentile(0.99);
+    }
+}
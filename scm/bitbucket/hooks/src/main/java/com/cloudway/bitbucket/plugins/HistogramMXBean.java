@@ -0,0 +1,21 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+/**
+ * JMX view of a {@link Histogram}.
+ */
+public interface HistogramMXBean {
+    long getCount();
+    long getMin();
+    long getMax();
+    double getMean();
+    long get50thPercentile();
+    long get75thPercentile();
+    long get95thPercentile();
+    long get99thPercentile();
+}
@@ -0,0 +1,100 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudway.bitbucket.plugins.rest.StdMultiplexer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Flushes multiplexed deployment logs. Each {@link StdMultiplexer} buffers
+ * up to {@code log.buffer.size} bytes (default: 32 KiB), written out at the
+ * latest {@code log.flush.interval} milliseconds after the oldest buffered
+ * byte (default: 50). Timed flushes of all logs share a pool of
+ * {@code log.flush.threads} threads (default: 4).
+ */
+public class LogFlusher implements DisposableBean {
+    private final int bufferSize;
+    private final long flushInterval;
+
+    // The timer only hands flushes to the flusher pool, so a slow client
+    // never delays flushes of other streams while a flusher is free.
+    private final ScheduledExecutorService timer;
+    private final ExecutorService flushers;
+
+    public LogFlusher() {
+        this(DeployerConfig.getInt("log.buffer.size", 32 * 1024),
+             DeployerConfig.getLong("log.flush.interval", 50),
+             DeployerConfig.getInt("log.flush.threads", 4));
+    }
+
+    public LogFlusher(int bufferSize, long flushInterval, int threads) {
+        this.bufferSize = bufferSize;
+        this.flushInterval = flushInterval;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-log-timer")
+                .setDaemon(true)
+                .build());
+
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-log-flusher-%d")
+                .setDaemon(true)
+                .build());
+        pool.allowCoreThreadTimeOut(true);
+        this.flushers = pool;
+    }
+
+    /**
+     * Returns a multiplexer writing frames to the given stream.
+     */
+    public StdMultiplexer multiplex(OutputStream out) {
+        return new StdMultiplexer(out, this, bufferSize);
+    }
+
+    /**
+     * Run the given flush on a flusher after the flush interval. Once
+     * destroyed, buffered output is only written when the buffer is full
+     * or the multiplexer is closed.
+     *
+     * @return the scheduled flush, or null if not scheduled
+     */
+    public ScheduledFuture<?> schedule(Runnable flush) {
+        try {
+            return timer.schedule(() -> {
+                try {
+                    flushers.execute(flush);
+                } catch (RejectedExecutionException ex) {
+                    // shut down
+                }
+            }, flushInterval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        timer.shutdownNow();
+        flushers.shutdownNow();
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream that compresses blocks of input in parallel, in the
+ * same way as pigz. Each block is compressed as a raw deflate stream primed
+ * with the last 32K of the previous block and terminated with a sync flush,
+ * so the concatenated blocks form a single standard gzip member.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICT_SIZE = 32 * 1024;
+
+    private final ExecutorService executor;
+    private final int level;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count;
+    private byte[] dict;
+    private long size;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int threads, int level)
+        throws IOException
+    {
+        super(out);
+        this.executor = executor;
+        this.level = level;
+        this.maxPending = Math.max(2, threads * 2);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        out.write(new byte[] {
+            0x1f, (byte)0x8b,           // magic
+            Deflater.DEFLATED,          // compression method
+            0,                          // flags
+            0, 0, 0, 0,                 // modification time
+            0,                          // extra flags
+            (byte)0xff                  // operating system: unknown
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte)b;
+        if (count == block.length) {
+            submit(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len | (b.length - (len + off)) | (off + len)) < 0)
+            throw new IndexOutOfBoundsException();
+
+        while (len > 0) {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Hand the current block to a compressor thread and start a new one.
+     */
+    private void submit(boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = count;
+        final byte[] dictionary = dict;
+
+        crc.update(input, 0, length);
+        size += length;
+
+        pending.add(executor.submit(() -> deflate(input, length, dictionary, last)));
+
+        if (length >= DICT_SIZE) {
+            dict = Arrays.copyOfRange(input, length - DICT_SIZE, length);
+        } else if (length > 0) {
+            dict = Arrays.copyOfRange(input, 0, length);
+        }
+        block = new byte[BLOCK_SIZE];
+        count = 0;
+
+        // Bound the memory held by compressed blocks waiting to be written
+        while (pending.size() >= maxPending) {
+            drain();
+        }
+    }
+
+    private byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input, 0, length);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buf = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    result.write(buf, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    result.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the oldest compressed block, waiting for it if necessary.
+     */
+    private void drain() throws IOException {
+        Future<byte[]> f = pending.poll();
+        try {
+            out.write(f.get());
+        } catch (InterruptedException ex) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            cancel();
+            throw new IOException("Compression failed", ex.getCause());
+        }
+    }
+
+    private void cancel() {
+        for (Future<byte[]> f : pending) {
+            f.cancel(false);
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Only completed blocks can be flushed without hurting compression
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            drain();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compress the remaining input and write the gzip trailer, without
+     * closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            submit(true);
+            while (!pending.isEmpty()) {
+                drain();
+            }
+        } finally {
+            cancel();
+        }
+
+        int crcValue = (int)crc.getValue();
+        int isize = (int)size;
+        out.write(new byte[] {
+            (byte)crcValue, (byte)(crcValue >> 8), (byte)(crcValue >> 16), (byte)(crcValue >> 24),
+            (byte)isize, (byte)(isize >> 8), (byte)(isize >> 16), (byte)(isize >> 24)
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Lets callers wait for Bitbucket to process a change to the refs of a
+ * repository, such as a push made on behalf of a user.
+ */
+public class RefChangeWaiter implements InitializingBean, DisposableBean {
+    private final EventPublisher eventPublisher;
+    private final ConcurrentMap<Integer, Set<CompletableFuture<Void>>> waiters = new ConcurrentHashMap<>();
+
+    public RefChangeWaiter(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Returns a future completed by the next change to the refs of the
+     * repository, or failed if the repository is deleted. It must be
+     * released with {@link #release} when no longer needed.
+     */
+    public CompletableFuture<Void> expect(Repository repository) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        waiters.computeIfAbsent(repository.getId(), k -> ConcurrentHashMap.newKeySet()).add(future);
+        return future;
+    }
+
+    public void release(Repository repository, CompletableFuture<Void> future) {
+        future.cancel(false);
+        waiters.computeIfPresent(repository.getId(), (k, set) -> {
+            set.remove(future);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        Set<CompletableFuture<Void>> set = waiters.get(event.getRepository().getId());
+        if (set != null) {
+            set.forEach(f -> f.complete(null));
+        }
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        Set<CompletableFuture<Void>> set = waiters.remove(event.getRepository().getId());
+        if (set != null) {
+            IOException ex = new IOException("Repository " + event.getRepository().getSlug() + " was deleted");
+            set.forEach(f -> f.completeExceptionally(ex));
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+        waiters.values().forEach(set -> set.forEach(f -> f.cancel(false)));
+        waiters.clear();
+    }
+}
@@ -8,16 +8,41 @@ package com.cloudway.bitbucket.plugins;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
 import java.nio.channels.Channels;
-import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
@@ -47,7 +72,13 @@ import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class RepoDeployer
 {
@@ -57,9 +88,55 @@ public class RepoDeployer
     private final RepositoryHookService repoHookService;
     private final RepositoryService repoService;
     private final RefService refService;
+    private final DeploymentRefCache refCache;
+    private final RefChangeWaiter refChanges;
+    private final ArchiveCache archiveCache;
+    private final ArchiveCompressor compressor;
+    private final TemplateMirrors mirrors;
+    private final DeploymentStore deployments;
+    private final DeployAgent agent;
+    private final DeployWatchdog watchdog;
+    private final DeployMetrics metrics;
 
     public static final String HOOK_KEY = "com.cloudway.bitbucket.plugins.repo-deployer:repo-deployer";
 
+    // Pipe git archive straight into the deployer instead of through a temporary file
+    private static final boolean STREAMING_DEPLOY = DeployerConfig.getBoolean("deploy.streaming", true);
+
+    // Send only the files changed since the last deployment, applied by cwman deploy --delta
+    private static final boolean DELTA_DEPLOY = DeployerConfig.getBoolean("deploy.delta", false);
+    private static final int DELTA_MAX_FILES = DeployerConfig.getInt("deploy.delta.maxfiles", 1000);
+
+    // Exit status of cwman deploy --delta when the application was not deployed from the base
+    static final int EXIT_DELTA_BASE = 3;
+
+    // Import template tarballs with git fast-import instead of a temporary working tree
+    private static final boolean FAST_IMPORT_POPULATE = DeployerConfig.getBoolean("populate.fastimport", true);
+
+    // Threads writing files extracted from template tarballs, the bytes of
+    // file bodies read ahead of them, and the largest file read ahead
+    private static final int EXTRACT_THREADS = DeployerConfig.getInt("populate.extract.threads", 4);
+    private static final int EXTRACT_BUFFER = DeployerConfig.getInt("populate.extract.buffer", 16 * 1024 * 1024);
+    private static final int EXTRACT_FILE_MAX = DeployerConfig.getInt("populate.extract.filemax", 1024 * 1024);
+
+    // Seed repositories from cached template mirrors with a single commit instead of the full history
+    private static final boolean SINGLE_COMMIT_POPULATE = DeployerConfig.getBoolean("populate.singlecommit", false);
+
+    // Seconds to wait for a populated repository to become non-empty
+    private static final long POPULATE_TIMEOUT = DeployerConfig.getLong("populate.timeout", 30);
+    private static final long POPULATE_RECHECK = TimeUnit.SECONDS.toNanos(1);
+
+    // The deployer executable, replaced by a stub in benchmarks
+    private static final String DEPLOYER_COMMAND = DeployerConfig.getString("deploy.command", "/usr/bin/cwman");
+
+    // Run the deployer in its own session, so the processes it starts are killed with it
+    private static final String SETSID_COMMAND = "/usr/bin/setsid";
+    private static final boolean SETSID = DeployerConfig.getBoolean("deploy.setsid",
+        Files.isExecutable(Paths.get(SETSID_COMMAND)));
+
+    // Seconds to wait for a terminated deployer before killing it
+    private static final long KILL_GRACE = DeployerConfig.getLong("deploy.kill.grace", 5);
+
     private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
     static {
         if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
@@ -80,191 +157,1573 @@ public class RepoDeployer
                         GitScmConfig gitScmConfig, HookService hookService,
                         RepositoryHookService repoHookService,
                         RepositoryService repoService,
-                        RefService refService) {
+                        RefService refService,
+                        DeploymentRefCache refCache,
+                        RefChangeWaiter refChanges,
+                        ArchiveCache archiveCache,
+                        ArchiveCompressor compressor,
+                        TemplateMirrors mirrors,
+                        DeploymentStore deployments,
+                        DeployAgent agent,
+                        DeployWatchdog watchdog,
+                        DeployMetrics metrics) {
         this.gitCommandBuilderFactory = gitCommandBuilderFactory;
         this.gitScmConfig    = gitScmConfig;
         this.hookService     = hookService;
         this.repoHookService = repoHookService;
         this.repoService     = repoService;
         this.refService      = refService;
+        this.refCache        = refCache;
+        this.refChanges      = refChanges;
+        this.archiveCache    = archiveCache;
+        this.compressor      = compressor;
+        this.mirrors         = mirrors;
+        this.deployments     = deployments;
+        this.agent           = agent;
+        this.watchdog        = watchdog;
+        this.metrics         = metrics;
     }
 
     public Ref getDeploymentBranch(Repository repository) {
-        Settings settings = repoHookService.getSettings(repository, HOOK_KEY);
-        return getDeploymentBranch(repository, settings);
+        return refCache.get(repository, () ->
+            resolveDeploymentBranch(repository, repoHookService.getSettings(repository, HOOK_KEY)));
     }
 
     public Ref getDeploymentBranch(Repository repository, Settings settings) {
+        return refCache.get(repository, () -> resolveDeploymentBranch(repository, settings));
+    }
+
+    private Ref resolveDeploymentBranch(Repository repository, Settings settings) {
         if (repoService.isEmpty(repository)) {
             return defaultRef;
         }
 
-        String refId = null;
-        Ref ref = null;
+        String refId = null;
+        Ref ref = null;
+
+        if (settings != null) {
+            refId = settings.getString("branch");
+        }
+        if (refId != null && !refId.isEmpty()) {
+            ref = refService.resolveRef(repository, refId);
+        }
+        if (ref == null) {
+            ref = refService.getDefaultBranch(repository);
+        }
+        return ref;
+    }
+
+    public Ref setDeploymentBranch(Repository repository, String refId) {
+        if (repoService.isEmpty(repository)) {
+            return defaultRef;
+        }
+
+        Ref ref = null;
+
+        if (refId != null && !refId.isEmpty()) {
+            ref = refService.resolveRef(repository, refId);
+        }
+        if (ref == null) {
+            ref = refService.getDefaultBranch(repository);
+        }
+
+        updateSettings(repository, "branch", ref.getId());
+        refCache.invalidate(repository);
+        return ref;
+    }
+
+    /**
+     * Returns the name of the application deployed from the deployment
+     * branch, which is the repository slug.
+     */
+    public static String getApplicationName(Repository repository) {
+        return repository.getSlug().toLowerCase();
+    }
+
+    /**
+     * Returns the preview applications configured by the {@code previews}
+     * hook setting, keyed by application name. The setting is a list of
+     * {@code ref=name} entries separated by commas or whitespace, such as
+     * {@code refs/heads/feature-x=feature-x}.
+     */
+    public static Map<String, String> getPreviewRefs(Repository repository, Settings settings) {
+        Map<String, String> previews = new LinkedHashMap<>();
+        String value = settings != null ? settings.getString("previews") : null;
+        if (value == null || value.isEmpty()) {
+            return previews;
+        }
+
+        String primary = getApplicationName(repository);
+        for (String entry : value.split("[,\\s]+")) {
+            int sep = entry.lastIndexOf('=');
+            if (sep <= 0 || sep == entry.length() - 1) {
+                if (!entry.isEmpty()) {
+                    logger.warning("Invalid preview " + entry + " in repository " + repository.getSlug());
+                }
+                continue;
+            }
+            String name = entry.substring(sep + 1).toLowerCase();
+            if (!name.equals(primary)) {
+                previews.putIfAbsent(name, entry.substring(0, sep));
+            }
+        }
+        return previews;
+    }
+
+    /**
+     * Returns the applications deployed from subdirectories of the deployment
+     * branch, keyed by application name, as configured by the {@code apps}
+     * hook setting. The setting is a list of {@code path=name} entries
+     * separated by commas or whitespace, such as {@code services/api=api}.
+     * The path is null for an application deployed from the whole tree,
+     * given as {@code .}.
+     */
+    public static Map<String, String> getApplicationPaths(Settings settings) {
+        Map<String, String> apps = new LinkedHashMap<>();
+        String value = settings != null ? settings.getString("apps") : null;
+        if (value == null || value.isEmpty()) {
+            return apps;
+        }
+
+        for (String entry : value.split("[,\\s]+")) {
+            int sep = entry.lastIndexOf('=');
+            if (sep < 0 || sep == entry.length() - 1) {
+                if (!entry.isEmpty()) {
+                    logger.warning("Invalid application path " + entry);
+                }
+                continue;
+            }
+            String path = entry.substring(0, sep).replaceAll("^/+|/+$", "");
+            if (path.isEmpty() || path.equals(".")) {
+                path = null;
+            } else if (path.startsWith("../") || path.contains("/../") || path.equals("..")) {
+                logger.warning("Invalid application path " + entry);
+                continue;
+            }
+            apps.putIfAbsent(entry.substring(sep + 1).toLowerCase(), path);
+        }
+        return apps;
+    }
+
+    /**
+     * Returns the subdirectory the given application is deployed from,
+     * or null if deployed from the whole tree.
+     */
+    public String getApplicationPath(Repository repository, String name) {
+        return getApplicationPaths(repoHookService.getSettings(repository, HOOK_KEY)).get(name);
+    }
+
+    /**
+     * Returns the revision of the tree deployed to the application.
+     */
+    private static String treeRev(Ref ref, String path) {
+        return path != null ? ref.getId() + ":" + path : ref.getId() + "^{tree}";
+    }
+
+    /**
+     * Returns the refs to deploy keyed by application name: the deployment
+     * branch, deployed to the applications configured with subdirectories
+     * if any or else to the repository application, followed by the preview
+     * refs that exist.
+     */
+    public Map<String, Ref> getDeploymentTargets(Repository repository) {
+        return getDeploymentTargets(repository, repoHookService.getSettings(repository, HOOK_KEY));
+    }
+
+    public Map<String, Ref> getDeploymentTargets(Repository repository, Settings settings) {
+        Map<String, Ref> targets = new LinkedHashMap<>();
+        Ref branch = getDeploymentBranch(repository, settings);
+        if (branch != null) {
+            Map<String, String> apps = getApplicationPaths(settings);
+            if (apps.isEmpty()) {
+                targets.put(getApplicationName(repository), branch);
+            } else {
+                apps.keySet().forEach(name -> targets.put(name, branch));
+            }
+        }
+        if (!repoService.isEmpty(repository)) {
+            getPreviewRefs(repository, settings).forEach((name, refId) -> {
+                Ref ref = refService.resolveRef(repository, refId);
+                if (ref != null) {
+                    targets.put(name, ref);
+                }
+            });
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the commit of the last successful deployment, or null if unknown.
+     */
+    public String getDeployedCommit(Repository repository) {
+        return getDeployedCommit(repository, getApplicationName(repository));
+    }
+
+    /**
+     * Returns the commit of the last successful deployment of the given
+     * application, or null if unknown.
+     */
+    public String getDeployedCommit(Repository repository, String name) {
+        return deployments.getCommit(repository, name);
+    }
+
+    /**
+     * Returns the tree of the last successful deployment of the given
+     * application, or null if unknown.
+     */
+    public String getDeployedTree(Repository repository, String name) {
+        return deployments.getTree(repository, name);
+    }
+
+    private void recordDeployment(Repository repository, String name, String commit, String tree) {
+        deployments.record(repository, name, commit, tree);
+    }
+
+    /**
+     * Returns true if the given tree is already deployed to the application,
+     * in which case the deployment is skipped and counted.
+     */
+    private boolean isDeployed(Repository repository, String name, String tree, OutputStream stdout)
+        throws IOException
+    {
+        if (!tree.equals(getDeployedTree(repository, name))) {
+            return false;
+        }
+
+        logger.info("Skip deploying " + name + "-" + repository.getProject().getKey().toLowerCase() +
+                    ", tree " + tree + " is already deployed");
+        metrics.increment(DeployMetrics.DEPLOY_SKIPPED, repository.getProject().getKey());
+        if (stdout != null) {
+            stdout.write(("Tree " + tree + " is already deployed, use force to redeploy\n")
+                             .getBytes(StandardCharsets.UTF_8));
+            stdout.flush();
+        }
+        return true;
+    }
+
+    private void updateSettings(Repository repository, String... keyValues) {
+        SettingsBuilder builder = repoHookService.createSettingsBuilder();
+        Settings settings = repoHookService.getSettings(repository, HOOK_KEY);
+        if (settings != null) {
+            builder.addAll(settings.asMap());
+        }
+        for (int i = 0; i < keyValues.length; i += 2) {
+            builder.add(keyValues[i], keyValues[i + 1]);
+        }
+        repoHookService.setSettings(repository, HOOK_KEY, builder.build());
+    }
+
+    /**
+     * Deploy the given ref.
+     *
+     * @return true if the deployer completed successfully
+     */
+    public boolean deploy(Repository repository, Ref ref, OutputStream stdout, OutputStream stderr) throws IOException {
+        return deploy(repository, ref, getApplicationName(repository), false, stdout, stderr);
+    }
+
+    /**
+     * Deploy the given ref to the named application. Unless forced, the
+     * deployment is skipped if the tree of the ref is already deployed.
+     *
+     * @return true if the deployer completed successfully or was skipped
+     */
+    public boolean deploy(Repository repository, Ref ref, String name, boolean force,
+                          OutputStream stdout, OutputStream stderr)
+        throws IOException
+    {
+        String project = repository.getProject().getKey();
+        long start = System.nanoTime();
+        metrics.enterDeploy();
+        try {
+            return doDeploy(repository, ref, name, force, stdout, stderr);
+        } finally {
+            metrics.exitDeploy();
+            metrics.recordSince(DeployMetrics.DEPLOY_TIME, project, start);
+        }
+    }
+
+    private boolean doDeploy(Repository repository, Ref ref, String name, boolean force,
+                             OutputStream stdout, OutputStream stderr)
+        throws IOException
+    {
+        // Retrieve namespace from repository
+        String namespace = repository.getProject().getKey().toLowerCase();
+        logger.fine("Deploy the repository " + name + "-" + namespace + " from branch " + ref.getDisplayId());
+
+        if (repoService.isEmpty(repository)) {
+            // Create empty archive file
+            Path archiveFile = Files.createTempFile("repo", ".tar");
+            DeploymentHandler handler = new DeploymentHandler(agent, watchdog, name, namespace, archiveFile, stdout, stderr);
+            TarArchiveOutputStream tar =
+                new TarArchiveOutputStream(
+                    new GZIPOutputStream(
+                        Files.newOutputStream(archiveFile)));
+            tar.close();
+
+            try {
+                logger.fine("Deploy an empty repository");
+                handler.complete();
+                logger.fine("Deployment successed");
+            } catch (Exception ex) {
+                // error already logged
+            }
+            recordPhases(repository, handler);
+            return handler.isSuccess();
+        }
+
+        // Pin the commit so the recorded deployment matches what was archived.
+        // An application deployed from a subdirectory gets the subtree only.
+        long resolveStart = System.nanoTime();
+        String path = getApplicationPath(repository, name);
+        String[] shas = resolveAll(repository, Arrays.asList(ref.getId() + "^{commit}", treeRev(ref, path)));
+        String commit = shas[0], tree = shas[1];
+        DeployTrace.span("resolve", resolveStart);
+
+        if (!force && isDeployed(repository, name, tree, stdout)) {
+            // merges, reverts and empty commits may leave the tree unchanged
+            recordDeployment(repository, name, commit, tree);
+            return true;
+        }
+
+        Boolean success = null;
+
+        if (DELTA_DEPLOY && path == null) {
+            String base = getDeployedCommit(repository, name);
+            if (base != null) {
+                success = deltaDeploy(repository, base, commit, name, namespace, stdout, stderr);
+            }
+        }
+
+        if (success == null) {
+            if (STREAMING_DEPLOY) {
+                success = streamDeploy(repository, path != null ? tree : commit, tree, commit, name, namespace, stdout, stderr);
+            } else {
+                // Create a temporary file to save the repository archive
+                Path archiveFile = Files.createTempFile("repo", ".tar");
+                DeploymentHandler handler = new DeploymentHandler(agent, watchdog, name, namespace, archiveFile, stdout, stderr,
+                                                                  "--commit=" + commit);
+
+                // Run git command to generate an archive file
+                GitCommand<Void> command = gitCommandBuilderFactory.builder(repository)
+                    .command("archive")
+                    .argument("--format=tar.gz")
+                    .argument("-o")
+                    .argument(archiveFile.toString())
+                    .argument(path != null ? tree : commit)
+                    .build(handler);
+
+                // The remaining task is performed in the command handler
+                try {
+                    watchdog.limitDeploy(command).call();
+                } finally {
+                    // left over if git failed or was killed before completion
+                    if (Files.deleteIfExists(archiveFile)) {
+                        metrics.increment(DeployMetrics.DEPLOY_RECLAIMED, repository.getProject().getKey());
+                    }
+                }
+                recordPhases(repository, handler);
+                success = handler.isSuccess();
+            }
+        }
+
+        if (success) {
+            recordDeployment(repository, name, commit, tree);
+        }
+        return success;
+    }
+
+    /**
+     * Applications whose refs have the same tree, deployed from one archive.
+     */
+    public static class DeployGroup {
+        final String tree;
+        final Map<String, Ref> refs = new LinkedHashMap<>();
+        final Map<String, String> commits = new LinkedHashMap<>();
+
+        DeployGroup(String tree) {
+            this.tree = tree;
+        }
+
+        public Map<String, Ref> getRefs() {
+            return refs;
+        }
+
+        /**
+         * Split the group into groups of at most the given number of
+         * applications, deployed separately from the same tree.
+         */
+        public List<DeployGroup> split(int max) {
+            if (refs.size() <= max) {
+                return Collections.singletonList(this);
+            }
+            List<DeployGroup> groups = new ArrayList<>();
+            DeployGroup group = null;
+            for (Map.Entry<String, Ref> e : refs.entrySet()) {
+                if (group == null || group.refs.size() == max) {
+                    group = new DeployGroup(tree);
+                    groups.add(group);
+                }
+                group.refs.put(e.getKey(), e.getValue());
+                group.commits.put(e.getKey(), commits.get(e.getKey()));
+            }
+            return groups;
+        }
+    }
+
+    /**
+     * Group the deployment targets by the tree of their refs, resolved
+     * with a single git command.
+     */
+    public List<DeployGroup> groupByTree(Repository repository, Map<String, Ref> targets) {
+        List<DeployGroup> groups = new ArrayList<>();
+        if (repoService.isEmpty(repository)) {
+            targets.forEach((name, ref) -> {
+                DeployGroup group = new DeployGroup(null);
+                group.refs.put(name, ref);
+                groups.add(group);
+            });
+            return groups;
+        }
+
+        // Applications deployed from a subdirectory are grouped by its tree,
+        // so only those whose subdirectory changed are deployed
+        Map<String, String> paths = getApplicationPaths(repoHookService.getSettings(repository, HOOK_KEY));
+        List<String> revs = new ArrayList<>();
+        for (Map.Entry<String, Ref> e : targets.entrySet()) {
+            revs.add(e.getValue().getId() + "^{commit}");
+            revs.add(treeRev(e.getValue(), paths.get(e.getKey())));
+        }
+
+        String[] shas;
+        try {
+            shas = resolveAll(repository, revs);
+        } catch (RuntimeException ex) {
+            // a subdirectory may not exist, resolve one by one
+            shas = new String[revs.size()];
+            for (int i = 0; i < revs.size(); i += 2) {
+                try {
+                    String[] pair = resolveAll(repository, revs.subList(i, i + 2));
+                    shas[i] = pair[0];
+                    shas[i + 1] = pair[1];
+                } catch (RuntimeException ex2) {
+                    logger.warning("Cannot resolve " + revs.get(i + 1) + " in repository " + repository.getSlug());
+                }
+            }
+        }
+
+        Map<String, DeployGroup> byTree = new LinkedHashMap<>();
+        int i = 0;
+        for (Map.Entry<String, Ref> e : targets.entrySet()) {
+            String commit = shas[i++], tree = shas[i++];
+            if (tree != null) {
+                DeployGroup group = byTree.computeIfAbsent(tree, DeployGroup::new);
+                group.refs.put(e.getKey(), e.getValue());
+                group.commits.put(e.getKey(), commit);
+            }
+        }
+        groups.addAll(byTree.values());
+        return groups;
+    }
+
+    /**
+     * Deploy a group of applications. A group of several applications is
+     * deployed from a single archive of their tree, sent to all deployers
+     * at once.
+     *
+     * @return the names of the applications that were deployed successfully
+     */
+    public Set<String> deploy(Repository repository, DeployGroup group) throws IOException {
+        Set<String> deployed = new TreeSet<>();
+        if (group.tree != null) {
+            for (String name : new ArrayList<>(group.refs.keySet())) {
+                if (isDeployed(repository, name, group.tree, null)) {
+                    recordDeployment(repository, name, group.commits.get(name), group.tree);
+                    group.refs.remove(name);
+                    deployed.add(name);
+                }
+            }
+        }
+
+        if (group.refs.size() == 1 || group.tree == null) {
+            for (Map.Entry<String, Ref> e : group.refs.entrySet()) {
+                if (deploy(repository, e.getValue(), e.getKey(), false, null, null)) {
+                    deployed.add(e.getKey());
+                }
+            }
+            return deployed;
+        }
+        if (group.refs.isEmpty()) {
+            return deployed;
+        }
+
+        String project = repository.getProject().getKey();
+        long start = System.nanoTime();
+        metrics.enterDeploy();
+        Set<String> shared;
+        try {
+            shared = sharedDeploy(repository, group);
+        } finally {
+            metrics.exitDeploy();
+            metrics.recordSince(DeployMetrics.DEPLOY_TIME, project, start);
+        }
+        for (String name : shared) {
+            recordDeployment(repository, name, group.commits.get(name), group.tree);
+        }
+        deployed.addAll(shared);
+        return deployed;
+    }
+
+    /**
+     * Pipe one archive of the group tree into the standard input of every
+     * deployer of the group. The archive is generated and compressed once,
+     * so the slowest deployer paces the others.
+     */
+    private Set<String> sharedDeploy(Repository repository, DeployGroup group) throws IOException {
+        String namespace = repository.getProject().getKey().toLowerCase();
+        logger.fine("Deploy tree " + group.tree + " to " + group.refs.keySet());
+
+        InputStream cached = null;
+        ArchiveCache.Fill fill = null;
+        if (archiveCache.isEnabled()) {
+            String key = cacheKey(repository, group.tree, "tar.gz");
+            while ((cached = archiveCache.open(key)) == null && (fill = archiveCache.create(key)) == null)
+                ;
+        }
+
+        Map<String, DeployerProcess> deployers = new LinkedHashMap<>();
+        SharedDeploymentHandler handler;
+
+        // The fill is aborted unless committed, whatever fails below
+        try {
+            OutputStream out = null;
+            try {
+                for (String name : group.refs.keySet()) {
+                    DeployerProcess deployer = DeployerProcess.start(agent, watchdog, name, namespace, null, null, null,
+                                                                     "--commit=" + group.commits.get(name));
+                    deployers.put(name, deployer);
+                    out = out == null ? deployer.getInput() : new TeeOutputStream(out, deployer.getInput());
+                }
+            } catch (IOException | RuntimeException ex) {
+                deployers.values().forEach(DeployerProcess::destroy);
+                throw ex;
+            }
+
+            if (cached != null) {
+                logger.fine("Deploy cached archive of tree " + group.tree);
+                handler = new SharedDeploymentHandler(deployers, out);
+                try {
+                    handler.process(cached);
+                    handler.complete();
+                } catch (ProcessException ex) {
+                    throw new IOException(ex.getMessage(), ex.getCause());
+                }
+            } else {
+                try {
+                    if (fill != null) {
+                        out = new TeeOutputStream(out, fill.newOutputStream());
+                    }
+                    handler = new SharedDeploymentHandler(deployers, compressor.gzip(out));
+                    watchdog.limitDeploy(
+                        gitCommandBuilderFactory.builder(repository)
+                            .command("archive")
+                            .argument("--format=tar")
+                            .argument(group.tree)
+                            .build(handler))
+                        .call();
+                } catch (IOException | RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Deployment failed", ex);
+                    deployers.values().forEach(DeployerProcess::destroy);
+                    throw ex;
+                }
+                if (fill != null) {
+                    fill.commit().close();
+                }
+            }
+        } finally {
+            if (fill != null) {
+                fill.close();
+            }
+            if (cached != null) {
+                cached.close();
+            }
+        }
+
+        String project = repository.getProject().getKey();
+        metrics.record(DeployMetrics.ARCHIVE_TIME, project, handler.archiveMillis);
+        metrics.record(DeployMetrics.ARCHIVE_BYTES, project, handler.archiveBytes);
+        DeployTrace.span("archive", handler.archiveStart, handler.archiveMillis);
+        for (Map.Entry<String, DeployerProcess> e : deployers.entrySet()) {
+            DeployerProcess deployer = e.getValue();
+            metrics.record(DeployMetrics.DEPLOYER_TIME, project, deployer.runMillis);
+            metrics.increment(DeployMetrics.DEPLOYER_EXIT + deployer.status, project);
+            DeployTrace.span("cwman " + e.getKey(), deployer.startNanos, deployer.runMillis);
+        }
+        return handler.deployed;
+    }
+
+    /**
+     * Pipe the output of git archive directly into the standard input of
+     * the deployer, so archiving and deploying run concurrently without
+     * an intermediate file.
+     *
+     * <p>The given tree-ish is archived, so files get the commit time when
+     * it is a commit. Cached archives are keyed by tree, which is shared by
+     * commits with the same content, so the tree is archived instead and
+     * files get the time of the archive.</p>
+     */
+    private boolean streamDeploy(Repository repository, String treeish, String tree, String commit,
+                                 String name, String namespace,
+                                 OutputStream stdout, OutputStream stderr)
+        throws IOException
+    {
+        InputStream cached = null;
+        ArchiveCache.Fill fill = null;
+
+        if (archiveCache.isEnabled()) {
+            treeish = tree;
+            String key = cacheKey(repository, tree, "tar.gz");
+            while ((cached = archiveCache.open(key)) == null && (fill = archiveCache.create(key)) == null)
+                ;
+        }
+
+        // The fill is aborted unless committed, whatever fails below
+        try {
+            DeployerProcess deployer = DeployerProcess.start(agent, watchdog, name, namespace, null, stdout, stderr,
+                                                             "--commit=" + commit);
+
+            if (cached != null) {
+                logger.fine("Deploy cached archive of tree " + treeish);
+                StreamingDeploymentHandler handler = new StreamingDeploymentHandler(deployer, deployer.getInput());
+                try {
+                    handler.process(cached);
+                    handler.complete();
+                } catch (ProcessException ex) {
+                    throw new IOException(ex.getMessage(), ex.getCause());
+                }
+                recordPhases(repository, handler);
+                return handler.isSuccess();
+            }
+
+            StreamingDeploymentHandler handler;
+            try {
+                OutputStream out = deployer.getInput();
+                if (fill != null) {
+                    out = new TeeOutputStream(out, fill.newOutputStream());
+                }
+
+                // Compress in parallel instead of the single threaded gzip run by git
+                handler = new StreamingDeploymentHandler(deployer, compressor.gzip(out));
+                watchdog.limitDeploy(
+                    gitCommandBuilderFactory.builder(repository)
+                        .command("archive")
+                        .argument("--format=tar")
+                        .argument(treeish)
+                        .build(handler))
+                    .call();
+            } catch (IOException | RuntimeException ex) {
+                // git failed, don't let the deployer consume a truncated archive
+                logger.log(Level.SEVERE, "Deployment failed", ex);
+                deployer.destroy();
+                throw ex;
+            }
+
+            if (fill != null) {
+                fill.commit().close();
+            }
+            recordPhases(repository, handler);
+            return handler.isSuccess();
+        } finally {
+            if (fill != null) {
+                fill.close();
+            }
+            if (cached != null) {
+                cached.close();
+            }
+        }
+    }
+
+    /**
+     * Deploy only the files changed since the last deployed commit. The
+     * deployer is started with {@code --delta=<base>} and receives a gzipped
+     * tar whose first entry, {@value DeltaDeploymentHandler#MANIFEST}, lists
+     * the NUL separated paths to delete, followed by the added and modified
+     * files. The deployer fails with {@value #EXIT_DELTA_BASE} unless the
+     * application was last deployed from the base, which happens when a
+     * deployment was not recorded, and the full archive is deployed instead.
+     *
+     * @return whether the deployment succeeded, or null if a delta can't be
+     * computed or applied and a full deployment is required
+     */
+    private Boolean deltaDeploy(Repository repository, String base, String commit,
+                                String name, String namespace,
+                                OutputStream stdout, OutputStream stderr)
+        throws IOException
+    {
+        DeltaHandler delta;
+        try {
+            // History was rewritten if the base is not an ancestor of the commit
+            String count = gitCommandBuilderFactory.builder(repository)
+                .command("rev-list")
+                .argument("--count")
+                .argument(commit + ".." + base)
+                .build(new StringOutputHandler())
+                .call();
+            if (!"0".equals(count)) {
+                logger.fine("Deployed commit " + base + " is not an ancestor of " + commit);
+                return null;
+            }
+
+            delta = gitCommandBuilderFactory.builder(repository)
+                .command("diff-tree")
+                .argument("-r")
+                .argument("-z")
+                .argument("--no-renames")
+                .argument("--name-status")
+                .argument(base)
+                .argument(commit)
+                .build(new DeltaHandler())
+                .call();
+        } catch (RuntimeException ex) {
+            // the base commit may no longer exist
+            logger.log(Level.FINE, "Cannot compute delta from " + base, ex);
+            return null;
+        }
+
+        if (delta.changed.size() > DELTA_MAX_FILES) {
+            logger.fine("Too many changed files for a delta deployment");
+            return null;
+        }
+
+        logger.fine("Delta deploy " + delta.changed.size() + " changed and " +
+                    delta.deleted.size() + " deleted files since " + base);
+
+        DeployerProcess deployer = DeployerProcess.start(agent, watchdog, name, namespace, null, stdout, stderr,
+                                                         "--delta=" + base, "--commit=" + commit);
+        DeltaDeploymentHandler handler = new DeltaDeploymentHandler(deployer, compressor, delta.deleted);
+
+        if (delta.changed.isEmpty()) {
+            try {
+                handler.process(null);
+                handler.complete();
+            } catch (ProcessException ex) {
+                throw new IOException(ex.getMessage(), ex.getCause());
+            }
+            recordPhases(repository, handler);
+            return deltaResult(handler);
+        }
+
+        GitScmCommandBuilder builder = gitCommandBuilderFactory.builder(repository)
+            .command("archive")
+            .argument("--format=tar")
+            .argument(commit + "^{tree}")
+            .withEnvironment("GIT_LITERAL_PATHSPECS", "1");
+        for (String path : delta.changed) {
+            builder.argument(path);
+        }
+
+        try {
+            watchdog.limitDeploy(builder.build(handler)).call();
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Deployment failed", ex);
+            deployer.destroy();
+            throw ex;
+        }
+        recordPhases(repository, handler);
+        return deltaResult(handler);
+    }
+
+    private static Boolean deltaResult(DeltaDeploymentHandler handler) {
+        if (handler.deployer.status == EXIT_DELTA_BASE) {
+            logger.warning("Deployed commit is not the delta base, deploying the full archive");
+            return null;
+        }
+        return handler.isSuccess();
+    }
+
+    private void recordPhases(Repository repository, ArchiveDeploymentHandler handler) {
+        String project = repository.getProject().getKey();
+        metrics.record(DeployMetrics.ARCHIVE_TIME, project, handler.archiveMillis);
+        metrics.record(DeployMetrics.ARCHIVE_BYTES, project, handler.archiveBytes);
+        DeployTrace.span("archive", handler.archiveStart, handler.archiveMillis);
+        if (handler.deployer != null) {
+            metrics.record(DeployMetrics.DEPLOYER_TIME, project, handler.deployer.runMillis);
+            metrics.increment(DeployMetrics.DEPLOYER_EXIT + handler.deployer.status, project);
+            DeployTrace.span("cwman", handler.deployer.startNanos, handler.deployer.runMillis);
+        }
+    }
+
+    /**
+     * Parses the output of {@code git diff-tree -r -z --name-status}.
+     */
+    static class DeltaHandler implements CommandOutputHandler<DeltaHandler> {
+        final List<String> changed = new ArrayList<>();
+        final List<String> deleted = new ArrayList<>();
+
+        @Override
+        public void process(InputStream in) throws ProcessException {
+            try {
+                String[] fields = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8).split("\0");
+                for (int i = 0; i + 1 < fields.length; i += 2) {
+                    String status = fields[i], path = fields[i + 1];
+                    if (status.startsWith("D")) {
+                        deleted.add(path);
+                    } else {
+                        changed.add(path);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new ProcessException(ex);
+            }
+        }
+
+        @Override
+        public void complete() throws ProcessException {
+            // noop
+        }
+
+        @Override
+        public void setWatchdog(Watchdog wdog) {
+            // noop
+        }
+
+        @Override
+        public DeltaHandler getOutput() {
+            return this;
+        }
+    }
+
+    /**
+     * The running deployer, with its output pumped to the given streams.
+     */
+    abstract static class DeployerProcess {
+        final long startNanos = System.nanoTime();
+        long runMillis;
+        int status = -1;
+        DeployWatchdog.Guard guard;
+
+        /**
+         * Start cwman to deploy an archive read from the given file, or from
+         * the process input stream if the file is null.
+         */
+        static DeployerProcess start(String name, String namespace, Path archive,
+                                     OutputStream stdout, OutputStream stderr,
+                                     String... options)
+            throws IOException
+        {
+            return start(null, null, name, namespace, archive, stdout, stderr, options);
+        }
+
+        /**
+         * Start a deployment on the deploy agent if enabled and reachable,
+         * otherwise fork cwman. The deployment is killed by the watchdog if
+         * it expires or is cancelled.
+         */
+        static DeployerProcess start(DeployAgent agent, DeployWatchdog watchdog,
+                                     String name, String namespace, Path archive,
+                                     OutputStream stdout, OutputStream stderr,
+                                     String... options)
+            throws IOException
+        {
+            List<String> args = new ArrayList<>();
+            args.add("deploy");
+            Collections.addAll(args, options);
+            args.add(name);
+            args.add(namespace);
+
+            // Output is pumped rather than inherited so progress is seen
+            DeployWatchdog.Guard guard = null;
+            if (watchdog != null) {
+                guard = watchdog.guard(name, namespace);
+                stdout = guard.monitor(stdout != null ? stdout : new CloseShieldOutputStream(System.out));
+                stderr = guard.monitor(stderr != null ? stderr : new CloseShieldOutputStream(System.err));
+            }
+
+            DeployerProcess proc = null;
+            try {
+                if (agent != null && agent.isEnabled()) {
+                    proc = agent.start(namespace, args, archive, stdout, stderr);
+                }
+                if (proc == null) {
+                    proc = ForkedProcess.start(args, archive, stdout, stderr);
+                }
+            } finally {
+                if (guard != null && proc == null) {
+                    guard.close();
+                }
+            }
+
+            if (guard != null) {
+                proc.guard = guard;
+                guard.watch(proc::destroy);
+            }
+            return proc;
+        }
+
+        /**
+         * Returns the input of the deployer.
+         */
+        final OutputStream getInput() {
+            return guard != null ? guard.monitor(stdin()) : stdin();
+        }
+
+        abstract OutputStream stdin();
+
+        /**
+         * Link the watchdog of the git command feeding the deployer.
+         */
+        void link(Watchdog watchdog) {
+            if (guard != null) {
+                guard.link(watchdog);
+            }
+        }
+
+        int waitFor() throws IOException, InterruptedException {
+            try {
+                status = await();
+            } finally {
+                if (guard != null) {
+                    guard.close();
+                }
+            }
+            runMillis = (System.nanoTime() - startNanos) / 1000000;
+            String reason = guard != null ? guard.getReason() : null;
+            if (reason != null) {
+                logger.severe("Deployer " + reason + ", exited with status code " + status);
+            } else if (status != 0) {
+                logger.severe("Deployer exited with status code " + status);
+            } else {
+                logger.fine("Deployer exited successful");
+            }
+            return status;
+        }
+
+        /**
+         * Wait for the deployer and return its exit status.
+         */
+        abstract int await() throws IOException, InterruptedException;
+
+        abstract void destroy();
+    }
+
+    /**
+     * A cwman process forked for a single deployment.
+     */
+    static class ForkedProcess extends DeployerProcess {
+        private final Process proc;
+        private final PumpStreamHandler psh;
+
+        private ForkedProcess(Process proc, PumpStreamHandler psh) {
+            this.proc = proc;
+            this.psh = psh;
+        }
+
+        static ForkedProcess start(List<String> args, Path archive, OutputStream stdout, OutputStream stderr)
+            throws IOException
+        {
+            List<String> command = new ArrayList<>();
+            if (SETSID) {
+                command.add(SETSID_COMMAND);
+            }
+            command.add(DEPLOYER_COMMAND);
+            command.addAll(args);
+
+            ProcessBuilder builder = new ProcessBuilder();
+            builder.command(command);
+
+            if (archive != null) {
+                builder.redirectInput(archive.toFile());
+            }
+            if (stdout == null) {
+                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            }
+            if (stderr == null) {
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            }
+
+            String traceId = DeployTrace.currentId();
+            if (traceId != null) {
+                builder.environment().put(DeployTrace.ENV, traceId);
+            }
+
+            Process proc = builder.start();
+            PumpStreamHandler psh = new PumpStreamHandler(stdout, stderr);
+
+            if (stdout != null) {
+                psh.setProcessOutputStream(proc.getInputStream());
+            }
+            if (stderr != null) {
+                psh.setProcessErrorStream(proc.getErrorStream());
+            }
+            if (stdout != null || stderr != null) {
+                psh.start();
+            }
+            return new ForkedProcess(proc, psh);
+        }
+
+        @Override
+        OutputStream stdin() {
+            return proc.getOutputStream();
+        }
+
+        @Override
+        int await() throws IOException, InterruptedException {
+            int status = proc.waitFor();
+            psh.stop();
+            return status;
+        }
+
+        /**
+         * Kill cwman and the processes it started. Running in its own
+         * session, cwman leads a process group that is terminated as a
+         * whole, and killed if still alive after a grace period.
+         */
+        @Override
+        void destroy() {
+            int pid = SETSID && proc.isAlive() ? pidOf(proc) : -1;
+            if (pid > 0) {
+                signal("TERM", pid);
+                try {
+                    if (!proc.waitFor(KILL_GRACE, TimeUnit.SECONDS)) {
+                        signal("KILL", pid);
+                    }
+                } catch (InterruptedException ex) {
+                    signal("KILL", pid);
+                    Thread.currentThread().interrupt();
+                }
+            }
+            proc.destroyForcibly();
+            try {
+                psh.stop();
+            } catch (IOException ex) {
+                // ignored
+            }
+        }
+
+        private static void signal(String signal, int pgid) {
+            try {
+                new ProcessBuilder("kill", "-" + signal, "--", "-" + pgid)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start()
+                    .waitFor(KILL_GRACE, TimeUnit.SECONDS);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot kill process group " + pgid, ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static int pidOf(Process proc) {
+            try {
+                Field field = proc.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(proc);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Base of handlers that feed an archive to the deployer, collecting
+     * statistics of both phases.
+     */
+    abstract static class ArchiveDeploymentHandler extends LoggingHandler {
+        DeployerProcess deployer;
+        long archiveStart = System.nanoTime();
+        long archiveMillis, archiveBytes;
+        boolean success;
+
+        ArchiveDeploymentHandler(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void setWatchdog(Watchdog wdog) {
+            super.setWatchdog(wdog);
+            if (deployer != null) {
+                deployer.link(wdog);
+            }
+        }
+
+        boolean isSuccess() {
+            return success;
+        }
+    }
+
+    static class DeploymentHandler extends ArchiveDeploymentHandler {
+        // git may complete the handler on another thread
+        private final DeployTrace trace = DeployTrace.current();
+        private final DeployAgent agent;
+        private final DeployWatchdog watchdog;
+        private final String name, namespace;
+        private final Path repo;
+        private final OutputStream stdout, stderr;
+        private final String[] options;
+        private final long startNanos = System.nanoTime();
+
+        DeploymentHandler(DeployAgent agent, DeployWatchdog watchdog, String name, String namespace, Path repo,
+                          OutputStream stdout, OutputStream stderr, String... options) {
+            super(System.err);
+            this.agent = agent;
+            this.watchdog = watchdog;
+            this.name = name;
+            this.namespace = namespace;
+            this.repo = repo;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.options = options;
+        }
+
+        @Override
+        public void complete() throws ProcessException {
+            try {
+                // Run cwman to deploy the archive
+                archiveMillis = (System.nanoTime() - startNanos) / 1000000;
+                archiveBytes = Files.size(repo);
+                if (trace != null) {
+                    try (DeployTrace.Scope scope = trace.attach()) {
+                        deployer = DeployerProcess.start(agent, watchdog, name, namespace, repo, stdout, stderr, options);
+                    }
+                } else {
+                    deployer = DeployerProcess.start(agent, watchdog, name, namespace, repo, stdout, stderr, options);
+                }
+                deployer.link(getWatchdog());
+                success = deployer.waitFor() == 0;
+            } catch (Exception ex) {
+                logger.log(Level.SEVERE, "Deployment failed", ex);
+                throw new ProcessException(ex);
+            } finally {
+                cleanup();
+            }
+        }
+
+        private void cleanup() throws ProcessException {
+            try {
+                Files.delete(repo);
+            } catch (IOException ex) {
+                throw new ProcessException(ex);
+            }
+        }
+    }
+
+    static class StreamingDeploymentHandler extends ArchiveDeploymentHandler {
+        StreamingDeploymentHandler(DeployerProcess deployer, OutputStream out) {
+            super(out);
+            this.deployer = deployer;
+        }
+
+        @Override
+        public void process(InputStream in) throws ProcessException {
+            // Writes block while the deployer is busy, which in turn stops
+            // reading from git, so memory use is bounded by the pipe buffers.
+            long start = archiveStart = System.nanoTime();
+            CountingInputStream counter = new CountingInputStream(in);
+            try {
+                super.process(counter);
+            } catch (ProcessException ex) {
+                deployer.destroy();
+                throw new ProcessException("Deployer stopped reading the archive", ex.getCause());
+            } finally {
+                archiveMillis = (System.nanoTime() - start) / 1000000;
+                archiveBytes = counter.getCount();
+            }
+        }
+
+        @Override
+        public void complete() throws ProcessException {
+            try {
+                super.complete(); // close deployer input
+                success = deployer.waitFor() == 0;
+            } catch (Exception ex) {
+                logger.log(Level.SEVERE, "Deployment failed", ex);
+                deployer.destroy();
+                throw new ProcessException(ex);
+            }
+        }
+    }
+
+    /**
+     * Feeds one archive to several deployers and waits for all of them.
+     */
+    static class SharedDeploymentHandler extends ArchiveDeploymentHandler {
+        private final Map<String, DeployerProcess> deployers;
+        final Set<String> deployed = new TreeSet<>();
+
+        SharedDeploymentHandler(Map<String, DeployerProcess> deployers, OutputStream out) {
+            super(out);
+            this.deployers = deployers;
+        }
+
+        @Override
+        public void setWatchdog(Watchdog wdog) {
+            super.setWatchdog(wdog);
+            deployers.values().forEach(d -> d.link(wdog));
+        }
+
+        @Override
+        public void process(InputStream in) throws ProcessException {
+            long start = archiveStart = System.nanoTime();
+            CountingInputStream counter = new CountingInputStream(in);
+            try {
+                super.process(counter);
+            } catch (ProcessException ex) {
+                // a deployer stopped reading, the others can't get a complete archive
+                deployers.values().forEach(DeployerProcess::destroy);
+                throw new ProcessException("Deployer stopped reading the archive", ex.getCause());
+            } finally {
+                archiveMillis = (System.nanoTime() - start) / 1000000;
+                archiveBytes = counter.getCount();
+            }
+        }
+
+        @Override
+        public void complete() throws ProcessException {
+            try {
+                super.complete(); // close deployer inputs
+                for (Map.Entry<String, DeployerProcess> e : deployers.entrySet()) {
+                    if (e.getValue().waitFor() == 0) {
+                        deployed.add(e.getKey());
+                    }
+                }
+                success = deployed.size() == deployers.size();
+            } catch (Exception ex) {
+                logger.log(Level.SEVERE, "Deployment failed", ex);
+                deployers.values().forEach(DeployerProcess::destroy);
+                throw new ProcessException(ex);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the uncompressed tar of changed files produced by git into
+     * the delta archive expected by {@code cwman deploy --delta}.
+     */
+    static class DeltaDeploymentHandler extends StreamingDeploymentHandler {
+        static final String MANIFEST = ".cwdelta";
 
-        if (settings != null) {
-            refId = settings.getString("branch");
-        }
-        if (refId != null && !refId.isEmpty()) {
-            ref = refService.resolveRef(repository, refId);
+        private final ArchiveCompressor compressor;
+        private final List<String> deleted;
+
+        DeltaDeploymentHandler(DeployerProcess deployer, ArchiveCompressor compressor, List<String> deleted) {
+            super(deployer, deployer.getInput());
+            this.compressor = compressor;
+            this.deleted = deleted;
         }
-        if (ref == null) {
-            ref = refService.getDefaultBranch(repository);
+
+        /**
+         * Write the delta archive, taking changed files from the given tar
+         * stream, or from nothing if the stream is null.
+         */
+        @Override
+        public void process(InputStream in) throws ProcessException {
+            long start = archiveStart = System.nanoTime();
+            CountingInputStream counter = null;
+            if (in != null) {
+                in = counter = new CountingInputStream(in);
+            }
+
+            try {
+                OutputStream gzip = compressor.gzip(new CloseShieldOutputStream(deployer.getInput()));
+                TarArchiveOutputStream out = new TarArchiveOutputStream(gzip);
+                out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+                ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                for (String path : deleted) {
+                    manifest.write(path.getBytes(StandardCharsets.UTF_8));
+                    manifest.write(0);
+                }
+                TarArchiveEntry entry = new TarArchiveEntry(MANIFEST);
+                entry.setSize(manifest.size());
+                out.putArchiveEntry(entry);
+                manifest.writeTo(out);
+                out.closeArchiveEntry();
+
+                if (in != null) {
+                    TarArchiveInputStream tar = new TarArchiveInputStream(in);
+                    while ((entry = tar.getNextTarEntry()) != null) {
+                        resetWatchdog();
+                        out.putArchiveEntry(entry);
+                        if (entry.isFile()) {
+                            ByteStreams.copy(tar, out);
+                        }
+                        out.closeArchiveEntry();
+                    }
+                }
+                out.close(); // the deployer input is closed on completion
+            } catch (IOException ex) {
+                deployer.destroy();
+                throw new ProcessException("Deployer stopped reading the archive", ex);
+            } finally {
+                archiveMillis = (System.nanoTime() - start) / 1000000;
+                archiveBytes = counter != null ? counter.getCount() : 0;
+            }
         }
-        return ref;
     }
 
-    public Ref setDeploymentBranch(Repository repository, String refId) {
+    /**
+     * Returns the commit archived for the given ref, or null if the
+     * repository is empty. The commit is taken from the ref when known,
+     * so conditional requests can be answered without running git.
+     */
+    public String getArchiveCommit(Repository repository, Ref ref) {
         if (repoService.isEmpty(repository)) {
-            return defaultRef;
+            return null;
         }
+        String commit = ref.getLatestCommit();
+        return commit != null ? commit : resolve(repository, ref.getId() + "^{commit}");
+    }
 
-        Ref ref = null;
-
-        if (refId != null && !refId.isEmpty()) {
-            ref = refService.resolveRef(repository, refId);
+    /**
+     * Returns a tag that identifies the content of an archive, used as the
+     * cache key and entity tag.
+     */
+    public static String getArchiveTag(String commit, ArchiveFormat format, List<String> paths) {
+        StringBuilder tag = new StringBuilder(commit);
+        if (paths != null && !paths.isEmpty()) {
+            List<String> sorted = new ArrayList<>(new TreeSet<>(paths));
+            tag.append('-').append(Hashing.sha1().hashString(String.join("\0", sorted), StandardCharsets.UTF_8));
         }
-        if (ref == null) {
-            ref = refService.getDefaultBranch(repository);
+        return tag.append('.').append(format.getExtension()).toString();
+    }
+
+    /**
+     * Archive the given commit, restricted to the given pathspecs if not
+     * empty. Archives of a commit are reproducible, so the same bytes are
+     * returned for the same commit whether cached or not. A cached archive
+     * is returned as a {@link ArchiveCache.CachedInputStream}. If the
+     * archive is being added to the cache by another request, wait until
+     * it is cached.
+     *
+     * @return the archive, or null if not cached, in which case the archive
+     * must be written by {@link #writeArchive}
+     */
+    public InputStream archive(Repository repository, String commit, ArchiveFormat format, List<String> paths)
+        throws IOException
+    {
+        if (commit == null || repoService.isEmpty(repository)) {
+            // create empty archive file
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            OutputStream out = format == ArchiveFormat.TAR_GZ ? compressor.gzip(bout) : bout;
+            new TarArchiveOutputStream(out).close();
+            return new ByteArrayInputStream(bout.toByteArray());
         }
 
-        SettingsBuilder builder = repoHookService.createSettingsBuilder();
-        builder.add("branch", ref.getId());
-        repoHookService.setSettings(repository, HOOK_KEY, builder.build());
-        return ref;
+        return archiveCache.isEnabled() ? archiveCache.open(archiveKey(repository, commit, format, paths)) : null;
     }
 
-    public void deploy(Repository repository, Ref ref, OutputStream stdout, OutputStream stderr) throws IOException {
-        // Retrieve namespace and name from repository
-        String namespace = repository.getProject().getKey().toLowerCase();
-        String name = repository.getSlug().toLowerCase();
-        logger.fine("Deploy the repository " + name + "-" + namespace + " from branch " + ref.getDisplayId());
+    /**
+     * Returns the archive cache key of a commit. Archives are generated
+     * from the commit, unlike deployment archives, so the content is byte
+     * for byte the same as when not cached: it has the commit time and ID.
+     */
+    private static String archiveKey(Repository repository, String commit, ArchiveFormat format, List<String> paths) {
+        return repository.getId() + "-" + getArchiveTag(commit, format, paths);
+    }
 
-        // Create a temporary file to save the repository archive
-        Path archiveFile = Files.createTempFile("repo", ".tar");
-        DeploymentHandler handler = new DeploymentHandler(name, namespace, archiveFile, stdout, stderr);
+    /**
+     * Write the archive of the given commit directly to the given stream,
+     * which is left open. Git runs on the calling thread, so the archive
+     * is copied once from git to the stream. If the archive cache is
+     * enabled, the archive is written to the cache at the same time, and
+     * added to the cache once complete.
+     *
+     * <p>A compressed archive is finished only when git exits successfully.
+     * If git fails, an exception is thrown without finishing the archive,
+     * and the caller must abort the response rather than complete it, so
+     * a truncated archive is never taken for a complete one, nor cached.</p>
+     *
+     * <p>If the client goes away while the cache is filled, the archive is
+     * still completed and cached, so the interrupted download can be resumed
+     * with a range request, and the error writing to the client is thrown
+     * afterwards.</p>
+     */
+    public void writeArchive(Repository repository, String commit, ArchiveFormat format, List<String> paths,
+                             OutputStream out)
+        throws IOException
+    {
+        String project = repository.getProject().getKey();
 
-        if (repoService.isEmpty(repository)) {
-            // Create empty archive file
-            TarArchiveOutputStream tar =
-                new TarArchiveOutputStream(
-                    new GZIPOutputStream(
-                        Files.newOutputStream(archiveFile)));
-            tar.close();
+        // Another request may be filling the cache meanwhile, then the
+        // archive is only written to the stream
+        ArchiveCache.Fill fill = archiveCache.isEnabled()
+            ? archiveCache.create(archiveKey(repository, commit, format, paths))
+            : null;
+
+        // The fill is aborted unless committed, whatever fails below
+        try {
+            ClientOutputStream client = null;
+            OutputStream tee = new CloseShieldOutputStream(out);
+            if (fill != null) {
+                client = new ClientOutputStream(tee);
+                tee = new TeeOutputStream(client, fill.newOutputStream());
+            }
+            OutputStream target = format == ArchiveFormat.TAR_GZ ? compressor.gzip(tee) : tee;
 
             try {
-                logger.fine("Deploy an empty repository");
-                handler.complete();
-                logger.fine("Deployment successed");
-            } catch (Exception ex) {
-                // error already logged
+                archiveCommand(repository, commit, paths, new DirectArchiveHandler(project, target)).call();
+            } catch (RuntimeException ex) {
+                throw new IOException("git archive failed for " + commit, ex);
+            }
+            target.close(); // write the gzip trailer and close the cached file
+
+            if (fill != null) {
+                fill.commit().close();
+                client.flush();
+                client.rethrow();
+            } else {
+                out.flush();
+            }
+        } finally {
+            if (fill != null) {
+                fill.close();
             }
-        } else {
-            // Run git command to generate an archive file
-            GitCommand<Void> command = gitCommandBuilderFactory.builder(repository)
-                .command("archive")
-                .argument("--format=tar.gz")
-                .argument("-o")
-                .argument(archiveFile.toString())
-                .argument(ref.getId())
-                .build(handler);
+        }
+    }
 
-            // The remaining task is performed in the command handler
-            command.call();
+    private GitCommand<Void> archiveCommand(Repository repository, String commit, List<String> paths,
+                                            CommandOutputHandler<Void> handler) {
+        GitScmCommandBuilder builder = gitCommandBuilderFactory.builder(repository)
+            .command("archive")
+            .argument("--format=tar")
+            .argument(commit);
+        if (paths != null && !paths.isEmpty()) {
+            builder.argument("--");
+            for (String path : paths) {
+                builder.argument(path);
+            }
         }
+        return watchdog.limitArchive(builder.build(handler));
     }
 
-    static class DeploymentHandler extends LoggingHandler {
-        private final String name, namespace;
-        private final Path repo;
-        private final OutputStream stdout, stderr;
+    /**
+     * The response side of an archive written to the cache at the same time.
+     * Once writing to the client fails, output is dropped so the archive is
+     * still generated for the cache, and the error is kept for the caller.
+     */
+    private static class ClientOutputStream extends FilterOutputStream {
+        private IOException failure;
 
-        DeploymentHandler(String name, String namespace, Path repo, OutputStream stdout, OutputStream stderr) {
-            super(System.err);
-            this.name = name;
-            this.namespace = namespace;
-            this.repo = repo;
-            this.stdout = stdout;
-            this.stderr = stderr;
+        ClientOutputStream(OutputStream out) {
+            super(out);
         }
 
         @Override
-        public void complete() throws ProcessException {
-            try {
-                // Run cwman to deploy the archive
-                ProcessBuilder builder = new ProcessBuilder();
-                builder.command("/usr/bin/cwman", "deploy", name, namespace);
+        public void write(int b) {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
 
-                builder.redirectInput(repo.toFile());
-                if (stdout == null) {
-                    builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                }
-                if (stderr == null) {
-                    builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (failure == null) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException ex) {
+                    failure = ex;
                 }
+            }
+        }
 
-                Process proc = builder.start();
-                PumpStreamHandler psh = new PumpStreamHandler(stdout, stderr);
-
-                if (stdout != null) {
-                    psh.setProcessOutputStream(proc.getInputStream());
-                }
-                if (stderr != null) {
-                    psh.setProcessErrorStream(proc.getErrorStream());
-                }
-                if (stdout != null || stderr != null) {
-                    psh.start();
+        @Override
+        public void flush() {
+            if (failure == null) {
+                try {
+                    out.flush();
+                } catch (IOException ex) {
+                    failure = ex;
                 }
+            }
+        }
 
-                int status = proc.waitFor();
-                psh.stop();
-                if (status != 0) {
-                    logger.severe("Deployer exited with status code " + status);
-                } else {
-                    logger.fine("Deployer exited successful");
-                }
-            } catch (Exception ex) {
-                logger.log(Level.SEVERE, "Deployment failed", ex);
-                throw new ProcessException(ex);
-            } finally {
-                cleanup();
+        /**
+         * Throw the error writing to the client, if any.
+         */
+        void rethrow() throws IOException {
+            if (failure != null) {
+                throw failure;
             }
         }
+    }
 
-        private void cleanup() throws ProcessException {
+    // Copy buffers reused by request threads, larger than the stream defaults
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    /**
+     * Copies the archive to the given stream without closing it, since the
+     * exit status of git is only known after the handler completes.
+     */
+    private class DirectArchiveHandler extends LoggingHandler {
+        private final String project;
+        private final OutputStream out;
+
+        DirectArchiveHandler(String project, OutputStream out) {
+            super(out);
+            this.project = project;
+            this.out = out;
+        }
+
+        @Override
+        public void process(InputStream in) throws ProcessException {
+            long start = System.nanoTime();
+            long count = 0;
+            byte[] buf = COPY_BUFFER.get();
             try {
-                Files.delete(repo);
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    count += n;
+                    resetWatchdog();
+                }
             } catch (IOException ex) {
                 throw new ProcessException(ex);
+            } finally {
+                metrics.recordSince(DeployMetrics.ARCHIVE_TIME, project, start);
+                metrics.record(DeployMetrics.ARCHIVE_BYTES, project, count);
             }
         }
+
+        @Override
+        public void complete() throws ProcessException {
+            // the stream is finished by writeArchive once git succeeded
+        }
     }
 
-    public InputStream archive(Repository repository, Ref ref) throws IOException {
-        if (repoService.isEmpty(repository)) {
-            // create empty archive file
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            new TarArchiveOutputStream(bout).close();
-            return new ByteArrayInputStream(bout.toByteArray());
-        } else {
-            Pipe pipe = Pipe.open();
-            InputStream pipeIn = Channels.newInputStream(pipe.source());
-            OutputStream pipeOut = Channels.newOutputStream(pipe.sink());
+    /**
+     * Resolve the SHAs of the given revisions with a single git command.
+     */
+    private String[] resolveAll(Repository repository, List<String> revs) {
+        GitScmCommandBuilder builder = gitCommandBuilderFactory.builder(repository).command("rev-parse");
+        for (String rev : revs) {
+            builder.argument(rev);
+        }
+        String[] shas = builder.build(new StringOutputHandler()).call().split("\\s+");
+        if (shas.length != revs.size()) {
+            throw new IllegalStateException("Unexpected output from git rev-parse");
+        }
+        return shas;
+    }
 
-            CommandOutputHandler<Void> handler = new LoggingHandler(pipeOut);
-            GitCommand<Void> command = gitCommandBuilderFactory.builder(repository)
-                .command("archive")
-                .argument("--format=tar")
-                .argument(ref.getId())
-                .build(handler);
-            command.start();
+    /**
+     * Resolve the SHA of the given revision.
+     */
+    private String resolve(Repository repository, String rev) {
+        return gitCommandBuilderFactory.builder(repository)
+            .command("rev-parse")
+            .argument("--verify")
+            .argument(rev)
+            .build(new StringOutputHandler())
+            .call();
+    }
 
-            return pipeIn;
-        }
+    private static String cacheKey(Repository repository, String treeish, String format) {
+        return repository.getId() + "-" + treeish + "." + format;
     }
 
     static class LoggingHandler implements CommandOutputHandler<Void> {
         private final OutputStream out;
+        private Watchdog watchdog;
 
         LoggingHandler(OutputStream out) {
             this.out = out;
@@ -273,12 +1732,31 @@ public class RepoDeployer
         @Override
         public void process(InputStream in) throws ProcessException {
             try {
-                ByteStreams.copy(in, out);
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    resetWatchdog();
+                }
             } catch (IOException ex) {
                 throw new ProcessException(ex);
             }
         }
 
+        Watchdog getWatchdog() {
+            return watchdog;
+        }
+
+        /**
+         * Tell the watchdog of the command that it is making progress, so
+         * it isn't killed on idle timeout.
+         */
+        void resetWatchdog() {
+            if (watchdog != null) {
+                watchdog.resetWatchdog();
+            }
+        }
+
         @Override
         public void complete() throws ProcessException {
             if (out != System.out && out != System.err) {
@@ -292,7 +1770,7 @@ public class RepoDeployer
 
         @Override
         public void setWatchdog(Watchdog wdog) {
-            // noop
+            this.watchdog = wdog;
         }
 
         @Override
@@ -301,40 +1779,256 @@ public class RepoDeployer
         }
     }
 
+    static class StringOutputHandler implements CommandOutputHandler<String> {
+        private String output;
+
+        @Override
+        public void process(InputStream in) throws ProcessException {
+            try {
+                output = CharStreams.toString(new InputStreamReader(in, StandardCharsets.UTF_8)).trim();
+            } catch (IOException ex) {
+                throw new ProcessException(ex);
+            }
+        }
+
+        @Override
+        public void complete() throws ProcessException {
+            // noop
+        }
+
+        @Override
+        public void setWatchdog(Watchdog wdog) {
+            // noop
+        }
+
+        @Override
+        public String getOutput() {
+            return output;
+        }
+    }
+
     public void populate(Repository repository, InputStream payload) throws IOException {
+        String project = repository.getProject().getKey();
+        long start = System.nanoTime(), phase = start;
+
         Path tempRepoDir = Files.createTempDirectory("repo");
-        untarTemplateFiles(tempRepoDir, payload);
-        createTemplateRepo(tempRepoDir);
-        pushTemplateToNewRepo(tempRepoDir, repository);
-        FileUtils.deleteDirectory(tempRepoDir.toFile());
+        try {
+            if (FAST_IMPORT_POPULATE) {
+                importTemplateRepo(tempRepoDir, payload);
+                metrics.recordSince(DeployMetrics.POPULATE_IMPORT, project, phase);
+            } else {
+                untarTemplateFiles(tempRepoDir, payload);
+                metrics.recordSince(DeployMetrics.POPULATE_EXTRACT, project, phase);
+
+                phase = System.nanoTime();
+                createTemplateRepo(tempRepoDir);
+                metrics.recordSince(DeployMetrics.POPULATE_COMMIT, project, phase);
+            }
+
+            phase = System.nanoTime();
+            pushTemplateToNewRepo(tempRepoDir, repository);
+            metrics.recordSince(DeployMetrics.POPULATE_PUSH, project, phase);
+        } finally {
+            FileUtils.deleteDirectory(tempRepoDir.toFile());
+        }
+        metrics.recordSince(DeployMetrics.POPULATE_TIME, project, start);
     }
 
     public void populate(Repository repository, String url) throws IOException {
+        String project = repository.getProject().getKey();
+        long start = System.nanoTime(), phase = start;
+
         Path tempRepoDir = Files.createTempDirectory("repo");
-        cloneTemplateRepo(tempRepoDir, url);
-        pushTemplateToNewRepo(tempRepoDir, repository);
-        FileUtils.deleteDirectory(tempRepoDir.toFile());
-    }
-
-    private static void untarTemplateFiles(Path tempRepoDir, InputStream in) throws IOException {
-        TarArchiveInputStream tar = new TarArchiveInputStream(in);
-        TarArchiveEntry entry;
-
-        while ((entry = tar.getNextTarEntry()) != null) {
-            Path dest = tempRepoDir.resolve(entry.getName());
-            if (entry.isDirectory()) {
-                Files.createDirectory(dest);
-            } else if (entry.isFile()) {
-                Files.createDirectories(dest.getParent());
-                Files.copy(tar, dest);
+        try {
+            if (mirrors.isEnabled()) {
+                // The seeded repository borrows objects from the mirror,
+                // which is kept unchanged until pushed
+                try (TemplateMirrors.Mirror mirror = mirrors.open(url)) {
+                    seedTemplateRepo(tempRepoDir, mirror.getPath());
+                    metrics.recordSince(DeployMetrics.POPULATE_CLONE, project, phase);
+
+                    phase = System.nanoTime();
+                    pushTemplateToNewRepo(tempRepoDir, repository);
+                    metrics.recordSince(DeployMetrics.POPULATE_PUSH, project, phase);
+                }
             } else {
-                continue; // TODO: handle symlinks
+                cloneTemplateRepo(tempRepoDir, url);
+                metrics.recordSince(DeployMetrics.POPULATE_CLONE, project, phase);
+
+                phase = System.nanoTime();
+                pushTemplateToNewRepo(tempRepoDir, repository);
+                metrics.recordSince(DeployMetrics.POPULATE_PUSH, project, phase);
+            }
+        } finally {
+            FileUtils.deleteDirectory(tempRepoDir.toFile());
+        }
+        metrics.recordSince(DeployMetrics.POPULATE_TIME, project, start);
+    }
+
+    /**
+     * Extract a template tarball into the given directory. The tarball is
+     * read sequentially on the calling thread, while the bodies of small
+     * files are written by a pool of writers, up to a bounded number of
+     * bytes read ahead of them. Larger files are copied by the calling
+     * thread. Created directories are remembered and file modes are set
+     * when files are created, so most entries cost a single open.
+     *
+     * <p>Symbolic links are restored unless the target is absolute, has a
+     * {@code ..} component or resolves outside of the directory. Entries
+     * outside of the directory or under a symbolic link, and hard links,
+     * are skipped.</p>
+     */
+    static void untarTemplateFiles(Path tempRepoDir, InputStream in) throws IOException {
+        Path root = tempRepoDir.toRealPath();
+        Set<Path> dirs = new HashSet<>();
+        dirs.add(root);
+
+        ExecutorService writers = Executors.newFixedThreadPool(
+            Math.max(1, EXTRACT_THREADS),
+            new ThreadFactoryBuilder()
+                .setNameFormat("cloudway-extract-%d")
+                .setDaemon(true)
+                .build());
+        int readAhead = Math.min(EXTRACT_FILE_MAX, EXTRACT_BUFFER);
+        Semaphore buffered = new Semaphore(EXTRACT_BUFFER);
+        List<Future<?>> writes = new ArrayList<>();
+
+        try {
+            TarArchiveInputStream tar = new TarArchiveInputStream(in);
+            TarArchiveEntry entry;
+
+            while ((entry = tar.getNextTarEntry()) != null) {
+                Path dest = root.resolve(entry.getName()).normalize();
+                if (dest.equals(root)) {
+                    continue;
+                }
+                if (!dest.startsWith(root) || !makeDirs(dest.getParent(), dirs)) {
+                    logger.warning("Skip template entry outside of repository or under a link: " + entry.getName());
+                    continue;
+                }
+
+                int mode = entry.getMode() & 0777;
+                if (entry.isDirectory()) {
+                    // keep the directory writable for the files it contains
+                    if (!makeDirs(dest, dirs)) {
+                        logger.warning("Skip template directory replacing a file: " + entry.getName());
+                        continue;
+                    }
+                    chmod(dest, mode | 0700);
+                } else if (entry.isSymbolicLink()) {
+                    // checked first, links are also files to commons-compress
+                    String target = entry.getLinkName();
+                    if (!isContainedLink(root, dest, target)) {
+                        logger.warning("Skip template symbolic link " + entry.getName() + " to " + target);
+                        continue;
+                    }
+                    Files.createSymbolicLink(dest, Paths.get(target));
+                } else if (entry.isLink()) {
+                    logger.warning("Skip template hard link " + entry.getName());
+                } else if (entry.isFile()) {
+                    long size = entry.getSize();
+                    if (size > readAhead) {
+                        try (OutputStream out = createFile(dest, mode)) {
+                            ByteStreams.copy(tar, out);
+                        }
+                        continue;
+                    }
+
+                    byte[] data = new byte[(int)size];
+                    ByteStreams.readFully(tar, data);
+                    try {
+                        buffered.acquire(data.length);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    writes.add(writers.submit(() -> {
+                        try (OutputStream out = createFile(dest, mode)) {
+                            out.write(data);
+                        } finally {
+                            buffered.release(data.length);
+                        }
+                        return null;
+                    }));
+                }
+            }
+
+            for (Future<?> write : writes) {
+                write.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private static final Set<StandardOpenOption> CREATE_FILE =
+        EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+    /**
+     * Create a file with the given mode, subject to the umask. Git only
+     * records the executable bit, which the umask leaves to the owner.
+     * An existing file or symbolic link is never replaced nor followed.
+     */
+    private static OutputStream createFile(Path path, int mode) throws IOException {
+        return Channels.newOutputStream(
+            Files.newByteChannel(path, CREATE_FILE, PosixFilePermissions.asFileAttribute(getPermissions(mode))));
+    }
+
+    /**
+     * Create the given directory and its parents unless already created.
+     *
+     * @return false if a path component exists and is not a directory,
+     * such as a symbolic link, which is never followed
+     */
+    private static boolean makeDirs(Path dir, Set<Path> dirs) throws IOException {
+        if (dirs.contains(dir)) {
+            return true;
+        }
+        if (!makeDirs(dir.getParent(), dirs)) {
+            return false;
+        }
+        try {
+            Files.createDirectory(dir);
+        } catch (FileAlreadyExistsException ex) {
+            if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
             }
-            chmod(dest, entry.getMode() & 0777);
         }
+        dirs.add(dir);
+        return true;
     }
 
-    private static void chmod(Path path, int mode) throws IOException {
+    /**
+     * Returns whether a symbolic link with the given target stays within
+     * the root directory, both as written and once resolved.
+     */
+    private static boolean isContainedLink(Path root, Path link, String target) throws IOException {
+        Path path = Paths.get(target);
+        if (target.isEmpty() || path.isAbsolute()) {
+            return false;
+        }
+        for (Path name : path) {
+            if (name.toString().equals("..")) {
+                return false;
+            }
+        }
+
+        Path resolved = link.getParent().resolve(path).normalize();
+        if (!resolved.startsWith(root)) {
+            return false;
+        }
+        return !Files.exists(resolved) || resolved.toRealPath().startsWith(root);
+    }
+
+    static void chmod(Path path, int mode) throws IOException {
         // chmod never changes the permissions of symblic links;
         // the chmod system call cannot change their permissions.
         // This is not a problem since the permissions of symbolic
@@ -356,7 +2050,7 @@ public class RepoDeployer
         PosixFilePermission.OWNER_READ
     };
 
-    private static Set<PosixFilePermission> getPermissions(int bits) {
+    static Set<PosixFilePermission> getPermissions(int bits) {
         Set<PosixFilePermission> set = EnumSet.noneOf(PosixFilePermission.class);
         for (PosixFilePermission p : PERM_BITS) {
             if ((bits & 1) != 0)
@@ -378,6 +2072,78 @@ public class RepoDeployer
             .call();
     }
 
+    /**
+     * Create a bare repository that shares the objects of a template mirror,
+     * either with all branches and tags of the mirror, or with a single
+     * commit of the tree of its default branch.
+     */
+    private void seedTemplateRepo(Path tempRepoDir, Path mirror) throws IOException {
+        if (!SINGLE_COMMIT_POPULATE) {
+            gitCommandBuilderFactory.builder()
+                .workingDirectory(tempRepoDir.toString())
+                .command("clone")
+                .argument("--bare")
+                .argument("--shared")
+                .argument(mirror.toString())
+                .argument(".")
+                .build(new LoggingHandler(System.err))
+                .call();
+            return;
+        }
+
+        String branch = gitCommandBuilderFactory.builder()
+            .workingDirectory(mirror.toString())
+            .command("symbolic-ref")
+            .argument("HEAD")
+            .build(new StringOutputHandler())
+            .call();
+        String tree = gitCommandBuilderFactory.builder()
+            .workingDirectory(mirror.toString())
+            .command("rev-parse")
+            .argument("--verify")
+            .argument("HEAD^{tree}")
+            .build(new StringOutputHandler())
+            .call();
+
+        gitCommandBuilderFactory.builder()
+            .workingDirectory(tempRepoDir.toString())
+            .command("init")
+            .argument("--bare")
+            .argument("--quiet")
+            .build(new LoggingHandler(System.err))
+            .call();
+        Files.write(tempRepoDir.resolve("objects/info/alternates"),
+                    (mirror.resolve("objects").toAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+
+        String commit = gitCommandBuilderFactory.builder()
+            .workingDirectory(tempRepoDir.toString())
+            .command("commit-tree")
+            .argument("-m")
+            .argument("Populate template")
+            .argument(tree)
+            .withEnvironment("GIT_AUTHOR_NAME", "nobody")
+            .withEnvironment("GIT_AUTHOR_EMAIL", "nobody@example.com")
+            .withEnvironment("GIT_COMMITTER_NAME", "nobody")
+            .withEnvironment("GIT_COMMITTER_EMAIL", "nobody@example.com")
+            .build(new StringOutputHandler())
+            .call();
+
+        gitCommandBuilderFactory.builder()
+            .workingDirectory(tempRepoDir.toString())
+            .command("update-ref")
+            .argument(branch)
+            .argument(commit)
+            .build(new LoggingHandler(System.err))
+            .call();
+        gitCommandBuilderFactory.builder()
+            .workingDirectory(tempRepoDir.toString())
+            .command("symbolic-ref")
+            .argument("HEAD")
+            .argument(branch)
+            .build(new LoggingHandler(System.err))
+            .call();
+    }
+
     private void createTemplateRepo(Path tempRepoDir) {
         // git init
         gitCommandBuilderFactory.builder()
@@ -405,7 +2171,32 @@ public class RepoDeployer
             .call();
     }
 
-    private void pushTemplateToNewRepo(Path tempRepoDir, Repository newRepo) {
+    /**
+     * Create a bare repository with a single commit of the files in the
+     * template tarball, streamed into git fast-import.
+     */
+    private void importTemplateRepo(Path tempRepoDir, InputStream payload) {
+        gitCommandBuilderFactory.builder()
+            .init()
+            .directory(tempRepoDir.toString())
+            .bare(true)
+            .build()
+            .call();
+
+        gitCommandBuilderFactory.builder()
+            .workingDirectory(tempRepoDir.toString())
+            .command("fast-import")
+            .argument("--quiet")
+            .argument("--done")
+            .inputHandler(new FastImportHandler(payload, "refs/heads/master", "Populate template",
+                                                "nobody", "nobody@example.com"))
+            .build(new LoggingHandler(System.err))
+            .call();
+    }
+
+    private void pushTemplateToNewRepo(Path tempRepoDir, Repository newRepo) throws IOException {
+        CompletableFuture<Void> changed = refChanges.expect(newRepo);
+
         // temporarily disable post-receive hook
         repoHookService.disable(newRepo, HOOK_KEY);
         try {
@@ -420,19 +2211,31 @@ public class RepoDeployer
 
             builder.build(new LoggingHandler(System.err)).call();
 
-            // ensure new repository was populated
-            int waitTime = 100, maxWaitTime = 10000; // 10 seconds
+            // Bitbucket processes the push asynchronously, wait until the
+            // refs changed event shows the new repository was populated
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(POPULATE_TIMEOUT);
             while (repoService.isEmpty(newRepo)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Repository " + newRepo.getProject().getKey() + "/" + newRepo.getSlug() +
+                                          " is still empty " + POPULATE_TIMEOUT + " seconds after the template was pushed");
+                }
                 try {
-                    Thread.sleep(waitTime);
-                    if ((waitTime *= 2) > maxWaitTime) {
-                        break;
-                    }
-                } catch (InterruptedException ex) {
-                    break;
+                    changed.get(Math.min(remaining, POPULATE_RECHECK), TimeUnit.NANOSECONDS);
+                    // not visible yet, wait for the next change
+                    refChanges.release(newRepo, changed);
+                    changed = refChanges.expect(newRepo);
+                } catch (TimeoutException ex) {
+                    // check again in case the event was missed
                 }
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for repository " + newRepo.getSlug());
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
         } finally {
+            refChanges.release(newRepo, changed);
             repoHookService.enable(newRepo, HOOK_KEY);
         }
     }
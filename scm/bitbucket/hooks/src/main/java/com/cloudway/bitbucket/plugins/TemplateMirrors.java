@@ -0,0 +1,423 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A bounded on-disk cache of bare mirrors of template repositories, so
+ * repositories created from the same template don't clone it again.
+ *
+ * <p>Mirrors are keyed by the normalized template URL and its credentials,
+ * so a mirror is only shared by callers with the same credentials. HTTP
+ * credentials are removed from the URL and passed to each git command, so
+ * they are never written to the mirror configuration.</p>
+ *
+ * <p>A mirror older than {@code mirror.ttl} seconds (default: 300) is
+ * refreshed with {@code git fetch} before use; if the fetch fails, the stale
+ * mirror is used. Mirrors are evicted in least-recently-used order when
+ * their total size exceeds {@code mirror.size} bytes (default: 2 GiB; 0
+ * disables the cache). Mirrors in use are never refreshed or evicted.</p>
+ */
+public class TemplateMirrors {
+    private final GitCommandBuilderFactory gitCommandBuilderFactory;
+    private final DeployMetrics metrics;
+    private final Path dir;
+    private final long maxBytes;
+    private final long ttl;
+
+    // guarded by this, in access order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Configuration passed to git through the environment, unlike -c
+    // options which are visible to other users in the process list
+    private static final String GIT_CONFIG_PARAMETERS = "GIT_CONFIG_PARAMETERS";
+
+    private static final Logger logger = Logger.getLogger(RepoDeployer.class.getName());
+    static {
+        if (System.getenv("CLOUDWAY_DEBUG_HOOK") != null) {
+            logger.setLevel(Level.FINE);
+        }
+    }
+
+    public TemplateMirrors(GitCommandBuilderFactory gitCommandBuilderFactory, DeployMetrics metrics) {
+        this.gitCommandBuilderFactory = gitCommandBuilderFactory;
+        this.metrics = metrics;
+        this.dir = Paths.get(DeployerConfig.getString("mirror.dir",
+            System.getProperty("java.io.tmpdir") + File.separator + "cloudway-mirrors"));
+        this.maxBytes = DeployerConfig.getLong("mirror.size", 2L * 1024 * 1024 * 1024);
+        this.ttl = TimeUnit.SECONDS.toNanos(DeployerConfig.getLong("mirror.ttl", 300));
+
+        if (maxBytes > 0) {
+            try {
+                Files.createDirectories(dir);
+                load();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Failed to initialize template mirrors " + dir, ex);
+            }
+        }
+    }
+
+    /**
+     * A cached mirror, locked for reading while in use and for writing
+     * while cloned, fetched or evicted.
+     */
+    private class Entry {
+        final String key;
+        final Path path;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        long fetchedAt;     // System.nanoTime() of the last clone or fetch, guarded by lock
+        long size;          // guarded by TemplateMirrors.this
+        boolean removed;    // guarded by lock
+
+        Entry(String key) {
+            this.key = key;
+            this.path = dir.resolve(key);
+        }
+
+        boolean isFresh() {
+            return Files.isDirectory(path) && System.nanoTime() - fetchedAt < ttl;
+        }
+    }
+
+    /**
+     * Reload mirrors left by a previous run, to be refreshed on first use,
+     * and remove incomplete clones.
+     */
+    private synchronized void load() throws IOException {
+        File[] files = dir.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.getName().endsWith(TEMP_SUFFIX)) {
+                FileUtils.deleteQuietly(f);
+            } else if (f.isDirectory() && hasCredentials(f.toPath())) {
+                // cloned by an earlier version with credentials in the URL
+                FileUtils.deleteQuietly(f);
+            } else if (f.isDirectory()) {
+                Entry entry = new Entry(f.getName());
+                entry.fetchedAt = System.nanoTime() - ttl;
+                entry.size = FileUtils.sizeOfDirectory(f);
+                entries.put(entry.key, entry);
+                totalBytes += entry.size;
+            }
+        }
+        evict(null);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the cache key of a template URL: the SHA-1 of the URL with
+     * a lower case scheme and host, and without trailing slash and
+     * {@code .git} suffix, followed by its credentials if any. Templates
+     * fetched with different credentials never share a mirror.
+     */
+    static String keyOf(String url) {
+        String normalized = url.trim();
+        String userInfo = null;
+        try {
+            URI uri = new URI(normalized);
+            if (uri.getScheme() != null && uri.getHost() != null) {
+                normalized = uri.getScheme().toLowerCase(Locale.ROOT) + "://" +
+                             uri.getHost().toLowerCase(Locale.ROOT) +
+                             (uri.getPort() != -1 ? ":" + uri.getPort() : "") +
+                             (uri.getRawPath() != null ? uri.getRawPath() : "");
+                userInfo = uri.getUserInfo();
+            }
+        } catch (URISyntaxException ex) {
+            // not a URL, such as user@host:path
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.endsWith(".git")) {
+            normalized = normalized.substring(0, normalized.length() - 4);
+        }
+        if (userInfo != null) {
+            normalized += "\0" + userInfo;
+        }
+        return Hashing.sha1().hashString(normalized, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the given URL if it is an HTTP URL with credentials.
+     */
+    private static URI credentialsOf(String url) {
+        try {
+            URI uri = new URI(url.trim());
+            String scheme = uri.getScheme();
+            if (uri.getRawUserInfo() != null
+                    && ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+                return uri;
+            }
+        } catch (URISyntaxException ex) {
+            // not a URL, such as user@host:path
+        }
+        return null;
+    }
+
+    /**
+     * Returns the template URL without HTTP credentials.
+     */
+    static String withoutCredentials(String url) {
+        URI uri = credentialsOf(url);
+        if (uri == null) {
+            return url;
+        }
+        String trimmed = url.trim();
+        int start = trimmed.indexOf("://") + 3;
+        return trimmed.substring(0, start) + trimmed.substring(start + uri.getRawUserInfo().length() + 1);
+    }
+
+    /**
+     * Returns a git command builder that authenticates with the HTTP
+     * credentials of the template URL, if any.
+     */
+    private GitScmCommandBuilder builder(String url) {
+        GitScmCommandBuilder builder = gitCommandBuilderFactory.builder();
+        URI uri = credentialsOf(url);
+        if (uri != null) {
+            String userInfo = uri.getUserInfo();
+            if (userInfo.indexOf(':') < 0) {
+                userInfo += ":"; // a token as user name
+            }
+            String auth = Base64.getEncoder().encodeToString(userInfo.getBytes(StandardCharsets.UTF_8));
+            builder.withEnvironment(GIT_CONFIG_PARAMETERS, "'http.extraHeader=Authorization: Basic " + auth + "'");
+        }
+        return builder;
+    }
+
+    /**
+     * Returns whether the remote URL of a mirror has HTTP credentials.
+     */
+    private static boolean hasCredentials(Path mirror) {
+        try {
+            List<String> config = Files.readAllLines(mirror.resolve("config"), StandardCharsets.UTF_8);
+            for (String line : config) {
+                line = line.trim();
+                if (line.startsWith("url") && line.substring(3).trim().startsWith("=")
+                        && credentialsOf(line.substring(line.indexOf('=') + 1)) != null) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Open the mirror of the given template URL, cloning or refreshing it
+     * as needed. The mirror can't be modified until the returned handle
+     * is closed.
+     */
+    public Mirror open(String url) throws IOException {
+        String key = keyOf(url);
+        for (;;) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.computeIfAbsent(key, Entry::new);
+            }
+
+            entry.lock.readLock().lock();
+            if (!entry.removed && entry.isFresh()) {
+                hits.incrementAndGet();
+                return new Mirror(entry);
+            }
+            entry.lock.readLock().unlock();
+
+            entry.lock.writeLock().lock();
+            try {
+                if (entry.removed) {
+                    continue; // evicted meanwhile
+                }
+                if (!entry.isFresh()) {
+                    update(entry, url);
+                } else {
+                    hits.incrementAndGet();
+                }
+                // downgrade to keep the mirror from being modified
+                entry.lock.readLock().lock();
+            } finally {
+                entry.lock.writeLock().unlock();
+            }
+
+            synchronized (this) {
+                evict(key);
+            }
+            return new Mirror(entry);
+        }
+    }
+
+    /**
+     * Clone or fetch the mirror, holding its write lock.
+     */
+    private void update(Entry entry, String url) throws IOException {
+        long start = System.nanoTime();
+        if (Files.isDirectory(entry.path)) {
+            hits.incrementAndGet();
+            fetches.incrementAndGet();
+            try {
+                builder(url)
+                    .workingDirectory(entry.path.toString())
+                    .command("fetch")
+                    .argument("--prune")
+                    .argument("--quiet")
+                    .argument("origin")
+                    .build(new RepoDeployer.LoggingHandler(System.err))
+                    .call();
+                entry.fetchedAt = System.nanoTime();
+            } catch (RuntimeException ex) {
+                // still better than failing the population
+                logger.log(Level.WARNING, "Failed to refresh template mirror of " + withoutCredentials(url) +
+                                          ", using stale mirror", ex);
+            }
+        } else {
+            misses.incrementAndGet();
+            Path temp = dir.resolve(entry.key + TEMP_SUFFIX);
+            FileUtils.deleteQuietly(temp.toFile());
+            try {
+                builder(url)
+                    .workingDirectory(dir.toString())
+                    .command("clone")
+                    .argument("--mirror")
+                    .argument("--quiet")
+                    .argument(withoutCredentials(url))
+                    .argument(temp.toString())
+                    .build(new RepoDeployer.LoggingHandler(System.err))
+                    .call();
+                Files.move(temp, entry.path, StandardCopyOption.ATOMIC_MOVE);
+                entry.fetchedAt = System.nanoTime();
+            } catch (RuntimeException | IOException ex) {
+                FileUtils.deleteQuietly(temp.toFile());
+                synchronized (this) {
+                    entry.removed = true;
+                    entries.remove(entry.key, entry);
+                }
+                throw ex;
+            }
+        }
+        metrics.recordSince(DeployMetrics.POPULATE_FETCH, null, start);
+
+        long size = FileUtils.sizeOfDirectory(entry.path.toFile());
+        synchronized (this) {
+            totalBytes += size - entry.size;
+            entry.size = size;
+        }
+    }
+
+    /**
+     * Remove least recently used mirrors that are not in use until the
+     * cache fits in the limit. The given mirror is kept.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.key.equals(keep) || !entry.lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                entry.removed = true;
+                it.remove();
+                totalBytes -= entry.size;
+                evictions.incrementAndGet();
+                FileUtils.deleteQuietly(entry.path.toFile());
+            } finally {
+                entry.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * A mirror in use.
+     */
+    public static class Mirror implements AutoCloseable {
+        private final Entry entry;
+
+        Mirror(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Returns the directory of the bare mirror.
+         */
+        public Path getPath() {
+            return entry.path;
+        }
+
+        @Override
+        public void close() {
+            entry.lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public long getMaxSize() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.cloudway.bitbucket.plugins.ArchiveCache;
+import com.sun.jersey.spi.resource.Singleton;
+
+@Singleton
+@Path("/cache")
+public class ArchiveCacheRestResource {
+    private final ArchiveCache cache;
+    private final PermissionValidationService validator;
+
+    ArchiveCacheRestResource(ArchiveCache cache, PermissionValidationService validator) {
+        this.cache = cache;
+        this.validator = validator;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStats() {
+        validator.validateForGlobal(Permission.ADMIN);
+        return Response.ok(new CacheStats(cache)).build();
+    }
+}
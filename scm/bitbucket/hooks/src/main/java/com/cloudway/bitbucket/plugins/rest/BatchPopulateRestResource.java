@@ -0,0 +1,125 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.rest.util.ResourcePatterns;
+import com.cloudway.bitbucket.plugins.BatchPopulator;
+import com.sun.jersey.spi.resource.Singleton;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Populates many repositories of a project in one request. The response
+ * is a stream of {@link PopulateStatus} objects, one per line, written as
+ * each repository is done.
+ */
+@Singleton
+@Path(ResourcePatterns.PROJECT_URI)
+public class BatchPopulateRestResource {
+    private static final String NDJSON = "application/x-ndjson";
+
+    private final BatchPopulator populator;
+    private final RepositoryService repoService;
+    private final PermissionService permissionService;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    BatchPopulateRestResource(BatchPopulator populator,
+                              RepositoryService repoService,
+                              PermissionService permissionService) {
+        this.populator = populator;
+        this.repoService = repoService;
+        this.permissionService = permissionService;
+    }
+
+    @POST
+    @Path("/populate")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(NDJSON)
+    public Response populate(@Context final Project project, final List<PopulateRequest> manifest) {
+        // Entries that can't be populated are reported before any work starts
+        final List<PopulateStatus> rejected = new ArrayList<>();
+        final List<BatchPopulator.Task> tasks = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+
+        for (PopulateRequest req : manifest) {
+            String status = null, error = null;
+            Repository repository = null;
+
+            if (req.repository == null || (req.template == null) == (req.url == null)) {
+                status = PopulateStatus.INVALID;
+                error = "Either a template or a url is required";
+            } else if (!seen.add(req.repository)) {
+                status = PopulateStatus.INVALID;
+                error = "Duplicate repository";
+            } else if ((repository = repoService.getBySlug(project.getKey(), req.repository)) == null) {
+                status = PopulateStatus.NOT_FOUND;
+            } else if (!permissionService.hasRepositoryPermission(repository, Permission.REPO_WRITE)) {
+                status = PopulateStatus.FORBIDDEN;
+            }
+
+            if (status != null) {
+                rejected.add(new PopulateStatus(req.repository, status, error, 0));
+            } else {
+                tasks.add(new BatchPopulator.Task(repository, req.template, req.url));
+            }
+        }
+
+        StreamingOutput stream = new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                for (PopulateStatus status : rejected) {
+                    send(out, status);
+                }
+                try {
+                    populator.populate(tasks, result ->
+                        send(out, new PopulateStatus(
+                            result.repository.getSlug(),
+                            result.status.name().toLowerCase().replace('_', '-'),
+                            result.error,
+                            result.millis)));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (IOException ioe) {
+                    throw ioe;
+                } catch (Exception ex) {
+                    throw new WebApplicationException(ex);
+                }
+            }
+        };
+
+        return Response.ok(stream).build();
+    }
+
+    private void send(OutputStream out, PopulateStatus status) throws IOException {
+        out.write(mapper.writeValueAsBytes(status));
+        out.write('\n');
+        out.flush();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import com.cloudway.bitbucket.plugins.ArchiveCache;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize
+public class CacheStats {
+    @JsonProperty
+    public boolean enabled;
+
+    @JsonProperty
+    public int entries;
+
+    @JsonProperty
+    public long size;
+
+    @JsonProperty
+    public long maxSize;
+
+    @JsonProperty
+    public long hits;
+
+    @JsonProperty
+    public long misses;
+
+    @JsonProperty
+    public long evictions;
+
+    public CacheStats(ArchiveCache cache) {
+        this.enabled = cache.isEnabled();
+        this.entries = cache.getEntries();
+        this.size = cache.getSize();
+        this.maxSize = cache.getMaxSize();
+        this.hits = cache.getHits();
+        this.misses = cache.getMisses();
+        this.evictions = cache.getEvictions();
+    }
+}
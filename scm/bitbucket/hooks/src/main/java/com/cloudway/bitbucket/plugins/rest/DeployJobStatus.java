@@ -0,0 +1,57 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import com.cloudway.bitbucket.plugins.DeployJob;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class DeployJobStatus {
+    @JsonProperty
+    public String id;
+
+    @JsonProperty
+    public String app;
+
+    @JsonProperty
+    public String branch;
+
+    @JsonProperty
+    public String traceId;
+
+    @JsonProperty
+    public String state;
+
+    @JsonProperty
+    public String error;
+
+    @JsonProperty
+    public long created;
+
+    @JsonProperty
+    public long started;
+
+    @JsonProperty
+    public long finished;
+
+    @JsonProperty
+    public long logSize;
+
+    public DeployJobStatus(DeployJob job) {
+        this.id = job.getId();
+        this.app = job.getName();
+        this.branch = job.getRef().getDisplayId();
+        this.traceId = job.getTrace().getId();
+        this.state = job.getState().name().toLowerCase();
+        this.error = job.getError();
+        this.created = job.getCreated();
+        this.started = job.getStarted();
+        this.finished = job.getFinished();
+        this.logSize = job.getLog().size();
+    }
+}
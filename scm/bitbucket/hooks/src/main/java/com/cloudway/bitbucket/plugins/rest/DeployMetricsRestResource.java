@@ -0,0 +1,38 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.cloudway.bitbucket.plugins.DeployMetrics;
+import com.sun.jersey.spi.resource.Singleton;
+
+@Singleton
+@Path("/metrics")
+public class DeployMetricsRestResource {
+    private final DeployMetrics metrics;
+    private final PermissionValidationService validator;
+
+    DeployMetricsRestResource(DeployMetrics metrics, PermissionValidationService validator) {
+        this.metrics = metrics;
+        this.validator = validator;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMetrics(@QueryParam("project") String project) {
+        validator.validateForGlobal(Permission.ADMIN);
+        return Response.ok(new MetricsReport(metrics, project)).build();
+    }
+}
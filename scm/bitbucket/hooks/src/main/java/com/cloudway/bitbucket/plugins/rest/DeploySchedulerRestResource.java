@@ -0,0 +1,41 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.cloudway.bitbucket.plugins.DeployAdmission;
+import com.cloudway.bitbucket.plugins.DeployScheduler;
+import com.sun.jersey.spi.resource.Singleton;
+
+@Singleton
+@Path("/scheduler")
+public class DeploySchedulerRestResource {
+    private final DeployScheduler scheduler;
+    private final DeployAdmission admission;
+    private final PermissionValidationService validator;
+
+    DeploySchedulerRestResource(DeployScheduler scheduler, DeployAdmission admission,
+                                PermissionValidationService validator) {
+        this.scheduler = scheduler;
+        this.admission = admission;
+        this.validator = validator;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStats() {
+        validator.validateForGlobal(Permission.ADMIN);
+        return Response.ok(new SchedulerStats(scheduler, admission)).build();
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.cloudway.bitbucket.plugins.DeployTrace;
+import com.cloudway.bitbucket.plugins.DeployTracer;
+import com.sun.jersey.spi.resource.Singleton;
+
+@Singleton
+@Path("/traces")
+public class DeployTraceRestResource {
+    private final DeployTracer tracer;
+    private final PermissionValidationService validator;
+
+    DeployTraceRestResource(DeployTracer tracer, PermissionValidationService validator) {
+        this.tracer = tracer;
+        this.validator = validator;
+    }
+
+    /**
+     * Returns the most recent deployment traces, or the slowest of them if
+     * {@code slowest} is true, optionally restricted to a repository given
+     * as {@code PROJECT/slug}.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTraces(@QueryParam("repository") String repository,
+                              @QueryParam("limit") @DefaultValue("50") int limit,
+                              @QueryParam("slowest") boolean slowest) {
+        validator.validateForGlobal(Permission.ADMIN);
+        List<TraceReport> traces = tracer.recent(repository, Math.max(0, limit), slowest)
+            .stream().map(TraceReport::new).collect(Collectors.toList());
+        return Response.ok(traces).build();
+    }
+
+    @GET
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTrace(@PathParam("id") String id) {
+        validator.validateForGlobal(Permission.ADMIN);
+        DeployTrace trace = tracer.get(id);
+        if (trace == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(new TraceReport(trace)).build();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import com.cloudway.bitbucket.plugins.Histogram;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize
+public class HistogramStats {
+    @JsonProperty
+    public long count;
+
+    @JsonProperty
+    public long min;
+
+    @JsonProperty
+    public long max;
+
+    @JsonProperty
+    public double mean;
+
+    @JsonProperty
+    public long p50;
+
+    @JsonProperty
+    public long p75;
+
+    @JsonProperty
+    public long p95;
+
+    @JsonProperty
+    public long p99;
+
+    public HistogramStats(Histogram h) {
+        this.count = h.getCount();
+        this.min = h.getMin();
+        this.max = h.getMax();
+        this.mean = h.getMean();
+        this.p50 = h.get50thPercentile();
+        this.p75 = h.get75thPercentile();
+        this.p95 = h.get95thPercentile();
+        this.p99 = h.get99thPercentile();
+    }
+}
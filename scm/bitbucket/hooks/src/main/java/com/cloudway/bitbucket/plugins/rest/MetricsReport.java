@@ -0,0 +1,65 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.cloudway.bitbucket.plugins.DeployMetrics;
+import com.cloudway.bitbucket.plugins.Histogram;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize
+public class MetricsReport {
+    @JsonProperty
+    public int deploysInFlight;
+
+    @JsonProperty
+    public int maxDeploysInFlight;
+
+    // metric name -> project -> statistics
+    @JsonProperty
+    public Map<String, Map<String, HistogramStats>> histograms = new TreeMap<>();
+
+    // metric name -> project -> count
+    @JsonProperty
+    public Map<String, Map<String, Long>> counters = new TreeMap<>();
+
+    /**
+     * Report metrics of the given project and the totals, or of all
+     * projects if project is null.
+     */
+    public MetricsReport(DeployMetrics metrics, String project) {
+        this.deploysInFlight = metrics.getDeploysInFlight();
+        this.maxDeploysInFlight = metrics.getMaxDeploysInFlight();
+
+        for (Map.Entry<String, ? extends Map<String, Histogram>> e : metrics.getHistograms().entrySet()) {
+            Map<String, HistogramStats> stats = new TreeMap<>();
+            for (Map.Entry<String, Histogram> p : e.getValue().entrySet()) {
+                if (include(p.getKey(), project)) {
+                    stats.put(p.getKey(), new HistogramStats(p.getValue()));
+                }
+            }
+            histograms.put(e.getKey(), stats);
+        }
+
+        for (Map.Entry<String, ? extends Map<String, DeployMetrics.Counter>> e : metrics.getCounters().entrySet()) {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Map.Entry<String, DeployMetrics.Counter> p : e.getValue().entrySet()) {
+                if (include(p.getKey(), project)) {
+                    counts.put(p.getKey(), p.getValue().getCount());
+                }
+            }
+            counters.put(e.getKey(), counts);
+        }
+    }
+
+    private static boolean include(String key, String project) {
+        return project == null || key.equals(DeployMetrics.ALL) || key.equalsIgnoreCase(project);
+    }
+}
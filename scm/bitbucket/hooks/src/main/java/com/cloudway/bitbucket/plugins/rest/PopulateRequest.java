@@ -0,0 +1,26 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * An entry of a batch populate manifest. The repository is populated from
+ * either a base64 encoded template tarball or a template repository URL.
+ */
+@JsonSerialize
+public class PopulateRequest {
+    @JsonProperty
+    public String repository;
+
+    @JsonProperty
+    public String url;
+
+    @JsonProperty
+    public byte[] template;
+}
@@ -0,0 +1,39 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class PopulateStatus {
+    public static final String POPULATED = "populated";
+    public static final String NOT_EMPTY = "not-empty";
+    public static final String NOT_FOUND = "not-found";
+    public static final String FORBIDDEN = "forbidden";
+    public static final String INVALID   = "invalid";
+    public static final String FAILED    = "failed";
+
+    @JsonProperty
+    public String repository;
+
+    @JsonProperty
+    public String status;
+
+    @JsonProperty
+    public String error;
+
+    @JsonProperty
+    public long time;
+
+    public PopulateStatus(String repository, String status, String error, long time) {
+        this.repository = repository;
+        this.status = status;
+        this.error = error;
+        this.time = time;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import com.cloudway.bitbucket.plugins.DeploymentRefCache;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize
+public class RefCacheStats {
+    @JsonProperty
+    public boolean enabled;
+
+    @JsonProperty
+    public long entries;
+
+    @JsonProperty
+    public long maxSize;
+
+    @JsonProperty
+    public long hits;
+
+    @JsonProperty
+    public long misses;
+
+    @JsonProperty
+    public double hitRate;
+
+    @JsonProperty
+    public long evictions;
+
+    @JsonProperty
+    public long invalidations;
+
+    public RefCacheStats(DeploymentRefCache cache) {
+        this.enabled = cache.isEnabled();
+        this.entries = cache.getEntries();
+        this.maxSize = cache.getMaxSize();
+        this.hits = cache.getHits();
+        this.misses = cache.getMisses();
+        this.hitRate = cache.getHitRate();
+        this.evictions = cache.getEvictions();
+        this.invalidations = cache.getInvalidations();
+    }
+}
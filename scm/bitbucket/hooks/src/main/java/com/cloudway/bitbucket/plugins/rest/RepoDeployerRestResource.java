@@ -7,100 +7,438 @@
 package com.cloudway.bitbucket.plugins.rest;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
-import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import com.atlassian.bitbucket.hook.HookService;
-import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionValidationService;
 import com.atlassian.bitbucket.repository.Ref;
-import com.atlassian.bitbucket.repository.RefService;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.rest.util.ResourcePatterns;
-import com.atlassian.bitbucket.scm.git.GitScmConfig;
-import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.cloudway.bitbucket.plugins.ArchiveCache;
+import com.cloudway.bitbucket.plugins.ArchiveFormat;
+import com.cloudway.bitbucket.plugins.DeployJob;
+import com.cloudway.bitbucket.plugins.DeployJobs;
+import com.cloudway.bitbucket.plugins.DeployRejectedException;
+import com.cloudway.bitbucket.plugins.DeployWatchdog;
 import com.cloudway.bitbucket.plugins.RepoDeployer;
+import com.google.common.io.ByteStreams;
 import com.sun.jersey.spi.resource.Singleton;
 
 @Singleton
 @Path(ResourcePatterns.REPOSITORY_URI)
 @Consumes(MediaType.APPLICATION_JSON)
 public class RepoDeployerRestResource {
+    static final String JOB_HEADER = "X-Deploy-Job";
+    static final String TRACE_HEADER = "X-Trace-Id";
+
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String VARY = "Vary";
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    private static final int TOO_MANY_REQUESTS = 429;
+
     private final RepoDeployer deployer;
+    private final DeployJobs jobs;
+    private final DeployWatchdog watchdog;
     private final RepositoryService repoService;
     private final PermissionValidationService validator;
 
-    RepoDeployerRestResource(GitCommandBuilderFactory cmdFactory,
-                             GitScmConfig gitScmConfig,
-                             HookService hookService,
-                             RepositoryHookService repoHookService,
+    RepoDeployerRestResource(RepoDeployer deployer,
+                             DeployJobs jobs,
+                             DeployWatchdog watchdog,
                              RepositoryService repoService,
-                             RefService refService,
                              PermissionValidationService validator) {
-        this.deployer = new RepoDeployer(cmdFactory, gitScmConfig,
-                                         hookService, repoHookService,
-                                         repoService, refService);
+        this.deployer = deployer;
+        this.jobs = jobs;
+        this.watchdog = watchdog;
         this.repoService = repoService;
         this.validator = validator;
     }
 
+    /**
+     * Archive the deployment branch. The strong ETag is derived from the
+     * archived commit, so unchanged archives are answered with 304 without
+     * running git. Single byte ranges are served from cached archives, so
+     * interrupted downloads can be resumed. Uncached archives are streamed
+     * from git as they are generated, while being added to the cache, and
+     * the response is aborted if git fails.
+     *
+     * <p>The archive can be restricted to one or more {@code path} query
+     * parameters, which are git pathspecs. The format is negotiated from
+     * the Accept header, or given by the {@code format} query parameter
+     * as a file extension.</p>
+     */
     @GET
     @Path("/archive")
-    @Produces("application/tar")
-    public Response archive(@Context Repository repository) {
+    @Produces({"application/tar", "application/x-tar",
+               "application/gzip", "application/x-gzip", "application/x-tgz"})
+    public Response archive(@Context Repository repository, @Context Request request,
+                            @Context HttpHeaders headers,
+                            @QueryParam("path") List<String> paths,
+                            @QueryParam("format") String formatName,
+                            @HeaderParam("Range") String range,
+                            @HeaderParam("If-Range") String ifRange) {
         validator.validateForRepository(repository, Permission.REPO_READ);
 
+        ArchiveFormat format = formatName != null
+            ? ArchiveFormat.of(formatName)
+            : negotiate(headers.getAcceptableMediaTypes());
+        if (format == null) {
+            return Response.notAcceptable(null).build();
+        }
+
+        InputStream entity = null;
         try {
             Ref ref = deployer.getDeploymentBranch(repository);
-            InputStream entity = deployer.archive(repository, ref);
-            return Response.ok(entity).build();
+            String commit = deployer.getArchiveCommit(repository, ref);
+            EntityTag etag = commit != null
+                ? new EntityTag(RepoDeployer.getArchiveTag(commit, format, paths))
+                : null;
+
+            if (etag != null) {
+                Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+                if (notModified != null) {
+                    return notModified.tag(etag).header(VARY, HttpHeaders.ACCEPT).build();
+                }
+            }
+
+            entity = deployer.archive(repository, commit, format, paths);
+            if (entity == null) {
+                // Stream git output straight to the response, and to the
+                // archive cache if enabled. A failure while streaming
+                // propagates to the container, which then aborts the
+                // response instead of completing it.
+                StreamingOutput stream = out -> deployer.writeArchive(repository, commit, format, paths, out);
+                return tagged(Response.ok(stream), etag, format).build();
+            }
+            if (!(entity instanceof ArchiveCache.CachedInputStream)) {
+                // the size is unknown until git is done, ranges are ignored
+                return tagged(Response.ok(entity), etag, format).build();
+            }
+
+            ArchiveCache.CachedInputStream cached = (ArchiveCache.CachedInputStream)entity;
+            long size = cached.size();
+            long[] bounds = null;
+            if (range != null && etag != null && (ifRange == null || ifRange.equals(etag.toString()))) {
+                bounds = parseRange(range, size);
+            }
+
+            if (bounds == null) {
+                return tagged(Response.ok(cached), etag, format)
+                    .header(HttpHeaders.CONTENT_LENGTH, size)
+                    .header(ACCEPT_RANGES, "bytes")
+                    .build();
+            }
+            if (bounds.length == 0) {
+                cached.close();
+                return tagged(Response.status(REQUESTED_RANGE_NOT_SATISFIABLE), etag, format)
+                    .header(CONTENT_RANGE, "bytes */" + size)
+                    .build();
+            }
+
+            cached.seek(bounds[0]);
+            long length = bounds[1] - bounds[0] + 1;
+            return tagged(Response.status(PARTIAL_CONTENT), etag, format)
+                .entity(ByteStreams.limit(cached, length))
+                .header(HttpHeaders.CONTENT_LENGTH, length)
+                .header(ACCEPT_RANGES, "bytes")
+                .header(CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + size)
+                .build();
         } catch (Exception ex) {
-            return Response.serverError().build();
+            if (entity != null) {
+                try {
+                    entity.close();
+                } catch (IOException ioe) {
+                    // ignored
+                }
+            }
+            return Response.serverError().entity(ex.getMessage()).type(MediaType.TEXT_PLAIN).build();
+        }
+    }
+
+    private static Response.ResponseBuilder tagged(Response.ResponseBuilder builder, EntityTag etag,
+                                                   ArchiveFormat format) {
+        builder.type(format.getMediaType()).header(VARY, HttpHeaders.ACCEPT);
+        return etag != null ? builder.tag(etag) : builder;
+    }
+
+    /**
+     * Returns the first supported archive format in order of preference,
+     * tar if any format is acceptable, or null if none is supported.
+     */
+    static ArchiveFormat negotiate(List<MediaType> acceptable) {
+        if (acceptable == null || acceptable.isEmpty()) {
+            return ArchiveFormat.TAR;
+        }
+        for (MediaType type : acceptable) {
+            if (type.isWildcardType() || type.isWildcardSubtype()) {
+                return ArchiveFormat.TAR;
+            }
+            ArchiveFormat format = ArchiveFormat.of(type.getType() + "/" + type.getSubtype());
+            if (format != null) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a Range header of a single byte range.
+     *
+     * @return the first and last byte positions, an empty array if the range
+     * can't be satisfied, or null if the header should be ignored
+     */
+    static long[] parseRange(String range, long size) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null; // multiple ranges are served as a whole
+        }
+
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        long first, last;
+        try {
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            if (start.isEmpty()) {
+                // suffix range: the last N bytes
+                long n = Long.parseLong(end);
+                if (n <= 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, size - n);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(start);
+                last = size - 1;
+                if (!end.isEmpty()) {
+                    long n = Long.parseLong(end);
+                    if (n < first) {
+                        return null; // invalid syntax
+                    }
+                    last = Math.min(n, last);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        if (first < 0 || first >= size || last < first) {
+            return new long[0];
         }
+        return new long[] { first, last };
     }
 
+    /**
+     * Deploy and stream the multiplexed log until the deployment is done.
+     * A failed deployment ends the log with an error record on the data
+     * stream, since the status is sent before it fails. The deployment runs
+     * as a job that survives a disconnect, its ID is returned in the
+     * {@value #JOB_HEADER} header. If the deployment is not
+     * admitted in time, 429 is returned with a Retry-After header. The
+     * deployment is skipped if the tree is already deployed, unless the
+     * {@code force} query parameter is true. The deployment is traced with
+     * the ID given in the {@value #TRACE_HEADER} header, or a generated one
+     * returned in the same header.
+     *
+     * <p>The {@code app} query parameter names the application to deploy,
+     * one of the applications deployed on push: the repository application,
+     * an application of the {@code apps} hook setting, deployed from its
+     * subdirectory, or a preview. It defaults to the repository application,
+     * and 400 is returned if that is not deployed on push.</p>
+     */
     @POST
     @Path("/deploy")
-    public Response deploy(@Context final Repository repository, @QueryParam("branch") final String branch) {
+    public Response deploy(@Context final Repository repository, @QueryParam("branch") final String branch,
+                           @QueryParam("app") final String app, @QueryParam("force") final boolean force,
+                           @HeaderParam(TRACE_HEADER) final String traceId) {
         validator.validateForRepository(repository, Permission.REPO_READ);
 
-        StreamingOutput stream = new StreamingOutput() {
-            @Override
-            public void write(OutputStream out) throws IOException {
-                try {
-                    if (branch != null && !branch.isEmpty()) {
-                        deployer.setDeploymentBranch(repository, branch);
-                    }
+        DeployJob job;
+        try {
+            job = submit(repository, branch, app, force, traceId);
+        } catch (DeployRejectedException ex) {
+            return tooManyRequests(ex);
+        } catch (IllegalArgumentException ex) {
+            return badRequest(ex);
+        } catch (Exception ex) {
+            return Response.serverError().build();
+        }
+        return Response.ok(tail(job, 0))
+            .header(JOB_HEADER, job.getId())
+            .header(TRACE_HEADER, job.getTrace().getId())
+            .build();
+    }
 
-                    Ref ref = deployer.getDeploymentBranch(repository);
-                    OutputStream stdout = new StdWriter(out, StdWriter.Stdout);
-                    OutputStream stderr = new StdWriter(out, StdWriter.Stderr);
-                    deployer.deploy(repository, ref, stdout, stderr);
-                } catch (IOException ioe) {
-                    throw ioe;
-                } catch (Exception ex) {
-                    throw new WebApplicationException(ex);
+    /**
+     * Cancel the running deployments of the repository, or only the one to
+     * the application given by the {@code app} query parameter. Deployers
+     * are killed along with the processes they started and the git commands
+     * feeding them, and their deployments fail. Returns 404 if there is
+     * no such deployment running.
+     */
+    @DELETE
+    @Path("/deploy")
+    public Response cancel(@Context Repository repository, @QueryParam("app") String app) {
+        validator.validateForRepository(repository, Permission.REPO_READ);
+
+        String namespace = repository.getProject().getKey().toLowerCase();
+        Set<String> names = deployer.getDeploymentTargets(repository).keySet();
+        int cancelled = 0;
+        for (String name : names) {
+            if (app == null || app.equalsIgnoreCase(name)) {
+                cancelled += watchdog.cancel(namespace, name);
+            }
+        }
+        if (cancelled == 0) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.noContent().build();
+    }
+
+    /**
+     * Start a deployment job and return its status without waiting for
+     * the deployment, or 429 if it is not admitted in time. The application
+     * is chosen as for {@link #deploy}.
+     */
+    @POST
+    @Path("/jobs")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response submitJob(@Context Repository repository, @QueryParam("branch") String branch,
+                              @QueryParam("app") String app, @QueryParam("force") boolean force,
+                              @HeaderParam(TRACE_HEADER) String traceId) {
+        validator.validateForRepository(repository, Permission.REPO_READ);
+
+        try {
+            DeployJob job = submit(repository, branch, app, force, traceId);
+            return Response.status(Response.Status.ACCEPTED).entity(new DeployJobStatus(job)).build();
+        } catch (DeployRejectedException ex) {
+            return tooManyRequests(ex);
+        } catch (IllegalArgumentException ex) {
+            return badRequest(ex);
+        } catch (Exception ex) {
+            return Response.serverError().build();
+        }
+    }
+
+    @GET
+    @Path("/jobs/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJob(@Context Repository repository, @PathParam("id") String id) {
+        validator.validateForRepository(repository, Permission.REPO_READ);
+
+        DeployJob job = findJob(repository, id);
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(new DeployJobStatus(job)).build();
+    }
+
+    /**
+     * Stream the multiplexed log of a job from the given byte offset, until
+     * the job is done. A client that lost its connection resumes by passing
+     * the number of bytes it has already received.
+     */
+    @GET
+    @Path("/jobs/{id}/log")
+    public Response getJobLog(@Context Repository repository, @PathParam("id") String id,
+                              @QueryParam("offset") @DefaultValue("0") long offset) {
+        validator.validateForRepository(repository, Permission.REPO_READ);
+
+        DeployJob job = findJob(repository, id);
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(tail(job, offset)).header(JOB_HEADER, job.getId()).build();
+    }
+
+    /**
+     * Submit a deployment of the given application, resolved against the
+     * same targets as a push, so an application deployed from a subdirectory
+     * gets its subtree and a preview gets its ref.
+     *
+     * @throws IllegalArgumentException if the application is not deployed on push
+     */
+    private DeployJob submit(Repository repository, String branch, String app, boolean force, String traceId)
+        throws IOException
+    {
+        if (branch != null && !branch.isEmpty()) {
+            deployer.setDeploymentBranch(repository, branch);
+        }
+
+        Map<String, Ref> targets = deployer.getDeploymentTargets(repository);
+        String name = app != null && !app.isEmpty() ? app.toLowerCase() : RepoDeployer.getApplicationName(repository);
+        Ref ref = targets.get(name);
+        if (ref == null) {
+            throw new IllegalArgumentException("Application " + name + " is not deployed from this repository, " +
+                                               "expected one of " + targets.keySet());
+        }
+        return jobs.submit(repository, name, ref, force, traceId);
+    }
+
+    private static Response badRequest(IllegalArgumentException ex) {
+        return Response.status(Response.Status.BAD_REQUEST)
+            .entity(ex.getMessage())
+            .type(MediaType.TEXT_PLAIN)
+            .build();
+    }
+
+    private static Response tooManyRequests(DeployRejectedException ex) {
+        return Response.status(TOO_MANY_REQUESTS)
+            .header(RETRY_AFTER, ex.getRetryAfter())
+            .entity(ex.getMessage())
+            .type(MediaType.TEXT_PLAIN)
+            .build();
+    }
+
+    private DeployJob findJob(Repository repository, String id) {
+        DeployJob job = jobs.get(id);
+        return job != null && job.getRepository().getId() == repository.getId() ? job : null;
+    }
+
+    private static StreamingOutput tail(DeployJob job, long offset) {
+        return out -> {
+            try (InputStream in = job.getLog().openStream(offset)) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    if (in.available() == 0) {
+                        out.flush(); // about to wait for more output
+                    }
                 }
             }
         };
-
-        return Response.ok(stream).build();
     }
 
     @GET
@@ -125,7 +463,7 @@ public class RepoDeployerRestResource {
                 deployer.populate(repository, payload);
                 return Response.noContent().build();
             } catch (Exception ex) {
-                return Response.serverError().build();
+                return Response.serverError().entity(ex.getMessage()).type(MediaType.TEXT_PLAIN).build();
             }
         } else {
             return Response.status(Response.Status.FORBIDDEN).build();
@@ -142,7 +480,7 @@ public class RepoDeployerRestResource {
                 deployer.populate(repository, url);
                 return Response.noContent().build();
             } catch (Exception ex) {
-                return Response.serverError().build();
+                return Response.serverError().entity(ex.getMessage()).type(MediaType.TEXT_PLAIN).build();
             }
         } else {
             return Response.status(Response.Status.FORBIDDEN).build();
@@ -0,0 +1,70 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import com.cloudway.bitbucket.plugins.DeployAdmission;
+import com.cloudway.bitbucket.plugins.DeployScheduler;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize
+public class SchedulerStats {
+    @JsonProperty
+    public int workers;
+
+    @JsonProperty
+    public int running;
+
+    @JsonProperty
+    public int queueDepth;
+
+    @JsonProperty
+    public long submitted;
+
+    @JsonProperty
+    public long coalesced;
+
+    @JsonProperty
+    public long completed;
+
+    @JsonProperty
+    public long failed;
+
+    @JsonProperty
+    public int admissionLimit;
+
+    @JsonProperty
+    public int admissionNamespaceLimit;
+
+    @JsonProperty
+    public int admissionRunning;
+
+    @JsonProperty
+    public int admissionWaiting;
+
+    @JsonProperty
+    public long admitted;
+
+    @JsonProperty
+    public long rejected;
+
+    public SchedulerStats(DeployScheduler scheduler, DeployAdmission admission) {
+        this.workers = scheduler.getWorkers();
+        this.running = scheduler.getRunning();
+        this.queueDepth = scheduler.getQueueDepth();
+        this.submitted = scheduler.getSubmitted();
+        this.coalesced = scheduler.getCoalesced();
+        this.completed = scheduler.getCompleted();
+        this.failed = scheduler.getFailed();
+        this.admissionLimit = admission.getLimit();
+        this.admissionNamespaceLimit = admission.getNamespaceLimit();
+        this.admissionRunning = admission.getRunning();
+        this.admissionWaiting = admission.getWaiting();
+        this.admitted = admission.getAdmitted();
+        this.rejected = admission.getRejected();
+    }
+}
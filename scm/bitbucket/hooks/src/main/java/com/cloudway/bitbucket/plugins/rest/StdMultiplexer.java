@@ -0,0 +1,203 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+
+import com.cloudway.bitbucket.plugins.LogFlusher;
+
+/**
+ * Multiplexes several {@link StdWriter} streams onto one output stream.
+ *
+ * <p>Frames from all streams are packed into a single buffer in the order
+ * they are written, and consecutive writes to the same stream are merged into
+ * one frame. The buffer is written out when it is full or when the oldest
+ * buffered byte is older than the flush interval of the {@link LogFlusher},
+ * instead of after every frame. The frame format is the same as written by
+ * an unbuffered {@code StdWriter}.</p>
+ */
+public class StdMultiplexer implements Flushable, Closeable {
+    private static final int stdWriterPrefixLen = 8;
+    private static final int stdWriterFdIndex = 0;
+    private static final int stdWriterSizeIndex = 4;
+
+    private final OutputStream out;
+    private final LogFlusher flusher;
+    private final byte[] buf;
+    private final byte[] header = new byte[stdWriterPrefixLen];
+    private int count;
+    private int frameStart = -1;   // start of the last frame in buffer, -1 if none
+    private ScheduledFuture<?> pendingFlush;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Creates a multiplexer whose buffer is flushed by the given flusher.
+     * Use {@link LogFlusher#multiplex} for the configured buffer size.
+     */
+    public StdMultiplexer(OutputStream out, LogFlusher flusher, int bufferSize) {
+        this.out = out;
+        this.flusher = flusher;
+        this.buf = new byte[Math.max(bufferSize, 2 * stdWriterPrefixLen)];
+    }
+
+    /**
+     * Returns a stream whose output is multiplexed with the given prefix.
+     */
+    public StdWriter stream(byte prefix) {
+        return new StdWriter(this, prefix);
+    }
+
+    synchronized void write(byte prefix, int b) throws IOException {
+        ensureOpen();
+        if (frameStart >= 0 && buf[frameStart + stdWriterFdIndex] == prefix && count < buf.length) {
+            buf[count++] = (byte)b;
+            addFrameSize(1);
+        } else {
+            if (count + stdWriterPrefixLen + 1 > buf.length) {
+                flushBuffer();
+            }
+            startFrame(prefix, 1);
+            buf[count++] = (byte)b;
+        }
+        scheduleFlush();
+    }
+
+    synchronized void write(byte prefix, byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        if (frameStart >= 0 && buf[frameStart + stdWriterFdIndex] == prefix && count + len <= buf.length) {
+            // append to the last frame
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            addFrameSize(len);
+        } else if (stdWriterPrefixLen + len <= buf.length) {
+            if (count + stdWriterPrefixLen + len > buf.length) {
+                flushBuffer();
+            }
+            startFrame(prefix, len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        } else {
+            // too large to buffer, write the frame directly
+            flushBuffer();
+            putHeader(header, 0, prefix, len);
+            try {
+                out.write(header);
+                out.write(b, off, len);
+                out.flush();
+            } catch (IOException ex) {
+                failure = ex;
+                throw ex;
+            }
+            return;
+        }
+
+        if (count == buf.length) {
+            flushBuffer();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    private void startFrame(byte prefix, int len) {
+        frameStart = count;
+        putHeader(buf, count, prefix, len);
+        count += stdWriterPrefixLen;
+    }
+
+    private void addFrameSize(int len) {
+        int sizeIndex = frameStart + stdWriterSizeIndex;
+        int size = ((buf[sizeIndex] & 0xff) << 24) | ((buf[sizeIndex + 1] & 0xff) << 16) |
+                   ((buf[sizeIndex + 2] & 0xff) << 8) | (buf[sizeIndex + 3] & 0xff);
+        putSize(buf, sizeIndex, size + len);
+    }
+
+    private static void putHeader(byte[] b, int off, byte prefix, int len) {
+        b[off + stdWriterFdIndex] = prefix;
+        b[off + 1] = b[off + 2] = b[off + 3] = 0;
+        putSize(b, off + stdWriterSizeIndex, len);
+    }
+
+    private static void putSize(byte[] b, int off, int size) {
+        b[off]     = (byte)(size >>> 24);
+        b[off + 1] = (byte)(size >>> 16);
+        b[off + 2] = (byte)(size >>> 8);
+        b[off + 3] = (byte)size;
+    }
+
+    private void scheduleFlush() {
+        if (pendingFlush == null && count > 0) {
+            pendingFlush = flusher.schedule(this::timedFlush);
+        }
+    }
+
+    private synchronized void timedFlush() {
+        pendingFlush = null;
+        if (!closed && failure == null) {
+            try {
+                flushBuffer();
+            } catch (IOException ex) {
+                // reported to the next writer
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (count > 0) {
+            try {
+                out.write(buf, 0, count);
+                out.flush();
+            } catch (IOException ex) {
+                failure = ex;
+                throw ex;
+            } finally {
+                count = 0;
+                frameStart = -1;
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    /**
+     * Flush buffered frames. The underlying stream is left open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            try {
+                if (failure == null) {
+                    flushBuffer();
+                }
+            } finally {
+                closed = true;
+            }
+        }
+    }
+}
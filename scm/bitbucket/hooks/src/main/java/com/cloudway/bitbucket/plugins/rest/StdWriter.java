@@ -6,13 +6,18 @@
 
 package com.cloudway.bitbucket.plugins.rest;
 
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
-public class StdWriter extends FilterOutputStream {
+/**
+ * One stream of a {@link StdMultiplexer}. Output is sent in frames with an
+ * 8 byte header holding the stream type and the big endian size of the frame
+ * payload. Writes are buffered by the multiplexer, which merges consecutive
+ * writes to the same stream into one frame and sends them when its buffer is
+ * full (default: 32 KiB) or after the flush interval (default: 50 ms), or
+ * when the stream is flushed.
+ */
+public class StdWriter extends OutputStream {
     // Stdin represents standard input stream type.
     public static final byte Stdin = 0;
     // Stdout represents standard output stream type.
@@ -22,22 +27,17 @@ public class StdWriter extends FilterOutputStream {
     // Data represents application data stream type.
     public static final byte Data = 3;
 
-    private static final int stdWriterPrefixLen = 8;
-    private static final int stdWriterFdIndex = 0;
-    private static final int stdWriterSizeIndex = 4;
-
+    private final StdMultiplexer mux;
     private final byte prefix;
 
-    public StdWriter(OutputStream out, byte prefix) {
-        super(out);
+    StdWriter(StdMultiplexer mux, byte prefix) {
+        this.mux = mux;
         this.prefix = prefix;
     }
 
     @Override
     public void write(int b) throws IOException {
-        byte[] buf = new byte[1];
-        buf[0] = (byte)(b & 0xff);
-        write(buf, 0, 1);
+        mux.write(prefix, b);
     }
 
     @Override
@@ -47,15 +47,11 @@ public class StdWriter extends FilterOutputStream {
         if (len == 0)
             return;
 
-        ByteBuffer header = ByteBuffer.allocate(stdWriterPrefixLen);
-        header.order(ByteOrder.BIG_ENDIAN);
-        header.put(stdWriterFdIndex, prefix);
-        header.putInt(stdWriterSizeIndex, len);
+        mux.write(prefix, b, off, len);
+    }
 
-        synchronized (out) {
-            out.write(header.array());
-            out.write(b, off, len);
-            out.flush();
-        }
+    @Override
+    public void flush() throws IOException {
+        mux.flush();
     }
 }
@@ -0,0 +1,68 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloudway.bitbucket.plugins.DeployTrace;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonSerialize
+public class TraceReport {
+    @JsonSerialize
+    public static class SpanReport {
+        @JsonProperty
+        public String name;
+
+        @JsonProperty
+        public long offset;
+
+        @JsonProperty
+        public long duration;
+
+        SpanReport(DeployTrace.Span span) {
+            this.name = span.getName();
+            this.offset = span.getOffset();
+            this.duration = span.getDuration();
+        }
+    }
+
+    @JsonProperty
+    public String id;
+
+    @JsonProperty
+    public String repository;
+
+    @JsonProperty
+    public String operation;
+
+    @JsonProperty
+    public long started;
+
+    @JsonProperty
+    public long duration;
+
+    @JsonProperty
+    public boolean success;
+
+    @JsonProperty
+    public List<SpanReport> spans = new ArrayList<>();
+
+    public TraceReport(DeployTrace trace) {
+        this.id = trace.getId();
+        this.repository = trace.getRepository();
+        this.operation = trace.getOperation();
+        this.started = trace.getStarted();
+        this.duration = trace.getDuration();
+        this.success = trace.isSuccess();
+        for (DeployTrace.Span span : trace.getSpans()) {
+            spans.add(new SpanReport(span));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArchiveCacheTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("archive-cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        System.clearProperty("cloudway.deployer.archive.cache.wait");
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static void fill(ArchiveCache cache, String key, String content) throws IOException {
+        try (ArchiveCache.Fill fill = cache.create(key)) {
+            assertNotNull(fill);
+            try (OutputStream out = fill.newOutputStream()) {
+                out.write(content.getBytes(StandardCharsets.UTF_8));
+            }
+            fill.commit().close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private long count(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.toString().endsWith(suffix)).count();
+        }
+    }
+
+    @Test
+    public void testCommitAndOpen() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir, 1024);
+        assertNull(cache.open("a"));
+
+        fill(cache, "a", "archive");
+        ArchiveCache.CachedInputStream in = cache.open("a");
+        assertNotNull(in);
+        assertEquals(7, in.size());
+        in.seek(3);
+        assertEquals("hive", read(in));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEntries());
+        assertEquals(7, cache.getSize());
+    }
+
+    @Test
+    public void testCloseAbortsFill() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir, 1024);
+        try (ArchiveCache.Fill fill = cache.create("a")) {
+            assertNull("filled by another caller", cache.create("a"));
+            fill.newOutputStream().write(1);
+        }
+
+        assertNull(cache.open("a"));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, count(".tmp"));
+        assertNotNull(cache.create("a"));
+    }
+
+    @Test
+    public void testOpenWaitsForFill() throws Exception {
+        ArchiveCache cache = new ArchiveCache(dir, 1024);
+        ArchiveCache.Fill fill = cache.create("a");
+        fill.newOutputStream().write("archive".getBytes(StandardCharsets.UTF_8));
+
+        CountDownLatch started = new CountDownLatch(1);
+        String[] content = new String[1];
+        Thread reader = new Thread(() -> {
+            started.countDown();
+            try {
+                content[0] = read(cache.open("a"));
+            } catch (IOException ex) {
+                content[0] = ex.toString();
+            }
+        });
+        reader.start();
+        started.await();
+        Thread.sleep(100);
+        assertTrue("reader must wait for the fill", reader.isAlive());
+
+        fill.commit().close();
+        reader.join(5000);
+        assertEquals("archive", content[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenTimesOut() throws IOException {
+        System.setProperty("cloudway.deployer.archive.cache.wait", "1");
+        ArchiveCache cache = new ArchiveCache(dir, 1024);
+        ArchiveCache.Fill fill = cache.create("a");
+        try {
+            cache.open("a");
+        } finally {
+            fill.close();
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir, 10);
+        fill(cache, "a", "aaaa");
+        fill(cache, "b", "bbbb");
+        cache.open("a").close();
+        fill(cache, "c", "cccc");
+
+        assertEquals("aaaa", read(cache.open("a")));
+        assertNull(cache.open("b"));
+        assertEquals("cccc", read(cache.open("c")));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(8, cache.getSize());
+        assertEquals(2, count(".archive"));
+    }
+
+    @Test
+    public void testEvictLargeArchive() throws IOException {
+        // an archive larger than the cache is still readable once committed
+        ArchiveCache cache = new ArchiveCache(dir, 4);
+        fill(cache, "a", "aaaa");
+        try (ArchiveCache.Fill fill = cache.create("b")) {
+            try (OutputStream out = fill.newOutputStream()) {
+                out.write("bbbbbbbb".getBytes(StandardCharsets.UTF_8));
+            }
+            assertEquals("bbbbbbbb", read(fill.commit()));
+        }
+
+        assertNull(cache.open("a"));
+        assertNull(cache.open("b"));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, count(".archive"));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir, 1024);
+        fill(cache, "a", "archive");
+        cache.create("b").newOutputStream().close(); // left over by a crash
+
+        ArchiveCache reloaded = new ArchiveCache(dir, 1024);
+        assertEquals("archive", read(reloaded.open("a")));
+        assertEquals(1, reloaded.getEntries());
+        assertEquals(0, count(".tmp"));
+    }
+
+    @Test
+    public void testDisabled() {
+        assertFalse(new ArchiveCache(dir, 0).isEnabled());
+        assertTrue(new ArchiveCache(dir, 1).isEnabled());
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeployAdmissionTest {
+    private static final String PREFIX = "cloudway.deployer.admission.";
+
+    private DeployMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new DeployMetrics(0);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.destroy();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                System.clearProperty(name);
+            }
+        }
+    }
+
+    private DeployAdmission admission(int limit, int namespaceLimit) {
+        System.setProperty(PREFIX + "limit", String.valueOf(limit));
+        System.setProperty(PREFIX + "namespace.limit", String.valueOf(namespaceLimit));
+        return new DeployAdmission(metrics);
+    }
+
+    /**
+     * Queue a deployment of the given namespace, recorded in the order of
+     * admission and released at once, and wait until it is queued.
+     */
+    private static Thread enqueue(DeployAdmission admission, String namespace, int permits, List<String> order)
+        throws InterruptedException
+    {
+        int waiting = admission.getWaiting();
+        Thread t = new Thread(() -> {
+            try {
+                DeployAdmission.Permit permit = admission.acquire(namespace, permits);
+                order.add(namespace);
+                permit.close();
+            } catch (InterruptedException ex) {
+                // test failed
+            }
+        });
+        t.start();
+        while (admission.getWaiting() == waiting) {
+            Thread.sleep(1);
+        }
+        return t;
+    }
+
+    private static void joinAll(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(5000);
+            assertFalse("deployment not admitted", t.isAlive());
+        }
+    }
+
+    @Test
+    public void testLimit() throws InterruptedException {
+        DeployAdmission admission = admission(2, 0);
+        DeployAdmission.Permit p1 = admission.acquire("a");
+        DeployAdmission.Permit p2 = admission.acquire("b");
+        assertEquals(2, admission.getRunning());
+
+        assertNull(admission.acquire("c", 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, admission.getRejected());
+        assertEquals(0, admission.getWaiting());
+
+        p1.close();
+        p1.close(); // released once
+        assertEquals(1, admission.getRunning());
+        DeployAdmission.Permit p3 = admission.acquire("c", 0, TimeUnit.MILLISECONDS);
+        assertNotNull(p3);
+        p2.close();
+        p3.close();
+        assertEquals(0, admission.getRunning());
+        assertEquals(3, admission.getAdmitted());
+    }
+
+    @Test(expected = DeployRejectedException.class)
+    public void testTryAcquireRejected() throws Exception {
+        System.setProperty(PREFIX + "timeout", "0");
+        DeployAdmission admission = admission(1, 0);
+        try (DeployAdmission.Permit permit = admission.acquire("a")) {
+            assertNotNull(permit);
+            admission.tryAcquire("b");
+        }
+    }
+
+    @Test
+    public void testNamespaceLimit() throws InterruptedException {
+        DeployAdmission admission = admission(3, 1);
+        assertEquals(1, admission.getMaxPermits());
+
+        try (DeployAdmission.Permit permit = admission.acquire("a")) {
+            assertNotNull(permit);
+            assertNull(admission.acquire("a", 0, TimeUnit.MILLISECONDS));
+            DeployAdmission.Permit other = admission.acquire("b", 0, TimeUnit.MILLISECONDS);
+            assertNotNull(other);
+            other.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyPermits() throws InterruptedException {
+        admission(2, 0).acquire("a", 3);
+    }
+
+    @Test
+    public void testFairQueuing() throws InterruptedException {
+        DeployAdmission admission = admission(1, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+
+        // a namespace pushing many repositories doesn't starve the others
+        DeployAdmission.Permit permit = admission.acquire("a");
+        for (int i = 0; i < 3; i++) {
+            threads.add(enqueue(admission, "a", 1, order));
+        }
+        threads.add(enqueue(admission, "b", 1, order));
+        threads.add(enqueue(admission, "b", 1, order));
+        permit.close();
+        joinAll(threads);
+
+        assertEquals(Arrays.asList("b", "a", "b", "a", "a"), order);
+    }
+
+    @Test
+    public void testWeight() throws InterruptedException {
+        System.setProperty(PREFIX + "weight.b", "2");
+        DeployAdmission admission = admission(1, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+
+        DeployAdmission.Permit permit = admission.acquire("c");
+        for (int i = 0; i < 2; i++) {
+            threads.add(enqueue(admission, "a", 1, order));
+        }
+        for (int i = 0; i < 4; i++) {
+            threads.add(enqueue(admission, "b", 1, order));
+        }
+        permit.close();
+        joinAll(threads);
+
+        assertEquals(Arrays.asList("b", "a", "b", "b", "a", "b"), order);
+    }
+
+    @Test
+    public void testLargeDeploymentNotOvertaken() throws InterruptedException {
+        DeployAdmission admission = admission(2, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+
+        // a deployment of two applications waits for both slots, and later
+        // single deployments don't take the slot freed in the meantime
+        DeployAdmission.Permit p1 = admission.acquire("x");
+        DeployAdmission.Permit p2 = admission.acquire("y");
+        threads.add(enqueue(admission, "a", 2, order));
+        threads.add(enqueue(admission, "x", 1, order));
+        p1.close();
+        Thread.sleep(50);
+        assertEquals(1, admission.getRunning());
+        assertEquals(2, admission.getWaiting());
+
+        p2.close();
+        joinAll(threads);
+        assertEquals(Arrays.asList("a", "x"), order);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DeploySchedulerTest {
+    private RepoDeployer deployer;
+    private DeployMetrics metrics;
+    private DeployScheduler scheduler;
+    private Repository repository;
+
+    // the targets of each deployment, in order
+    private final List<Map<String, Ref>> deployed = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Throwable {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("PRJ");
+        repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(1);
+        when(repository.getSlug()).thenReturn("app");
+        when(repository.getProject()).thenReturn(project);
+
+        // run operations with permission at once
+        EscalatedSecurityContext context = mock(EscalatedSecurityContext.class);
+        when(context.call(Matchers.<Operation<Object, Throwable>>any())).thenAnswer(invocation ->
+            ((Operation<?, ?>)invocation.getArguments()[0]).perform());
+        SecurityService securityService = mock(SecurityService.class);
+        when(securityService.withPermission(any(Permission.class), anyString())).thenReturn(context);
+
+        // the first deployment blocks until released
+        deployer = mock(RepoDeployer.class);
+        when(deployer.groupByTree(eq(repository), Matchers.<Map<String, Ref>>any())).thenAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Ref> targets = (Map<String, Ref>)invocation.getArguments()[1];
+            deployed.add(new LinkedHashMap<>(targets));
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+
+            RepoDeployer.DeployGroup group = new RepoDeployer.DeployGroup("tree");
+            group.refs.putAll(targets);
+            return Collections.singletonList(group);
+        });
+        when(deployer.deploy(eq(repository), any(RepoDeployer.DeployGroup.class))).thenAnswer(invocation ->
+            ((RepoDeployer.DeployGroup)invocation.getArguments()[1]).getRefs().keySet());
+
+        metrics = new DeployMetrics(0);
+        scheduler = new DeployScheduler(deployer, new DeployAdmission(metrics), securityService,
+                                        metrics, new DeployTracer());
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.destroy();
+        metrics.destroy();
+    }
+
+    private static Ref ref(String id) {
+        Ref ref = mock(Ref.class);
+        when(ref.getId()).thenReturn(id);
+        return ref;
+    }
+
+    private void awaitCompleted(long count) throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.getCompleted() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.getCompleted());
+        assertEquals(0, scheduler.getFailed());
+    }
+
+    @Test
+    public void testCoalescePushes() throws InterruptedException {
+        Ref first = ref("refs/heads/master@1");
+        Ref second = ref("refs/heads/master@2");
+        Ref third = ref("refs/heads/master@3");
+
+        scheduler.schedule(repository, Collections.singletonMap("app", first));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // pushes while deploying wait as a single deployment of the last ref
+        scheduler.schedule(repository, Collections.singletonMap("app", second));
+        scheduler.schedule(repository, Collections.singletonMap("app", third));
+        assertEquals(1, scheduler.getQueueDepth());
+        assertEquals(3, scheduler.getSubmitted());
+        assertEquals(1, scheduler.getCoalesced());
+
+        release.countDown();
+        awaitCompleted(2);
+
+        assertEquals(2, deployed.size());
+        assertSame(first, deployed.get(0).get("app"));
+        assertSame(third, deployed.get(1).get("app"));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void testCoalesceApplications() throws InterruptedException {
+        Ref master = ref("refs/heads/master");
+        Ref feature = ref("refs/heads/feature");
+        Ref fix = ref("refs/heads/fix");
+
+        scheduler.schedule(repository, Collections.singletonMap("app", master));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the targets of waiting pushes are merged by application
+        Map<String, Ref> previews = new LinkedHashMap<>();
+        previews.put("feature", feature);
+        previews.put("app", master);
+        scheduler.schedule(repository, previews);
+        scheduler.schedule(repository, Collections.singletonMap("fix", fix));
+
+        release.countDown();
+        awaitCompleted(4);
+
+        assertEquals(2, deployed.size());
+        Map<String, Ref> expected = new LinkedHashMap<>();
+        expected.put("feature", feature);
+        expected.put("app", master);
+        expected.put("fix", fix);
+        assertEquals(expected, deployed.get(1));
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GitIgnoreTest {
+    private static GitIgnore ignore(String content) {
+        GitIgnore ignore = new GitIgnore();
+        ignore.add(".gitignore", content);
+        return ignore;
+    }
+
+    @Test
+    public void testEmpty() {
+        GitIgnore ignore = ignore("# comment\n\n   \n");
+        assertTrue(ignore.isEmpty());
+        assertFalse(ignore.isIgnored("a.log"));
+    }
+
+    @Test
+    public void testName() {
+        GitIgnore ignore = ignore("*.log\nbuild\n");
+        assertTrue(ignore.isIgnored("a.log"));
+        assertTrue(ignore.isIgnored("src/a.log"));
+        assertTrue(ignore.isIgnored("build"));
+        assertTrue(ignore.isIgnored("src/build/a.class"));
+        assertFalse(ignore.isIgnored("a.txt"));
+        assertFalse(ignore.isIgnored("a.log.txt"));
+        assertFalse(ignore.isIgnored("builds/a"));
+    }
+
+    @Test
+    public void testAnchored() {
+        GitIgnore ignore = ignore("/target\ndoc/*.html\n");
+        assertTrue(ignore.isIgnored("target/a.jar"));
+        assertFalse(ignore.isIgnored("src/target/a.jar"));
+        assertTrue(ignore.isIgnored("doc/index.html"));
+        assertFalse(ignore.isIgnored("doc/api/index.html"));
+        assertFalse(ignore.isIgnored("src/doc/index.html"));
+    }
+
+    @Test
+    public void testDirectoryOnly() {
+        GitIgnore ignore = ignore("logs/\n");
+        assertTrue(ignore.isIgnored("logs/a.txt"));
+        assertTrue(ignore.isIgnored("app/logs/a.txt"));
+        assertFalse("a file is not a directory", ignore.isIgnored("logs"));
+    }
+
+    @Test
+    public void testNegation() {
+        GitIgnore ignore = ignore("*.log\n!keep.log\n");
+        assertTrue(ignore.isIgnored("a.log"));
+        assertFalse(ignore.isIgnored("keep.log"));
+        assertFalse(ignore.isIgnored("src/keep.log"));
+    }
+
+    @Test
+    public void testIgnoredDirectory() {
+        // a file can't be included again once its directory is ignored
+        GitIgnore ignore = ignore("build/\n!build/keep.txt\n");
+        assertTrue(ignore.isIgnored("build/keep.txt"));
+    }
+
+    @Test
+    public void testDoubleAsterisk() {
+        GitIgnore ignore = ignore("**/tmp\nlib/**\na/**/b\n");
+        assertTrue(ignore.isIgnored("tmp/x"));
+        assertTrue(ignore.isIgnored("src/main/tmp/x"));
+        assertTrue(ignore.isIgnored("lib/x/y.jar"));
+        assertFalse(ignore.isIgnored("src/lib/x.jar"));
+        assertTrue(ignore.isIgnored("a/b"));
+        assertTrue(ignore.isIgnored("a/x/y/b"));
+        assertFalse(ignore.isIgnored("a/xb"));
+    }
+
+    @Test
+    public void testWildcards() {
+        GitIgnore ignore = ignore("?.o\n[abc].c\n[!x]y\n");
+        assertTrue(ignore.isIgnored("a.o"));
+        assertFalse(ignore.isIgnored("ab.o"));
+        assertTrue(ignore.isIgnored("b.c"));
+        assertFalse(ignore.isIgnored("d.c"));
+        assertTrue(ignore.isIgnored("ay"));
+        assertFalse(ignore.isIgnored("xy"));
+    }
+
+    @Test
+    public void testEscapes() {
+        GitIgnore ignore = ignore("\\#notes\n\\!important\nspace\\ \na+b(1).txt\n");
+        assertTrue(ignore.isIgnored("#notes"));
+        assertTrue(ignore.isIgnored("!important"));
+        assertTrue(ignore.isIgnored("space "));
+        assertTrue(ignore.isIgnored("a+b(1).txt"));
+        assertFalse(ignore.isIgnored("space"));
+    }
+
+    @Test
+    public void testNested() {
+        GitIgnore ignore = new GitIgnore();
+        ignore.add(".gitignore", "*.tmp\n");
+        ignore.add("app/.gitignore", "!keep.tmp\n/out\r\n");
+        assertTrue(ignore.isIgnored("a.tmp"));
+        assertTrue(ignore.isIgnored("app/a.tmp"));
+        assertFalse("deeper files take precedence", ignore.isIgnored("app/keep.tmp"));
+        assertTrue(ignore.isIgnored("keep.tmp"));
+        assertTrue(ignore.isIgnored("app/out/a"));
+        assertFalse("anchored to its directory", ignore.isIgnored("out/a"));
+    }
+}
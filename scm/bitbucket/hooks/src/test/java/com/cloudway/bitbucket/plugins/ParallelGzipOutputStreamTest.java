@@ -0,0 +1,134 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParallelGzipOutputStreamTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private byte[] compress(byte[] data, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream gz = new ParallelGzipOutputStream(out, executor, 4, Deflater.DEFAULT_COMPRESSION)) {
+            for (int off = 0; off < data.length; off += chunk) {
+                gz.write(data, off, Math.min(chunk, data.length - off));
+                gz.flush();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns compressible data: random words from a small vocabulary.
+     */
+    private static byte[] text(int size) {
+        String[] words = { "deploy", "archive", "commit", "tree", "branch", "cache", "\n" };
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 16);
+        while (sb.length() < size) {
+            sb.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertArrayEquals(new byte[0], decompress(compress(new byte[0], 1)));
+    }
+
+    @Test
+    public void testSingleBlock() throws IOException {
+        byte[] data = text(1000);
+        assertArrayEquals(data, decompress(compress(data, 100)));
+    }
+
+    @Test
+    public void testManyBlocks() throws IOException {
+        // larger than the pending blocks held for 4 threads
+        byte[] data = text(3 * 1024 * 1024 + 17);
+        byte[] compressed = compress(data, 100000);
+        assertArrayEquals(data, decompress(compressed));
+        assertTrue("blocks are primed with the previous block", compressed.length < data.length / 3);
+    }
+
+    @Test
+    public void testRandomData() throws IOException {
+        byte[] data = new byte[512 * 1024 + 1];
+        new Random(7).nextBytes(data);
+        assertArrayEquals(data, decompress(compress(data, 65536)));
+    }
+
+    @Test
+    public void testSingleBytes() throws IOException {
+        byte[] data = text(300 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream gz = new ParallelGzipOutputStream(out, executor, 2, Deflater.BEST_SPEED)) {
+            for (byte b : data) {
+                gz.write(b);
+            }
+        }
+        assertArrayEquals(data, decompress(out.toByteArray()));
+    }
+
+    @Test
+    public void testFinishLeavesStreamOpen() throws IOException {
+        boolean[] closed = new boolean[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        ParallelGzipOutputStream gz = new ParallelGzipOutputStream(out, executor, 1, Deflater.DEFAULT_COMPRESSION);
+        gz.write(text(100));
+        gz.finish();
+        gz.finish();
+        assertFalse(closed[0]);
+        assertArrayEquals(text(100), decompress(out.toByteArray()));
+
+        gz.close();
+        assertTrue(closed[0]);
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static com.cloudway.bitbucket.plugins.rest.RepoDeployerRestResource.parseRange;
+
+public class RepoDeployerRestResourceTest {
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] { 0, 99 }, parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] { 100, 999 }, parseRange("bytes=100-", 1000));
+        assertArrayEquals(new long[] { 500, 999 }, parseRange(" bytes= 500 - 2000 ", 1000));
+        assertArrayEquals(new long[] { 999, 999 }, parseRange("bytes=999-999", 1000));
+    }
+
+    @Test
+    public void testParseSuffixRange() {
+        assertArrayEquals(new long[] { 900, 999 }, parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] { 0, 999 }, parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[0], parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        assertArrayEquals(new long[0], parseRange("bytes=1000-", 1000));
+        assertArrayEquals(new long[0], parseRange("bytes=2000-3000", 1000));
+        assertArrayEquals(new long[0], parseRange("bytes=0-", 0));
+        assertArrayEquals(new long[0], parseRange("bytes=-1", 0));
+    }
+
+    @Test
+    public void testIgnoredRange() {
+        // served as a whole
+        assertNull(parseRange("bytes=0-1,5-9", 1000));
+        assertNull(parseRange("items=0-1", 1000));
+        assertNull(parseRange("bytes=5", 1000));
+        assertNull(parseRange("bytes=9-5", 1000));
+        assertNull(parseRange("bytes=a-b", 1000));
+        assertNull(parseRange("bytes=-", 1000));
+    }
+}
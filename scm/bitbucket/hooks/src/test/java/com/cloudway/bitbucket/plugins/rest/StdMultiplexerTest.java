@@ -0,0 +1,191 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudway.bitbucket.plugins.LogFlusher;
+
+import static org.junit.Assert.*;
+
+public class StdMultiplexerTest {
+    private LogFlusher flusher;
+    private Output out;
+
+    /**
+     * Records the bytes written and the number of writes.
+     */
+    private static class Output extends ByteArrayOutputStream {
+        int writes;
+        boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        flusher = new LogFlusher(64, 50, 1);
+        out = new Output();
+    }
+
+    @After
+    public void tearDown() {
+        flusher.destroy();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the frames written so far as "type:payload".
+     */
+    private List<String> frames() {
+        byte[] b;
+        synchronized (out) {
+            b = out.toByteArray();
+        }
+        List<String> frames = new ArrayList<>();
+        for (int off = 0; off < b.length; ) {
+            assertTrue("truncated header", off + 8 <= b.length);
+            assertEquals(0, b[off + 1] | b[off + 2] | b[off + 3]);
+            int size = ((b[off + 4] & 0xff) << 24) | ((b[off + 5] & 0xff) << 16) |
+                       ((b[off + 6] & 0xff) << 8) | (b[off + 7] & 0xff);
+            assertTrue("truncated payload", off + 8 + size <= b.length);
+            frames.add(b[off] + ":" + new String(b, off + 8, size, StandardCharsets.UTF_8));
+            off += 8 + size;
+        }
+        return frames;
+    }
+
+    @Test
+    public void testMergeWrites() throws IOException {
+        StdMultiplexer mux = flusher.multiplex(out);
+        StdWriter stdout = mux.stream(StdWriter.Stdout);
+        StdWriter stderr = mux.stream(StdWriter.Stderr);
+
+        stdout.write(bytes("a"));
+        stdout.write('b');
+        stderr.write(bytes("c"));
+        stdout.write(bytes("d"));
+        stdout.write(bytes("e"));
+        assertEquals("buffered", 0, out.size());
+
+        stdout.flush();
+        assertEquals(Arrays.asList("1:ab", "2:c", "1:de"), frames());
+        assertEquals(1, out.writes);
+    }
+
+    @Test
+    public void testFlushWhenFull() throws IOException {
+        StdMultiplexer mux = flusher.multiplex(out);
+        StdWriter stdout = mux.stream(StdWriter.Stdout);
+
+        String digits = "0123456789012345678901234567890123456789";
+        String letters = "abcdefghijklmnopqrstuvwxyz";
+
+        // a write that doesn't fit in the buffer starts a new one
+        stdout.write(bytes(digits));
+        stdout.write(bytes(letters));
+        assertEquals(Arrays.asList("1:" + digits), frames());
+
+        stdout.write(bytes(digits));
+        assertEquals(Arrays.asList("1:" + digits, "1:" + letters), frames());
+
+        mux.close();
+        assertEquals(Arrays.asList("1:" + digits, "1:" + letters, "1:" + digits), frames());
+    }
+
+    @Test
+    public void testLargeWrite() throws IOException {
+        StdMultiplexer mux = flusher.multiplex(out);
+        StdWriter stdout = mux.stream(StdWriter.Stdout);
+        StdWriter stderr = mux.stream(StdWriter.Stderr);
+
+        char[] large = new char[100];
+        Arrays.fill(large, 'x');
+        stderr.write(bytes("warning"));
+        stdout.write(bytes(new String(large)));
+        assertEquals(Arrays.asList("2:warning", "1:" + new String(large)), frames());
+    }
+
+    @Test
+    public void testTimedFlush() throws Exception {
+        StdMultiplexer mux = flusher.multiplex(out);
+        mux.stream(StdWriter.Stdout).write(bytes("progress"));
+        assertEquals(0, out.size());
+
+        for (int i = 0; i < 100 && out.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("1:progress"), frames());
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        StdMultiplexer mux = flusher.multiplex(out);
+        StdWriter stdout = mux.stream(StdWriter.Stdout);
+        stdout.write(bytes("done"));
+        mux.close();
+
+        assertEquals(Arrays.asList("1:done"), frames());
+        assertFalse("the underlying stream is left open", out.closed);
+        try {
+            stdout.write(bytes("more"));
+            fail("write after close");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        IOException broken = new IOException("broken pipe");
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw broken;
+            }
+        };
+
+        StdMultiplexer mux = flusher.multiplex(failing);
+        StdWriter stdout = mux.stream(StdWriter.Stdout);
+        stdout.write(bytes("a"));
+        try {
+            stdout.flush();
+            fail("flush to a failed stream");
+        } catch (IOException ex) {
+            assertSame(broken, ex);
+        }
+        try {
+            stdout.write(bytes("b"));
+            fail("write to a failed stream");
+        } catch (IOException ex) {
+            assertSame(broken, ex);
+        }
+        mux.close();
+    }
+}
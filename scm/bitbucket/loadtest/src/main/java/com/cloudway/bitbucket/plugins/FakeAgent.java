@@ -0,0 +1,212 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudway.bitbucket.plugins.rest.StdWriter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A stub of the {@code cwman agent} daemon speaking the protocol of
+ * {@link DeployAgent}, which runs the given deployer command for every
+ * requested deployment: the stdin frames are piped to the command, its
+ * output is sent back as stdout and stderr frames, followed by its exit
+ * status. Listens on an ephemeral loopback port.
+ */
+class FakeAgent {
+    private final String command;
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder()
+            .setNameFormat("fake-agent-%d")
+            .setDaemon(true)
+            .build());
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong deployments = new AtomicLong();
+
+    FakeAgent(String command) throws IOException {
+        this.command = command;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    /**
+     * Returns the {@code host:port} to set as {@code agent.address}.
+     */
+    String getAddress() {
+        return server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+    }
+
+    long getConnections() {
+        return connections.get();
+    }
+
+    long getDeployments() {
+        return deployments.get();
+    }
+
+    void shutdown() {
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // ignored
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                executor.execute(() -> serve(socket));
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Run the deployments requested on a connection until it is closed.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+
+            for (;;) {
+                List<String> env = new ArrayList<>();
+                List<String> args = null;
+                while (args == null) {
+                    int type = in.read();
+                    if (type < 0) {
+                        return; // closed between deployments
+                    }
+                    byte[] payload = readPayload(in);
+                    List<String> values = Arrays.asList(new String(payload, StandardCharsets.UTF_8).split("\0"));
+                    if (type == DeployAgent.ENV) {
+                        env.addAll(values);
+                    } else if (type == DeployAgent.ARGS) {
+                        args = values;
+                    } else {
+                        throw new IOException("Unexpected frame " + type);
+                    }
+                }
+                deploy(env, args, in, out);
+            }
+        } catch (IOException | InterruptedException | ExecutionException ex) {
+            // the deployment was aborted by closing the connection
+        }
+    }
+
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        in.readFully(new byte[3]);
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private void deploy(List<String> env, List<String> args, DataInputStream in, OutputStream out)
+        throws IOException, InterruptedException, ExecutionException
+    {
+        List<String> cmdline = new ArrayList<>();
+        cmdline.add(command);
+        cmdline.addAll(args);
+        ProcessBuilder builder = new ProcessBuilder(cmdline);
+        for (String var : env) {
+            int eq = var.indexOf('=');
+            if (eq > 0) {
+                builder.environment().put(var.substring(0, eq), var.substring(eq + 1));
+            }
+        }
+
+        deployments.incrementAndGet();
+        Process process = builder.start();
+        try {
+            Future<?> stdout = executor.submit(() -> pump(process.getInputStream(), StdWriter.Stdout, out));
+            Future<?> stderr = executor.submit(() -> pump(process.getErrorStream(), StdWriter.Stderr, out));
+
+            // The whole archive is read even if the command exits early,
+            // so the connection can take the next deployment
+            OutputStream stdin = process.getOutputStream();
+            boolean piping = true;
+            for (;;) {
+                int type = in.readUnsignedByte();
+                byte[] payload = readPayload(in);
+                if (type != StdWriter.Stdin) {
+                    throw new IOException("Unexpected frame " + type);
+                }
+                if (payload.length == 0) {
+                    break;
+                }
+                if (piping) {
+                    try {
+                        stdin.write(payload);
+                    } catch (IOException ex) {
+                        piping = false; // the command closed its input
+                    }
+                }
+            }
+            try {
+                stdin.close();
+            } catch (IOException ex) {
+                // the command closed its input
+            }
+
+            int status = process.waitFor();
+            stdout.get();
+            stderr.get();
+            synchronized (out) {
+                writeFrame(out, DeployAgent.EXIT, new byte[] {
+                    (byte)(status >>> 24), (byte)(status >>> 16), (byte)(status >>> 8), (byte)status
+                }, 4);
+                out.flush();
+            }
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private static Void pump(InputStream in, byte type, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            synchronized (out) {
+                writeFrame(out, type, buf, n);
+                out.flush();
+            }
+        }
+        return null;
+    }
+
+    private static void writeFrame(OutputStream out, byte type, byte[] b, int len) throws IOException {
+        out.write(new byte[] {
+            type, 0, 0, 0,
+            (byte)(len >>> 24), (byte)(len >>> 16), (byte)(len >>> 8), (byte)len
+        });
+        out.write(b, 0, len);
+    }
+}
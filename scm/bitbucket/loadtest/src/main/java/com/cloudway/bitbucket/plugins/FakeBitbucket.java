@@ -0,0 +1,404 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.hook.HookService;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookContext;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Branch;
+import com.atlassian.bitbucket.repository.MinimalRef;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.RefService;
+import com.atlassian.bitbucket.repository.RefType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.repository.StandardRefType;
+import com.atlassian.bitbucket.scm.git.GitScmConfig;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.setting.SettingsBuilder;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.io.ByteStreams;
+
+/**
+ * In-memory fakes of the Bitbucket services used by the plugin, serving
+ * bare git repositories created under a local directory. Every repository
+ * has a work tree that commits are made in and pushed from, standing in for
+ * the clone of a user.
+ */
+class FakeBitbucket {
+    private final Path dir;
+    private final FakeGit git;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ConcurrentMap<Integer, LocalRepository> repositories = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Map<String, String>> hookSettings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> pluginSettings = new ConcurrentHashMap<>();
+
+    FakeBitbucket(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.git = new FakeGit(repo -> repositories.get(repo.getId()).bare.toFile());
+    }
+
+    /**
+     * A bare repository served by the fakes, and the work tree it is
+     * pushed from.
+     */
+    class LocalRepository {
+        final Repository repository;
+        final Path bare, work;
+        private final Random random;
+        private final int fileSize;
+        private int commits;
+
+        LocalRepository(Repository repository, Path bare, Path work, int fileSize) {
+            this.repository = repository;
+            this.bare = bare;
+            this.work = work;
+            this.fileSize = fileSize;
+            this.random = new Random(repository.getId());
+        }
+
+        /**
+         * Rewrite a file in the work tree, commit and push it to the bare
+         * repository, returning the change to the master branch. Pushes to
+         * the same repository are serialized, as Bitbucket does.
+         */
+        synchronized RefChange push() throws IOException, InterruptedException {
+            String from = exec(bare, "rev-parse", "refs/heads/master");
+            Path file = work.resolve("changes").resolve("file" + (commits % 10));
+            Files.createDirectories(file.getParent());
+            Files.write(file, content(random, fileSize));
+            commit(work, "Change " + ++commits);
+            exec(work, "push", "-q", "origin", "master");
+            String to = exec(bare, "rev-parse", "refs/heads/master");
+            return refChange(from, to);
+        }
+
+        /**
+         * Returns the tree of the master branch.
+         */
+        String tree() throws IOException, InterruptedException {
+            return exec(bare, "rev-parse", "refs/heads/master^{tree}");
+        }
+    }
+
+    /**
+     * Create a repository of the given project with the given number of
+     * files of half random, half text content.
+     */
+    LocalRepository createRepository(String projectKey, String slug, int files, int fileSize)
+        throws IOException, InterruptedException
+    {
+        int id = nextId.getAndIncrement();
+        Repository repository = repository(id, projectKey, slug);
+        Path work = Files.createDirectories(dir.resolve("work").resolve(slug));
+        Path bare = dir.resolve("repos").resolve(slug + ".git");
+
+        exec(work, "init", "-q");
+        Random random = new Random(id);
+        for (int i = 0; i < files; i++) {
+            Path file = work.resolve("dir" + (i / 100)).resolve("file" + i);
+            Files.createDirectories(file.getParent());
+            Files.write(file, content(random, fileSize));
+        }
+        commit(work, "Initial commit");
+        exec(work, "branch", "-M", "master"); // whatever init.defaultBranch is
+        Files.createDirectories(bare.getParent());
+        exec(dir, "clone", "-q", "--bare", work.toString(), bare.toString());
+        exec(work, "remote", "add", "origin", bare.toString());
+
+        LocalRepository local = new LocalRepository(repository, bare, work, fileSize);
+        repositories.put(id, local);
+        hookSettings.put(id, Collections.emptyMap());
+        return local;
+    }
+
+    private static byte[] content(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        for (int j = content.length / 2; j < content.length; j++) {
+            content[j] = (byte)('a' + (j % 26));
+        }
+        return content;
+    }
+
+    private static void commit(Path work, String message) throws IOException, InterruptedException {
+        exec(work, "add", "-A");
+        exec(work, "-c", "user.name=nobody", "-c", "user.email=nobody@example.com",
+                   "commit", "-q", "-m", message);
+    }
+
+    static String exec(Path dir, String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process proc = new ProcessBuilder(command)
+            .directory(dir.toFile())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        proc.getOutputStream().close();
+        String output = new String(ByteStreams.toByteArray(proc.getInputStream()), StandardCharsets.UTF_8).trim();
+        if (proc.waitFor() != 0) {
+            throw new IOException("git " + args[0] + " failed in " + dir);
+        }
+        return output;
+    }
+
+    void shutdown() {
+        git.shutdown();
+    }
+
+    // Domain objects
+
+    private static Repository repository(int id, String projectKey, String slug) {
+        Project project = Fakes.fake(Project.class, new Object() {
+            public String getKey()  { return projectKey; }
+            public String getName() { return projectKey; }
+            public int getId()      { return 1; }
+            public String toString() { return projectKey; }
+        });
+        return Fakes.fake(Repository.class, new Object() {
+            public int getId()          { return id; }
+            public String getSlug()     { return slug; }
+            public String getName()     { return slug; }
+            public Project getProject() { return project; }
+            public String toString()    { return projectKey + "/" + slug; }
+        });
+    }
+
+    static Ref branch(String name) {
+        return Fakes.fake(Branch.class, new Object() {
+            public String getId()          { return "refs/heads/" + name; }
+            public String getDisplayId()   { return name; }
+            public String getLatestCommit() { return null; } // resolved by git
+            public boolean getIsDefault()  { return "master".equals(name); }
+            public RefType getType()       { return StandardRefType.BRANCH; }
+            public String toString()       { return getId(); }
+        });
+    }
+
+    private static RefChange refChange(String from, String to) {
+        Ref ref = branch("master");
+        return Fakes.fake(RefChange.class, new Object() {
+            public MinimalRef getRef()      { return ref; }
+            public String getRefId()        { return ref.getId(); }
+            public String getFromHash()     { return from; }
+            public String getToHash()       { return to; }
+            public RefChangeType getType()  { return RefChangeType.UPDATE; }
+        });
+    }
+
+    RepositoryHookContext hookContext(Repository repository) {
+        Settings settings = settings(hookSettings.get(repository.getId()));
+        return Fakes.fake(RepositoryHookContext.class, new Object() {
+            public Repository getRepository() { return repository; }
+            public Settings getSettings()     { return settings; }
+        });
+    }
+
+    private static Settings settings(Map<String, String> source) {
+        Map<String, String> values = new HashMap<>(source);
+        Map<String, Object> map = Collections.unmodifiableMap(new HashMap<>(values));
+        return Fakes.fake(Settings.class, new Object() {
+            public String getString(String key)                      { return values.get(key); }
+            public String getString(String key, String defaultValue) { return values.getOrDefault(key, defaultValue); }
+            public Map<String, Object> asMap()                       { return map; }
+        });
+    }
+
+    // Services
+
+    RepositoryService repositoryService() {
+        return Fakes.fake(RepositoryService.class, new Object() {
+            public boolean isEmpty(Repository repository) {
+                return false;
+            }
+
+            public Repository getBySlug(String projectKey, String slug) {
+                for (LocalRepository local : repositories.values()) {
+                    Repository r = local.repository;
+                    if (r.getProject().getKey().equals(projectKey) && r.getSlug().equals(slug)) {
+                        return r;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    RefService refService() {
+        return Fakes.fake(RefService.class, new Object() {
+            public Ref getDefaultBranch(Repository repository) {
+                return branch("master");
+            }
+
+            public Ref resolveRef(Repository repository, String refId) {
+                String name = refId.startsWith("refs/heads/") ? refId.substring("refs/heads/".length()) : refId;
+                try {
+                    exec(repositories.get(repository.getId()).bare, "rev-parse", "--verify", "-q", "refs/heads/" + name);
+                    return branch(name);
+                } catch (IOException ex) {
+                    return null;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        });
+    }
+
+    RepositoryHookService repositoryHookService() {
+        return Fakes.fake(RepositoryHookService.class, new Object() {
+            public Settings getSettings(Repository repository, String hookKey) {
+                return settings(hookSettings.get(repository.getId()));
+            }
+
+            public Settings setSettings(Repository repository, String hookKey, Settings settings) {
+                Map<String, String> values = new LinkedHashMap<>();
+                settings.asMap().forEach((k, v) -> values.put(k, String.valueOf(v)));
+                hookSettings.put(repository.getId(), values);
+                return settings;
+            }
+
+            public SettingsBuilder createSettingsBuilder() {
+                return settingsBuilder();
+            }
+        });
+    }
+
+    private static SettingsBuilder settingsBuilder() {
+        Map<String, String> values = new LinkedHashMap<>();
+        return Fakes.fake(SettingsBuilder.class, new Object() {
+            public Object add(String key, Object value) {
+                values.put(key, String.valueOf(value));
+                return this;
+            }
+
+            public Object addAll(Map<String, ?> map) {
+                map.forEach((k, v) -> values.put(k, String.valueOf(v)));
+                return this;
+            }
+
+            public Settings build() {
+                return settings(values);
+            }
+        });
+    }
+
+    /**
+     * Global settings only, shared by every caller.
+     */
+    PluginSettingsFactory pluginSettingsFactory() {
+        PluginSettings settings = Fakes.fake(PluginSettings.class, new Object() {
+            public Object get(String key) {
+                return pluginSettings.get(key);
+            }
+
+            public Object put(String key, Object value) {
+                return value != null ? pluginSettings.put(key, value) : pluginSettings.remove(key);
+            }
+
+            public Object remove(String key) {
+                return pluginSettings.remove(key);
+            }
+        });
+        return Fakes.fake(PluginSettingsFactory.class, new Object() {
+            public PluginSettings createGlobalSettings() {
+                return settings;
+            }
+        });
+    }
+
+    HookService hookService() {
+        return Fakes.fake(HookService.class, new Object());
+    }
+
+    GitScmConfig gitScmConfig() {
+        return Fakes.fake(GitScmConfig.class, new Object() {
+            public File getRepositoryDir(Repository repository) {
+                return repositories.get(repository.getId()).bare.toFile();
+            }
+        });
+    }
+
+    GitCommandBuilderFactory gitCommandBuilderFactory() {
+        return git.factory();
+    }
+
+    /**
+     * Runs every operation, as if the permission was always granted.
+     */
+    SecurityService securityService() {
+        EscalatedSecurityContext context = Fakes.fake(EscalatedSecurityContext.class, new Object() {
+            public Object call(Operation<?, ?> operation) throws Throwable {
+                return operation.perform();
+            }
+        });
+        return Fakes.fake(SecurityService.class, new Object() {
+            public EscalatedSecurityContext withPermission(Permission permission, String reason) {
+                return context;
+            }
+        });
+    }
+
+    /**
+     * Allows everything.
+     */
+    PermissionValidationService permissionValidationService() {
+        return Fakes.fake(PermissionValidationService.class, new Object() {
+            public void validateForRepository(Repository repository, Permission permission) {}
+            public void validateForGlobal(Permission permission) {}
+        });
+    }
+
+    /**
+     * A single node.
+     */
+    ClusterService clusterService() {
+        return Fakes.fake(ClusterService.class, new Object() {
+            public boolean isAvailable() { return false; }
+            public boolean isClustered() { return false; }
+        });
+    }
+
+    /**
+     * Drops events, the caches of the plugin expire on their own.
+     */
+    EventPublisher eventPublisher() {
+        return Fakes.fake(EventPublisher.class, new Object() {
+            public void publish(Object event) {}
+            public void register(Object listener) {}
+            public void unregister(Object listener) {}
+            public void unregisterAll() {}
+        });
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link GitCommandBuilderFactory} running the git executable on local
+ * repositories, like Bitbucket does: the output is passed to the handler,
+ * a non-zero exit status fails the command, and the execution and idle
+ * timeouts kill git unless the handler resets the watchdog.
+ */
+class FakeGit {
+    private final Function<Repository, File> repositoryDir;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat("fake-git-watchdog-%d")
+            .setDaemon(true)
+            .build());
+
+    FakeGit(Function<Repository, File> repositoryDir) {
+        this.repositoryDir = repositoryDir;
+    }
+
+    GitCommandBuilderFactory factory() {
+        return Fakes.fake(GitCommandBuilderFactory.class, new Factory());
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    public class Factory {
+        public GitScmCommandBuilder builder() {
+            return Fakes.fake(GitScmCommandBuilder.class, new Builder(null));
+        }
+
+        public GitScmCommandBuilder builder(Repository repository) {
+            return Fakes.fake(GitScmCommandBuilder.class, new Builder(repositoryDir.apply(repository)));
+        }
+    }
+
+    public class Builder {
+        private File dir;
+        private final List<String> args = new ArrayList<>();
+        private final Map<String, String> env = new LinkedHashMap<>();
+
+        Builder(File dir) {
+            this.dir = dir;
+        }
+
+        public Builder command(String command) {
+            args.add(0, command);
+            return this;
+        }
+
+        public Builder argument(String argument) {
+            args.add(argument);
+            return this;
+        }
+
+        public Builder withEnvironment(String name, String value) {
+            env.put(name, value);
+            return this;
+        }
+
+        public Builder workingDirectory(String path) {
+            this.dir = new File(path);
+            return this;
+        }
+
+        public Builder workingDirectory(File path) {
+            this.dir = path;
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> GitCommand<T> build(CommandOutputHandler<T> handler) {
+            return Fakes.fake(GitCommand.class, new Command<>(dir, new ArrayList<>(args), env, handler));
+        }
+    }
+
+    public class Command<T> {
+        private final File dir;
+        private final List<String> args;
+        private final Map<String, String> env;
+        private final CommandOutputHandler<T> handler;
+        private Duration executionTimeout, idleTimeout;
+
+        Command(File dir, List<String> args, Map<String, String> env, CommandOutputHandler<T> handler) {
+            this.dir = dir;
+            this.args = args;
+            this.env = new LinkedHashMap<>(env);
+            this.handler = handler;
+        }
+
+        public void setExecutionTimeout(Duration timeout) {
+            this.executionTimeout = timeout;
+        }
+
+        public void setIdleTimeout(Duration timeout) {
+            this.idleTimeout = timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.executionTimeout = this.idleTimeout = timeout;
+        }
+
+        public T call() {
+            List<String> command = new ArrayList<>();
+            command.add("git");
+            command.addAll(args);
+            ProcessBuilder builder = new ProcessBuilder(command);
+            if (dir != null) {
+                builder.directory(dir);
+            }
+            builder.environment().putAll(env);
+
+            Process proc;
+            try {
+                proc = builder.start();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot run " + this, ex);
+            }
+            // no input is ever sent
+            try {
+                proc.getOutputStream().close();
+            } catch (IOException ex) {
+                // ignored
+            }
+
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            Thread stderr = new Thread(() -> drain(proc.getErrorStream(), errors), "fake-git-stderr");
+            stderr.setDaemon(true);
+            stderr.start();
+
+            ProcessWatchdog watchdog = new ProcessWatchdog(proc);
+            handler.setWatchdog(watchdog);
+            try {
+                handler.process(proc.getInputStream());
+                int status = proc.waitFor();
+                stderr.join();
+                if (watchdog.reason != null) {
+                    throw new IllegalStateException(this + " " + watchdog.reason);
+                }
+                if (status != 0) {
+                    throw new IllegalStateException(this + " exited with status " + status + ": " +
+                        new String(errors.toByteArray(), StandardCharsets.UTF_8).trim());
+                }
+                handler.complete();
+                return handler.getOutput();
+            } catch (ProcessException ex) {
+                proc.destroyForcibly();
+                throw new IllegalStateException(this + " failed", ex);
+            } catch (InterruptedException ex) {
+                proc.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(this + " interrupted", ex);
+            } finally {
+                watchdog.stop();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "git " + String.join(" ", args);
+        }
+
+        private void drain(InputStream in, ByteArrayOutputStream out) {
+            try {
+                ByteStreams.copy(in, out);
+            } catch (IOException ex) {
+                // the process was killed
+            }
+        }
+
+        /**
+         * Kills git on timeout, as the Bitbucket command executor does.
+         */
+        private class ProcessWatchdog implements Watchdog {
+            private final Process proc;
+            private final long started = System.nanoTime();
+            private volatile long lastActivity = started;
+            private volatile String reason;
+            private final ScheduledFuture<?> check;
+
+            ProcessWatchdog(Process proc) {
+                this.proc = proc;
+                this.check = timer.scheduleWithFixedDelay(this::check, 100, 100, TimeUnit.MILLISECONDS);
+            }
+
+            private void check() {
+                long now = System.nanoTime();
+                if (executionTimeout != null && now - started > executionTimeout.toNanos()) {
+                    kill("timed out");
+                } else if (idleTimeout != null && now - lastActivity > idleTimeout.toNanos()) {
+                    kill("was idle too long");
+                }
+            }
+
+            private void kill(String reason) {
+                this.reason = reason;
+                proc.destroyForcibly();
+                check.cancel(false);
+            }
+
+            void stop() {
+                check.cancel(false);
+            }
+
+            @Override
+            public void cancel() {
+                kill("was cancelled");
+            }
+
+            @Override
+            public void resetWatchdog() {
+                lastActivity = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Implements the large Bitbucket service interfaces with plain objects that
+ * only have the methods the plugin calls. An interface method is forwarded
+ * to the public method of the implementation with the same name and
+ * compatible parameters, and fails with {@link UnsupportedOperationException}
+ * if there is none, so an unexpected call is noticed rather than answered
+ * with a default.
+ */
+final class Fakes {
+    private Fakes() {}
+
+    /**
+     * Returns a fake of the given interface forwarding to the given object.
+     * A method of the object returning the object itself, such as a fluent
+     * builder method, returns the fake instead.
+     */
+    static <T> T fake(Class<T> type, Object impl) {
+        Object[] self = new Object[1];
+        self[0] = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            Method target = find(impl.getClass(), method.getName(), args);
+            if (target == null) {
+                switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "(" + impl + ")";
+                default:
+                    throw new UnsupportedOperationException(
+                        "Fake " + type.getSimpleName() + " does not support " + method.getName());
+                }
+            }
+
+            try {
+                Object result = target.invoke(impl, args);
+                return result == impl ? self[0] : result;
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        });
+        return type.cast(self[0]);
+    }
+
+    private static Method find(Class<?> cls, String name, Object[] args) {
+        int count = args != null ? args.length : 0;
+        for (Method m : cls.getMethods()) {
+            if (m.getName().equals(name) && m.getParameterCount() == count
+                    && m.getDeclaringClass() != Object.class && accepts(m, args)) {
+                m.setAccessible(true);
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static boolean accepts(Method m, Object[] args) {
+        Class<?>[] types = m.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (args[i] != null && !box(types[i]).isInstance(args[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        return type == int.class ? Integer.class
+             : type == long.class ? Long.class
+             : type == boolean.class ? Boolean.class
+             : type == double.class ? Double.class
+             : type == float.class ? Float.class
+             : type == short.class ? Short.class
+             : type == byte.class ? Byte.class
+             : Character.class;
+    }
+}
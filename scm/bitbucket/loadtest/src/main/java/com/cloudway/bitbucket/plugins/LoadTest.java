@@ -0,0 +1,659 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.cloudway.bitbucket.plugins.rest.RepoDeployerRestResource;
+import com.cloudway.bitbucket.plugins.rest.RestResources;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Drives concurrent pushes through {@link AsyncPostReceiveDeployer} and
+ * deployments through {@link RepoDeployerRestResource}, with the plugin
+ * wired as in Bitbucket but on {@link FakeBitbucket} services and a stub
+ * {@code cwman}, and reports throughput, latency, peak temporary disk usage
+ * and thread counts. Exits with status 1 if a check of the components
+ * fails, so it can be run as a smoke test.
+ *
+ * <p>Options are given as {@code name=value} arguments:</p>
+ * <ul>
+ * <li>{@code repos} (default: 8), {@code files} (default: 200) and
+ *     {@code fileSize} (default: 4096): the repositories pushed to</li>
+ * <li>{@code pushes} (default: 200) made by {@code pushers} concurrent
+ *     users (default: 16), round robin over the repositories</li>
+ * <li>{@code deploys} (default: 50) requested over REST by {@code clients}
+ *     concurrent clients (default: 4), forced so none is skipped</li>
+ * <li>{@code cwman.delay} seconds the stub cwman takes after reading the
+ *     archive (default: 0.2), and the percentage of deployments it fails,
+ *     {@code cwman.fail} (default: 0)</li>
+ * <li>{@code agent}, whether deployments are sent to a {@link FakeAgent}
+ *     running the stub cwman through {@link DeployAgent} instead of
+ *     forking it (default: false)</li>
+ * <li>{@code timeout} seconds to wait for pushes to be deployed (default: 300)</li>
+ * <li>{@code dir}, the work directory, removed at the end unless
+ *     {@code keep} is true</li>
+ * </ul>
+ *
+ * <p>A push is deployed once its tree, or the tree of a later push to the
+ * same repository that it was coalesced with, is recorded as deployed. It
+ * failed once a push deployment of the repository started after the hook
+ * call fails, or once the scheduler is idle without deploying it. Its
+ * latency is measured from the hook call either way. The plugin is tuned
+ * with the usual {@code cloudway.deployer.*} system properties.</p>
+ *
+ * <p>At the end, the run is checked: every push completed, pushes were
+ * coalesced, the admission limit was never exceeded and no permit was
+ * leaked, and deploying the same tree twice hits the archive cache.</p>
+ */
+public class LoadTest {
+    private final Map<String, String> options;
+    private final Path dir, tmp;
+
+    private final FakeBitbucket bitbucket;
+    private final FakeAgent fakeAgent;
+    private final List<FakeBitbucket.LocalRepository> repositories = new ArrayList<>();
+    private final List<DisposableBean> components = new ArrayList<>();
+
+    private AsyncPostReceiveDeployer hook;
+    private RepoDeployerRestResource resource;
+    private DeployScheduler scheduler;
+    private DeployJobs jobs;
+    private DeployMetrics metrics;
+    private DeployAdmission admission;
+    private ArchiveCache archiveCache;
+    private DeployAgent agent;
+
+    // Pushes waiting for deployment by repository ID
+    private final ConcurrentMap<Integer, Pushes> pushes = new ConcurrentHashMap<>();
+    private final List<Long> pushLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> restLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger pushErrors = new AtomicInteger();
+    private final AtomicInteger pushFailed = new AtomicInteger();
+    private final AtomicInteger restSucceeded = new AtomicInteger();
+    private final AtomicInteger restFailed = new AtomicInteger();
+    private final AtomicInteger restRejected = new AtomicInteger();
+    private volatile long lastDeployed;
+
+    // Sampled resources
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final AtomicLong peakTempBytes = new AtomicLong();
+    private final AtomicInteger peakPluginThreads = new AtomicInteger();
+
+    // Failed checks
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("usage: java -jar loadtest.jar [name=value...]");
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        // Temporary files of the plugin go to a directory of their own, so
+        // their disk usage can be measured. Set before any is created.
+        Path dir = Paths.get(options.getOrDefault("dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "cloudway-load-" + System.currentTimeMillis()).toString()));
+        Path tmp = Files.createDirectories(dir.resolve("tmp"));
+        System.setProperty("java.io.tmpdir", tmp.toString());
+
+        // The deployer command is read once, before the plugin is loaded
+        Path stub = writeStub(dir, options.getOrDefault("cwman.delay", "0.2"),
+                              Integer.parseInt(options.getOrDefault("cwman.fail", "0")));
+        System.setProperty("cloudway.deployer.deploy.command", stub.toString());
+
+        // The agent runs the same stub, so results are comparable
+        FakeAgent fakeAgent = null;
+        if (Boolean.parseBoolean(options.getOrDefault("agent", "false"))) {
+            fakeAgent = new FakeAgent(stub.toString());
+            System.setProperty("cloudway.deployer.agent.address", fakeAgent.getAddress());
+        }
+
+        LoadTest test = new LoadTest(options, dir, tmp, fakeAgent);
+        try {
+            test.setup();
+            test.run();
+            test.check();
+        } finally {
+            test.tearDown();
+        }
+        if (!test.failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Write a stub cwman that reads the archive, waits the given number of
+     * seconds, and fails the given percentage of deployments.
+     */
+    private static Path writeStub(Path dir, String delay, int failPercent) throws IOException {
+        String script =
+            "#!/bin/sh\n" +
+            "cat >/dev/null\n" +
+            "sleep " + delay + "\n" +
+            "if [ $(( $(od -An -N1 -tu1 /dev/urandom) * 100 / 256 )) -lt " + failPercent + " ]; then\n" +
+            "  echo \"Stub failure: $*\" >&2\n" +
+            "  exit 1\n" +
+            "fi\n" +
+            "echo \"Deployed $*\"\n";
+        Path stub = dir.resolve("cwman");
+        Files.write(stub, script.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(stub, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return stub;
+    }
+
+    private LoadTest(Map<String, String> options, Path dir, Path tmp, FakeAgent fakeAgent) throws IOException {
+        this.options = options;
+        this.dir = dir;
+        this.tmp = tmp;
+        this.fakeAgent = fakeAgent;
+        this.bitbucket = new FakeBitbucket(dir.resolve("bitbucket"));
+    }
+
+    private int option(String name, int defaultValue) {
+        return Integer.parseInt(options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Create the repositories and wire the plugin components as declared
+     * in atlassian-plugin.xml.
+     */
+    private void setup() throws Exception {
+        int files = option("files", 200), fileSize = option("fileSize", 4096);
+        for (int i = 0; i < option("repos", 8); i++) {
+            repositories.add(bitbucket.createRepository("LOAD", "app" + i, files, fileSize));
+        }
+
+        metrics = add(new DeployMetrics());
+        admission = new DeployAdmission(metrics);
+        DeploymentRefCache refCache = add(new DeploymentRefCache(bitbucket.eventPublisher(), bitbucket.clusterService()));
+        refCache.afterPropertiesSet();
+        archiveCache = new ArchiveCache();
+        ArchiveCompressor compressor = add(new ArchiveCompressor());
+        TemplateMirrors mirrors = new TemplateMirrors(bitbucket.gitCommandBuilderFactory(), metrics);
+        RefChangeWaiter refChanges = add(new RefChangeWaiter(bitbucket.eventPublisher()));
+        refChanges.afterPropertiesSet();
+        agent = add(new DeployAgent(metrics));
+        DeployWatchdog watchdog = add(new DeployWatchdog(metrics));
+        DeployTracer tracer = add(new PushTracer());
+        LogFlusher logFlusher = add(new LogFlusher());
+
+        RepoDeployer deployer = new RepoDeployer(
+            bitbucket.gitCommandBuilderFactory(), bitbucket.gitScmConfig(), bitbucket.hookService(),
+            bitbucket.repositoryHookService(), bitbucket.repositoryService(), bitbucket.refService(),
+            refCache, refChanges, archiveCache, compressor, mirrors,
+            new PushStore(bitbucket.pluginSettingsFactory()), agent, watchdog, metrics);
+        scheduler = add(new DeployScheduler(deployer, admission, bitbucket.securityService(), metrics, tracer));
+        jobs = add(new DeployJobs(deployer, admission, bitbucket.securityService(), metrics, tracer, logFlusher));
+
+        hook = new AsyncPostReceiveDeployer(deployer, scheduler);
+        resource = RestResources.repoDeployer(deployer, jobs, watchdog,
+            bitbucket.repositoryService(), bitbucket.permissionValidationService());
+    }
+
+    private <T extends DisposableBean> T add(T component) {
+        components.add(component);
+        return component;
+    }
+
+    /**
+     * Reports the trees recorded as deployed.
+     */
+    private class PushStore extends DeploymentStore {
+        PushStore(PluginSettingsFactory settingsFactory) {
+            super(settingsFactory);
+        }
+
+        @Override
+        public void record(Repository repository, String name, String commit, String tree) {
+            super.record(repository, name, commit, tree);
+            Pushes p = pushes.get(repository.getId());
+            if (p != null) {
+                p.deployed(tree);
+            }
+        }
+    }
+
+    /**
+     * Reports failed push deployments, which leave the deployed tree
+     * unchanged, with the time they started.
+     */
+    private class PushTracer extends DeployTracer {
+        private final Map<DeployTrace, long[]> started = new ConcurrentHashMap<>(); // repository ID and start
+
+        @Override
+        public DeployTrace start(String id, Repository repository, String operation) {
+            DeployTrace trace = super.start(id, repository, operation);
+            if ("push".equals(operation)) {
+                started.put(trace, new long[] { repository.getId(), System.nanoTime() });
+            }
+            return trace;
+        }
+
+        @Override
+        public void finish(DeployTrace trace, boolean success) {
+            super.finish(trace, success);
+            long[] push = started.remove(trace);
+            Pushes p = push != null && !success ? pushes.get((int)push[0]) : null;
+            if (p != null) {
+                p.failed(push[1]);
+            }
+        }
+    }
+
+    /**
+     * A push waiting for deployment.
+     */
+    private static class Push {
+        final int seq;
+        final long start = System.nanoTime();
+        long scheduled; // System.nanoTime() when the hook returned, 0 before
+
+        Push(int seq) {
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * The pushes to a repository, in order.
+     */
+    private class Pushes {
+        private final Map<String, Integer> seqByTree = new ConcurrentHashMap<>();
+        private final List<Push> waiting = new ArrayList<>(); // guarded by this
+        private int next;
+
+        synchronized Push pushed(String tree) {
+            Push push = new Push(next++);
+            seqByTree.put(tree, push.seq);
+            waiting.add(push);
+            return push;
+        }
+
+        synchronized void scheduled(Push push) {
+            push.scheduled = System.nanoTime();
+        }
+
+        synchronized void deployed(String tree) {
+            Integer seq = seqByTree.get(tree);
+            if (seq != null) {
+                complete(push -> push.seq <= seq, false);
+            }
+        }
+
+        /**
+         * A deployment started at the given time failed, with the pushes
+         * scheduled before it.
+         */
+        synchronized void failed(long started) {
+            complete(push -> push.scheduled != 0 && push.scheduled < started, true);
+        }
+
+        /**
+         * The scheduler is idle, so the pushes still waiting were lost with
+         * a failed deployment.
+         */
+        synchronized void abandon() {
+            complete(push -> true, true);
+        }
+
+        private void complete(Predicate<Push> done, boolean failed) {
+            long now = System.nanoTime();
+            for (Iterator<Push> it = waiting.iterator(); it.hasNext(); ) {
+                Push push = it.next();
+                if (done.test(push)) {
+                    pushLatencies.add(TimeUnit.NANOSECONDS.toMillis(now - push.start));
+                    if (failed) {
+                        pushFailed.incrementAndGet();
+                    }
+                    it.remove();
+                    lastDeployed = now;
+                }
+            }
+        }
+
+        synchronized int getWaiting() {
+            return waiting.size();
+        }
+    }
+
+    private void run() throws Exception {
+        int pushCount = option("pushes", 200), pushers = option("pushers", 16);
+        int deployCount = option("deploys", 50), clients = option("clients", 4);
+        long timeout = TimeUnit.SECONDS.toNanos(option("timeout", 300));
+
+        for (FakeBitbucket.LocalRepository local : repositories) {
+            pushes.put(local.repository.getId(), new Pushes());
+        }
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(daemon("load-sampler-%d"));
+        sampler.scheduleWithFixedDelay(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+        threads.resetPeakThreadCount();
+
+        ExecutorService pushPool = Executors.newFixedThreadPool(pushers, daemon("load-push-%d"));
+        ExecutorService restPool = Executors.newFixedThreadPool(clients, daemon("load-rest-%d"));
+        CountDownLatch pushed = new CountDownLatch(pushCount);
+        CountDownLatch deployed = new CountDownLatch(deployCount);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < pushCount; i++) {
+            FakeBitbucket.LocalRepository local = repositories.get(i % repositories.size());
+            pushPool.execute(() -> {
+                try {
+                    push(local);
+                } catch (Exception ex) {
+                    pushErrors.incrementAndGet();
+                    ex.printStackTrace();
+                } finally {
+                    pushed.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < deployCount; i++) {
+            Repository repository = repositories.get(i % repositories.size()).repository;
+            restPool.execute(() -> {
+                try {
+                    deploy(repository);
+                } catch (Exception ex) {
+                    restFailed.incrementAndGet();
+                    ex.printStackTrace();
+                } finally {
+                    deployed.countDown();
+                }
+            });
+        }
+
+        pushed.await();
+        long pushEnd = System.nanoTime();
+        deployed.await();
+        long restEnd = System.nanoTime();
+
+        // Wait for the last pushes to be deployed. Once every push was hooked,
+        // the scheduler only gets idle after deploying all of them, but a run
+        // is neither queued nor running for an instant when it starts, so it
+        // must be seen idle twice.
+        boolean idle = false;
+        while (waiting() > 0 && System.nanoTime() - start < timeout) {
+            if (scheduler.getQueueDepth() == 0 && scheduler.getRunning() == 0) {
+                if (idle) {
+                    pushes.values().forEach(Pushes::abandon);
+                    break;
+                }
+                idle = true;
+            } else {
+                idle = false;
+            }
+            Thread.sleep(100);
+        }
+        long end = System.nanoTime();
+
+        sampler.shutdownNow();
+        pushPool.shutdownNow();
+        restPool.shutdownNow();
+        sample();
+
+        report(start, pushEnd, restEnd, end);
+    }
+
+    private void push(FakeBitbucket.LocalRepository local) throws Exception {
+        RefChange change;
+        String tree;
+        Push push;
+        Pushes p = pushes.get(local.repository.getId());
+        synchronized (local) {
+            change = local.push();
+            tree = local.tree();
+            push = p.pushed(tree);
+        }
+        // Bitbucket calls the hook after the push is accepted
+        hook.postReceive(bitbucket.hookContext(local.repository), Collections.singletonList(change));
+        p.scheduled(push);
+    }
+
+    private void deploy(Repository repository) throws IOException {
+        long start = System.nanoTime();
+        Response response = resource.deploy(repository, null, null, true, null);
+        if (response.getStatus() == 429) {
+            restRejected.incrementAndGet();
+            return;
+        }
+        if (response.getStatus() != 200) {
+            restFailed.incrementAndGet();
+            return;
+        }
+
+        // The log is streamed until the job is done
+        ((StreamingOutput)response.getEntity()).write(ByteStreams.nullOutputStream());
+        restLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        Object id = response.getMetadata().getFirst(RestResources.JOB_HEADER);
+        DeployJob job = id != null ? jobs.get(id.toString()) : null;
+        if (job != null && job.getState() == DeployJob.State.SUCCEEDED) {
+            restSucceeded.incrementAndGet();
+        } else {
+            restFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Check the behavior of the components over the run, then deploy the
+     * same tree twice so the second deployment reads the archive cache.
+     */
+    private void check() throws Exception {
+        int pushCount = option("pushes", 200), pushers = option("pushers", 16);
+        long pushed = pushCount - pushErrors.get();
+
+        System.out.println("Checks");
+        check(waiting() == 0, "every push completed, %d left", waiting());
+        check(scheduler.getSubmitted() == pushed, "every push scheduled, %d of %d",
+              scheduler.getSubmitted(), pushed);
+        if (pushers > repositories.size() && pushCount > repositories.size()) {
+            // concurrent pushes to a repository arrive while it is deployed
+            check(scheduler.getCoalesced() > 0, "pushes coalesced, %d of %d",
+                  scheduler.getCoalesced(), scheduler.getSubmitted());
+        }
+        check(scheduler.getCompleted() + scheduler.getFailed() + scheduler.getCoalesced() <= scheduler.getSubmitted(),
+              "at most one deployment per uncoalesced push, %d deployed for %d pushes and %d coalesced",
+              scheduler.getCompleted() + scheduler.getFailed(), scheduler.getSubmitted(), scheduler.getCoalesced());
+
+        check(admission.getAdmitted() > 0, "deployments admitted, %d", admission.getAdmitted());
+        check(metrics.getMaxDeploysInFlight() <= admission.getLimit(), "admission limit kept, %d deploys with limit %d",
+              metrics.getMaxDeploysInFlight(), admission.getLimit());
+        // a job releases its permit just after the end of its log
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (admission.getRunning() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        check(admission.getRunning() == 0, "admission permits released, %d held", admission.getRunning());
+
+        // Only full streaming deployments go through the archive cache
+        if (archiveCache.isEnabled() && DeployerConfig.getBoolean("deploy.streaming", true)
+                && !DeployerConfig.getBoolean("deploy.delta", false)) {
+            check(archiveCache.getMisses() > 0, "archive cache filled, %d misses", archiveCache.getMisses());
+
+            Repository repository = repositories.get(0).repository;
+            deploy(repository);
+            long hits = archiveCache.getHits(), misses = archiveCache.getMisses();
+            deploy(repository);
+            check(archiveCache.getHits() == hits + 1 && archiveCache.getMisses() == misses,
+                  "archive cache hit on redeploy, %d hits and %d misses",
+                  archiveCache.getHits() - hits, archiveCache.getMisses() - misses);
+        }
+    }
+
+    private void check(boolean ok, String format, Object... args) {
+        String message = String.format(format, args);
+        System.out.printf("  %-6s %s%n", ok ? "ok" : "FAILED", message);
+        if (!ok) {
+            failures.add(message);
+        }
+    }
+
+    private int waiting() {
+        int n = 0;
+        for (Pushes p : pushes.values()) {
+            n += p.getWaiting();
+        }
+        return n;
+    }
+
+    private void sample() {
+        peakTempBytes.accumulateAndGet(diskUsage(tmp), Math::max);
+
+        int plugin = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("cloudway-")) {
+                plugin++;
+            }
+        }
+        peakPluginThreads.accumulateAndGet(plugin, Math::max);
+    }
+
+    /**
+     * Returns the size of the files under the given directory, which are
+     * created and deleted while walking it.
+     */
+    private static long diskUsage(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.mapToLong(f -> {
+                try {
+                    return Files.isRegularFile(f) ? Files.size(f) : 0;
+                } catch (IOException ex) {
+                    return 0; // deleted meanwhile
+                }
+            }).sum();
+        } catch (IOException | UncheckedIOException ex) {
+            return 0;
+        }
+    }
+
+    private void report(long start, long pushEnd, long restEnd, long end) {
+        int pushCount = option("pushes", 200), deployCount = option("deploys", 50);
+        int deployedPushes = pushLatencies.size() - pushFailed.get();
+        long pushWindow = (deployedPushes > 0 ? lastDeployed : end) - start;
+
+        System.out.println();
+        System.out.println("Deployer load test");
+        System.out.printf("  %-28s %d with %d files of %d bytes%n", "repositories",
+            repositories.size(), option("files", 200), option("fileSize", 4096));
+        System.out.printf("  %-28s %s s, %d%% failures%n", "stub cwman",
+            options.getOrDefault("cwman.delay", "0.2"), option("cwman.fail", 0));
+        System.out.printf("  %-28s %.1f s%n", "wall time", seconds(end - start));
+
+        System.out.println("Pushes");
+        System.out.printf("  %-28s %d by %d pushers in %.1f s%n", "pushed",
+            pushCount - pushErrors.get(), option("pushers", 16), seconds(pushEnd - start));
+        System.out.printf("  %-28s %d, %d failed, %d not deployed, %d push errors%n", "deployed",
+            deployedPushes, pushFailed.get(), waiting(), pushErrors.get());
+        System.out.printf("  %-28s %.2f pushes/s%n", "throughput", deployedPushes / seconds(pushWindow));
+        printLatency("push to completion", pushLatencies);
+        System.out.printf("  %-28s %d submitted, %d coalesced, %d completed, %d failed%n", "scheduler",
+            scheduler.getSubmitted(), scheduler.getCoalesced(), scheduler.getCompleted(), scheduler.getFailed());
+
+        System.out.println("REST deploys");
+        System.out.printf("  %-28s %d by %d clients in %.1f s%n", "requested",
+            deployCount, option("clients", 4), seconds(restEnd - start));
+        System.out.printf("  %-28s %d succeeded, %d failed, %d rejected%n", "result",
+            restSucceeded.get(), restFailed.get(), restRejected.get());
+        System.out.printf("  %-28s %.2f deploys/s%n", "throughput", restSucceeded.get() / seconds(restEnd - start));
+        printLatency("request to end of log", restLatencies);
+
+        System.out.println("Resources");
+        System.out.printf("  %-28s %s%n", "peak temporary disk", FileUtils.byteCountToDisplaySize(peakTempBytes.get()));
+        System.out.printf("  %-28s %d (%d of the plugin)%n", "peak threads",
+            threads.getPeakThreadCount(), peakPluginThreads.get());
+        System.out.printf("  %-28s %d%n", "threads at end", threads.getThreadCount());
+        System.out.printf("  %-28s %d%n", "max concurrent deploys", metrics.getMaxDeploysInFlight());
+        if (fakeAgent != null) {
+            System.out.printf("  %-28s %d started, %d forked, %d run on %d connections%n", "deploy agent",
+                agent.getStarted(), agent.getFallbacks(), fakeAgent.getDeployments(), fakeAgent.getConnections());
+        }
+    }
+
+    private static void printLatency(String name, List<Long> latencies) {
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        Collections.sort(sorted);
+        System.out.printf("  %-28s p50 %d ms, p99 %d ms, max %d ms%n", name,
+            percentile(sorted, 0.5), percentile(sorted, 0.99),
+            sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+    }
+
+    private static long percentile(List<Long> sorted, double quantile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(quantile * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1) / 1e9;
+    }
+
+    private static ThreadFactory daemon(String format) {
+        return new ThreadFactoryBuilder().setNameFormat(format).setDaemon(true).build();
+    }
+
+    private void tearDown() throws IOException {
+        for (int i = components.size() - 1; i >= 0; i--) {
+            try {
+                components.get(i).destroy();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        bitbucket.shutdown();
+        if (fakeAgent != null) {
+            fakeAgent.shutdown();
+        }
+        if (!Boolean.parseBoolean(options.getOrDefault("keep", "false"))) {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Cloudway Platform
+ * Copyright (c) 2012-2016 Cloudway Technology, Inc.
+ * All rights reserved.
+ */
+
+package com.cloudway.bitbucket.plugins.rest;
+
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.cloudway.bitbucket.plugins.DeployJobs;
+import com.cloudway.bitbucket.plugins.DeployWatchdog;
+import com.cloudway.bitbucket.plugins.RepoDeployer;
+
+/**
+ * Creates the REST resources outside of the plugin container.
+ */
+public final class RestResources {
+    public static final String JOB_HEADER = RepoDeployerRestResource.JOB_HEADER;
+
+    private RestResources() {}
+
+    public static RepoDeployerRestResource repoDeployer(RepoDeployer deployer, DeployJobs jobs,
+                                                        DeployWatchdog watchdog,
+                                                        RepositoryService repoService,
+                                                        PermissionValidationService validator) {
+        return new RepoDeployerRestResource(deployer, jobs, watchdog, repoService, validator);
+    }
+}